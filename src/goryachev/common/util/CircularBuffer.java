@@ -39,19 +39,28 @@ public class CircularBuffer<T>
 	}
 	
 	
-	public void add(T item)
+	/** 
+	 * adds an item, overwriting the oldest one if the buffer is full.
+	 * @return the overwritten item, or null
+	 */
+	public T add(T item)
 	{
 		int ix = index(first + size);
-		items[ix] = item;
+		T old;
 
 		if(size < items.length)
 		{
+			old = null;
 			size++;
 		}
 		else
 		{
-			first++;
+			old = (T)items[ix];
+			first = index(first + 1);
 		}
+		
+		items[ix] = item;
+		return old;
 	}
 	
 	
@@ -107,6 +116,22 @@ public class CircularBuffer<T>
 	}
 	
 	
+	public void set(int index, T item)
+	{
+		if(index < 0)
+		{
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		else if(index >= size)
+		{
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		
+		int ix = index(first + index);
+		items[ix] = item;
+	}
+	
+	
 	public T removeFirst()
 	{
 		if(size == 0)
@@ -24,6 +24,13 @@ public class FindOperation
 	}
 	
 	
+	/** returns the normalized pattern */
+	public String getPattern()
+	{
+		return pattern;
+	}
+	
+	
 	protected String normalize(String s)
 	{
 		if(s == null)
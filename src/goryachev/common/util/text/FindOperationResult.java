@@ -18,6 +18,20 @@ public class FindOperationResult
 	}
 	
 	
+	/** returns the offsets of the matches */
+	public int[] getIndexes()
+	{
+		return indexes;
+	}
+	
+	
+	/** returns the normalized pattern */
+	public String getPattern()
+	{
+		return pattern;
+	}
+	
+	
 	public String replace(String replace)
 	{
 		SB sb = new SB(2 * original.length());
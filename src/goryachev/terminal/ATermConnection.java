@@ -1,6 +1,7 @@
 // Copyright © 2023-2024 Andy Goryachev <andy@goryachev.com>
 package goryachev.terminal;
 import java.io.Closeable;
+import java.io.IOException;
 
 
 /**
@@ -18,10 +19,17 @@ public abstract class ATermConnection<T extends ITermEmulator> implements Closea
 	/** connects and starts sending events to the listener */
 	public abstract void connect(ITermView view);
 	
+	/** sends user input to the remote end */
+	public abstract void send(String text) throws IOException;
+	
 	//
 	
 	private final T emulator;
 	private volatile Listener listener;
+	private volatile FlowControl flowControl;
+	private volatile SessionRecorder recorder;
+	private volatile long connectedTime;
+	private volatile long bytesReceived;
 	
 
 	public ATermConnection(T emulator)
@@ -42,6 +50,26 @@ public abstract class ATermConnection<T extends ITermEmulator> implements Closea
 	}
 	
 	
+	/** sets the flow control which applies backpressure when the output cannot be rendered fast enough */
+	public void setFlowControl(FlowControl fc)
+	{
+		flowControl = fc;
+	}
+	
+	
+	/** starts recording the output received from the remote end, or stops when null (the previous recorder is not closed) */
+	public void setRecorder(SessionRecorder r)
+	{
+		recorder = r;
+	}
+	
+	
+	public SessionRecorder getRecorder()
+	{
+		return recorder;
+	}
+	
+	
 	/** informs the terminal emulator about the view size change */
 	public void setTerminalSize(int cols, int rows, double canvasWidth, double canvasHeight)
 	{
@@ -49,8 +77,87 @@ public abstract class ATermConnection<T extends ITermEmulator> implements Closea
 	}
 	
 	
+	/** 
+	 * accumulates the number of bytes received from the remote end.
+	 * this method must be called from a single reader thread.
+	 */
+	protected void addBytesReceived(int count)
+	{
+		bytesReceived += count;
+	}
+	
+	
+	/** 
+	 * must be called by the reader with the raw output received, before it is processed,
+	 * for the session to be recorded.
+	 */
+	protected void record(byte[] buf, int off, int len)
+	{
+		SessionRecorder r = recorder;
+		if(r != null)
+		{
+			r.received(buf, off, len);
+		}
+	}
+	
+	
+	/** 
+	 * must be called by the reader after the emulator has processed a chunk of output.
+	 * Blocks while the renderer is too far behind.
+	 */
+	protected void processed(int count) throws InterruptedException
+	{
+		processed(count, false);
+	}
+	
+	
+	/** 
+	 * must be called by the reader after the emulator has processed a chunk of output.
+	 * Blocks while the renderer is too far behind.
+	 * @param idle true if the output received so far ends between sequences, so a recording keyframe may be taken
+	 */
+	protected void processed(int count, boolean idle) throws InterruptedException
+	{
+		SessionRecorder r = recorder;
+		if(r != null)
+		{
+			r.processed(idle);
+		}
+		
+		FlowControl fc = flowControl;
+		if(fc != null)
+		{
+			fc.received(count);
+		}
+	}
+	
+	
+	/** returns the number of bytes received from the remote end since connected */
+	public long getBytesReceived()
+	{
+		return bytesReceived;
+	}
+	
+	
+	/** returns the average throughput in bytes per second since connected */
+	public double getThroughput()
+	{
+		long t = connectedTime;
+		if(t == 0)
+		{
+			return 0.0;
+		}
+		
+		double sec = (System.nanoTime() - t) / 1_000_000_000.0;
+		return bytesReceived / sec;
+	}
+	
+	
 	protected void fireConnected()
 	{
+		connectedTime = System.nanoTime();
+		bytesReceived = 0;
+		
 		Listener li = listener;
 		if(li != null)
 		{
@@ -0,0 +1,189 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal;
+import goryachev.common.log.Log;
+
+
+/**
+ * Flow Control between the connection reader and the renderer.
+ *
+ * The reader calls received() after each chunk of output has been processed by the emulator,
+ * the renderer calls rendered() after each frame.  When the output arrives faster than it can be
+ * rendered, the reader is blocked once it gets too far ahead, pushing back on the process pipe
+ * instead of queueing the work.  The screen model always receives all the output: only the
+ * intermediate states are never shown, each chunk processed between two frames beyond the first
+ * is counted as a skipped frame.
+ *
+ * The output is considered a flood while the frames are falling behind by more than
+ * FLOOD_THRESHOLD bytes.  No backpressure is applied until the first frame is rendered, or when
+ * the renderer stops responding (for example, when the window is hidden), so a headless terminal
+ * runs at full speed.
+ */
+public class FlowControl
+{
+	/** the default number of bytes the reader may get ahead of the renderer */
+	public static final int DEFAULT_BUDGET = 4 * 1024 * 1024;
+	/** the longest the reader waits for a frame, in milliseconds */
+	public static final long MAX_WAIT = 250;
+	/** the number of bytes received between two frames above which the output is considered a flood */
+	public static final int FLOOD_THRESHOLD = 64 * 1024;
+	/** the number of consecutive frames below the threshold which end the flood */
+	private static final int QUIET_FRAMES = 10;
+	
+	protected static final Log log = Log.get("FlowControl");
+	private final Object lock = new Object();
+	private int budget = DEFAULT_BUDGET;
+	/** bytes received since the last frame */
+	private long unrendered;
+	/** chunks received since the last frame */
+	private int chunks;
+	/** the renderer is known to be painting */
+	private boolean active;
+	private volatile boolean flood;
+	private int quietFrames;
+	private volatile long frameCount;
+	private volatile long skippedFrames;
+	private long floodSkipped;
+	private volatile long blockedTime;
+	
+	
+	public FlowControl()
+	{
+	}
+	
+	
+	/** sets the number of bytes the reader may get ahead of the renderer */
+	public void setBudget(int bytes)
+	{
+		synchronized(lock)
+		{
+			budget = Math.max(FLOOD_THRESHOLD, bytes);
+		}
+	}
+	
+	
+	public int getBudget()
+	{
+		synchronized(lock)
+		{
+			return budget;
+		}
+	}
+	
+	
+	/**
+	 * invoked by the reader after a chunk of output has been processed.
+	 * Blocks while the reader is too far ahead of the renderer.
+	 */
+	public void received(int bytes) throws InterruptedException
+	{
+		synchronized(lock)
+		{
+			unrendered += bytes;
+			chunks++;
+			
+			if(active && (unrendered > budget))
+			{
+				long start = System.nanoTime();
+				long deadline = start + MAX_WAIT * 1_000_000L;
+				
+				while(active && (unrendered > budget))
+				{
+					long ms = (deadline - System.nanoTime()) / 1_000_000L;
+					if(ms <= 0)
+					{
+						// the renderer is not painting: stop waiting for it until the next frame
+						active = false;
+						log.debug("renderer stalled");
+						break;
+					}
+					lock.wait(ms);
+				}
+				
+				blockedTime += (System.nanoTime() - start);
+			}
+		}
+	}
+	
+	
+	/** invoked by the renderer after a frame has been painted */
+	public void rendered()
+	{
+		synchronized(lock)
+		{
+			frameCount++;
+			
+			if(chunks > 1)
+			{
+				skippedFrames += (chunks - 1);
+				if(flood)
+				{
+					floodSkipped += (chunks - 1);
+				}
+			}
+			
+			if(unrendered > FLOOD_THRESHOLD)
+			{
+				if(!flood)
+				{
+					flood = true;
+					floodSkipped = 0;
+					log.debug("flood started");
+				}
+				quietFrames = 0;
+			}
+			else if(flood)
+			{
+				if(++quietFrames >= QUIET_FRAMES)
+				{
+					flood = false;
+					log.debug("flood ended, skipped %d frames", floodSkipped);
+				}
+			}
+			
+			unrendered = 0;
+			chunks = 0;
+			active = true;
+			lock.notifyAll();
+		}
+	}
+	
+	
+	/** invoked when the renderer goes away, releases the reader */
+	public void detach()
+	{
+		synchronized(lock)
+		{
+			active = false;
+			flood = false;
+			lock.notifyAll();
+		}
+	}
+	
+	
+	/** returns true while the output arrives faster than it can be rendered */
+	public boolean isFlood()
+	{
+		return flood;
+	}
+	
+	
+	/** returns the number of frames rendered */
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+	
+	
+	/** returns the number of intermediate states which have never been rendered */
+	public long getSkippedFrames()
+	{
+		return skippedFrames;
+	}
+	
+	
+	/** returns the total time the reader has been blocked waiting for the renderer, in nanoseconds */
+	public long getBlockedTime()
+	{
+		return blockedTime;
+	}
+}
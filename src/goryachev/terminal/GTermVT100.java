@@ -2,13 +2,7 @@
 package goryachev.terminal;
 import goryachev.common.log.Log;
 import goryachev.common.util.ASCII;
-import goryachev.common.util.CKit;
-import goryachev.common.util.CList;
-import goryachev.common.util.Hex;
-import goryachev.common.util.SB;
-import java.io.Reader;
-import java.io.Writer;
-import java.util.Objects;
+import goryachev.terminal.model.ColorCode;
 
 
 /**
@@ -29,19 +23,10 @@ import java.util.Objects;
 public class GTermVT100 implements ITermEmulator
 {
 	protected static final Log log = Log.get("GTermVT100");
-	protected static final Log logRx = Log.get("GTermVT100.rx");
 	
 	protected ITermView view;
-	protected final CList<Integer> pushback = new CList();
-	protected final SB escapeSequence = new SB();
-	protected final CList<String> args = new CList();
-	protected final SB arg = new SB();
-	protected ATermConnection connection;
-	protected boolean running;
-	protected Reader rd; // FIX remove
-	protected Writer wr; // FIX remove
-	private char highSurrogate;
-	private Thread thread;
+	protected final VTParser parser = new VTParser();
+	protected volatile ATermConnection connection;
 	/** visible window x coordinate 0 ... colCount - 1 */
 	private int curx;
 	/** visible window y coordinate 0 ... rowCount - 1 */
@@ -51,6 +36,95 @@ public class GTermVT100 implements ITermEmulator
 	private int scrollTop;
 	private int scrollBottom;
 	private int tabSize = 8;
+	/** DEC private mode 2026 */
+	private boolean synchronizedOutput;
+	/** DEC private modes 47, 1047, 1049 */
+	private boolean alternateScreen;
+	/** the cursors saved by DECSC for the primary and the alternate screen */
+	private final SavedCursor[] savedCursors = { new SavedCursor(), new SavedCursor() };
+	
+	
+	private final VTParser.Handler handler = new VTParser.Handler()
+	{
+		@Override
+		public void print(int[] text, int start, int end)
+		{
+			GTermVT100.this.print(text, start, end);
+		}
+
+
+		@Override
+		public void execute(int c)
+		{
+			GTermVT100.this.execute(c);
+		}
+
+
+		@Override
+		public void escDispatch(VTParser p, int ch)
+		{
+			if(p.getIntermediates() == 0)
+			{
+				handleEscapeSequence(ch);
+			}
+			else
+			{
+				// TODO character set designation, etc.
+				log.debug("unhandled escape sequence %s", p.describe(ch));
+			}
+		}
+
+
+		@Override
+		public void csiDispatch(VTParser p, int ch)
+		{
+			boolean handled;
+			if((p.getPrivateMarker() == 0) && (p.getIntermediates() == 0))
+			{
+				handled = handleControlSequence(ch);
+			}
+			else if(p.getPrivateMarker() == '?')
+			{
+				handled = handlePrivateControlSequence(ch, p.getIntermediates());
+			}
+			else
+			{
+				handled = false;
+			}
+			
+			if(!handled)
+			{
+				log.error("unknown control sequence: %s", p.describe(ch));
+			}
+		}
+
+
+		@Override
+		public void oscDispatch(VTParser p)
+		{
+			handleOperatingSystemCommand(p.getString());
+		}
+
+
+		@Override
+		public void dcsHook(VTParser p, int ch)
+		{
+			// TODO
+			log.debug("DCS %s", p.describe(ch));
+		}
+
+
+		@Override
+		public void dcsPut(int c)
+		{
+		}
+
+
+		@Override
+		public void dcsUnhook()
+		{
+		}
+	};
 	
 	
 	public GTermVT100()
@@ -58,155 +132,177 @@ public class GTermVT100 implements ITermEmulator
 	}
 	
 	
-//	public void connect(ATermConnection conn) throws Exception
-//	{
-//		Objects.nonNull(conn);
-//		this.connection = conn;
-//		
-//		rd = connection.getInputReader();
-//		
-//		wr = connection.getOutputWriter();
-//
-//		// TODO move to caller
-//		thread = new Thread(() ->
-//		{
-//			try
-//			{
-//				readProcess();
-//			}
-//			catch(Throwable e)
-//			{
-//				log.error(e);
-//			}
-//		});
-//		thread.setName("terminal");
-//		thread.setDaemon(true);
-//		thread.start();
-//	}
+	public void setConnection(ATermConnection c)
+	{
+		this.connection = c;
+	}
 	
 	
 	@Override
 	public void setView(ITermView v)
 	{
 		this.view = v;
+		parser.reset();
 		reset();
 	}
 	
 
-	// TODO move to connection
-	public void readProcess()
+	/** processes a chunk of UTF-16 text received from the remote end */
+	public synchronized void process(char[] buf, int off, int len)
 	{
-		try
+		parser.parse(buf, off, len, handler);
+	}
+	
+	
+	/** processes a chunk of code points received from the remote end */
+	public synchronized void process(int[] buf, int off, int len)
+	{
+		parser.parse(buf, off, len, handler);
+	}
+	
+	
+	/** processes a chunk of UTF-8 bytes received from the remote end */
+	public synchronized void process(byte[] buf, int off, int len)
+	{
+		parser.parse(buf, off, len, handler);
+	}
+	
+	
+	/** returns true if the input processed so far ends between sequences, so the state can be captured */
+	public synchronized boolean isIdle()
+	{
+		return parser.isGround();
+	}
+	
+
+	protected void execute(int c)
+	{
+		switch(c)
+		{
+		case ASCII.BEL:
+			view.bell();
+			break;
+		case ASCII.BS:
+			backspace();
+			break;
+		case ASCII.ENQ:
+			// Return Terminal Status (ENQ  is Ctrl-E).  Default response is
+	        // an empty string, but may be overridden by a resource answer-backString (xterm).
+			enq();
+			break;
+		case ASCII.FF:
+			// Form Feed or New Page (NP ).  (FF  is Ctrl-L).  FF  is treated the same as LF .
+			linefeed();
+			break;
+		case ASCII.HT:
+			tab();
+			break;
+		case ASCII.LF:
+			linefeed();
+			break;
+		case ASCII.CR:
+			carriageReturn();
+			break;
+		case ASCII.SI:
+			// TODO
+			// Switch to Standard Character Set (Ctrl-O is Shift In or LS0).
+	        // This invokes the G0 character set (the default) as GL.
+	        // VT200 and up implement LS0.
+			log.error("SI");
+			break;
+		case ASCII.SO:
+			// TODO
+			// Switch to Alternate Character Set (Ctrl-N is Shift Out or
+		    // LS1).  This invokes the G1 character set as GL.
+		    // VT200 and up implement LS1.
+			log.error("SO");
+			break;
+		case ASCII.VT:
+			// Vertical Tab (VT  is Ctrl-K).  This is treated the same as LF.
+			linefeed();
+			break;
+		default:
+			log.info("unknown input 0x%02X", c);
+			break;
+		}
+	}
+	
+	
+	protected void print(int[] text, int start, int end)
+	{
+		if(colCount <= 0)
+		{
+			return;
+		}
+		
+		hideCursor();
+		
+		while(start < end)
 		{
-			running = true;
-			while(running)
+			if((curx >= colCount) || (cury == rowCount))
 			{
-				int c = readCodePoint();
-				logRx.trace("%04x (%c)", c, (char)c);
-									
-				switch(c)
+				wrap();
+			}
+			
+			// as many glyphs as fit on the line, up to a combining mark
+			int avail = colCount - curx;
+			int cells = 0;
+			int i = start;
+			while(i < end)
+			{
+				int c = text[i];
+				int w = (c < UnicodeWidth.NARROW_LIMIT) ? 1 : UnicodeWidth.width(c);
+				if((w == 0) || (cells + w > avail))
 				{
-				case ASCII.BEL:
-					view.bell();
-					break;
-				case ASCII.BS:
-					backspace();
-					break;
-				case ASCII.ENQ:
-					// Return Terminal Status (ENQ  is Ctrl-E).  Default response is
-			        // an empty string, but may be overridden by a resource answer-backString (xterm).
-					enq();
-					break;
-				case ASCII.FF:
-					// Form Feed or New Page (NP ).  (FF  is Ctrl-L).  FF  is treated the same as LF .
-					linefeed();
-					break;
-				case ASCII.HT:
-					tab();
-					break;
-				case ASCII.LF:
-					linefeed();
-					break;
-				case ASCII.CR:
-					carriageReturn();
 					break;
-				case ASCII.SI:
-					// TODO
-					// Switch to Standard Character Set (Ctrl-O is Shift In or LS0).
-			        // This invokes the G0 character set (the default) as GL.
-			        // VT200 and up implement LS0.
-					log.error("SI");
-					break;
-				case ASCII.SO:
-					// TODO
-					// Switch to Alternate Character Set (Ctrl-N is Shift Out or
-				    // LS1).  This invokes the G1 character set as GL.
-				    // VT200 and up implement LS1.
-					log.error("SO");
-					break;
-				case ASCII.ESC:
-					processEscapeSequence();
-					break;
-				case ASCII.VT:
-					// Vertical Tab (VT  is Ctrl-K).  This is treated the same as LF.
-					linefeed();
-					break;
-				default:
-					if(c < 0)
-					{
-						running = false;
-					}
-					else if(c < ASCII.SPACE)
-					{
-						log.info("unknown input 0x%02X", c);
-					}
-					else
-					{
-						hideCursor();
-						
-						if((curx >= colCount) || (cury == rowCount))
-						{
-							carriageReturn();
-							linefeed();
-						}
-						
-						int dx = view.draw(curx, cury, c);
-						if(dx < 0)
-						{
-							carriageReturn();
-							linefeed();
-							
-							dx = view.draw(curx, cury, c);
-						}
-						curx += dx;
-						
-						if(curx >= colCount)
-						{
-							carriageReturn();
-							linefeed();
-						}
-						
-						showCursor();
-					}
 				}
+				cells += w;
+				i++;
+			}
+			
+			if(i > start)
+			{
+				view.draw(curx, cury, text, start, i);
+				curx += cells;
+				start = i;
+			}
+			else if(UnicodeWidth.width(text[start]) == 0)
+			{
+				// attaches to the preceding glyph, which may have wrapped to the previous line,
+				// the mark is dropped at the start of a line which does not continue the previous one
+				if(curx > 0)
+				{
+					view.combine(curx - 1, cury, text[start]);
+				}
+				else if((cury > 0) && view.isWrapped(cury - 1))
+				{
+					view.combine(colCount - 1, cury - 1, text[start]);
+				}
+				start++;
+			}
+			else if(avail == colCount)
+			{
+				// a double width glyph on a single column screen
+				start++;
+			}
+			else
+			{
+				// a double width glyph does not fit in the last column
+				curx = colCount;
+			}
+			
+			if(curx >= colCount)
+			{
+				wrap();
 			}
 		}
-		catch(Throwable e)
-		{
-			log.error(e);
-		}
-		finally
-		{
-			shutdown();
-		}
+		
+		showCursor();
 	}
 	
 	
 	public void shutdown()
 	{
-		CKit.close(rd);
-		CKit.close(wr);
-
 		if(connection != null)
 		{
 			try
@@ -239,8 +335,11 @@ public class GTermVT100 implements ITermEmulator
 	
 	protected void out(String s) throws Exception
 	{
-		wr.write(s);
-		wr.flush();
+		ATermConnection c = connection;
+		if(c != null)
+		{
+			c.send(s);
+		}
 	}
 	
 	
@@ -249,6 +348,10 @@ public class GTermVT100 implements ITermEmulator
 		// ftp://ftp.invisible-island.net/shuford/terminal/dec_keyboards_news.txt
 		switch(k)
 		{
+		case BACKSPACE:
+			return "\b";
+		case DELETE:
+			return "\u001b[3~";
 		case DOWN:
 			return "\u001bOB";
 		case ENTER:
@@ -300,6 +403,8 @@ public class GTermVT100 implements ITermEmulator
 		rowCount = view.getRowCount();
 		scrollTop = 0;
 		scrollBottom = rowCount;
+		view.setScrollRegion(0, rowCount);
+		setSynchronizedOutput(false);
 		
 		// TODO clear view?
 	}
@@ -313,8 +418,6 @@ public class GTermVT100 implements ITermEmulator
 	
 	protected void showCursor()
 	{
-		log.debug("curx=%d, cury=%d", curx, cury);
-		
 		view.showCursor(curx, cury);
 	}
 	
@@ -342,127 +445,164 @@ public class GTermVT100 implements ITermEmulator
 	protected void linefeed()
 	{
 		hideCursor();
-		if(cury < rowCount - 1)
+		lineDown();
+		showCursor();
+	}
+	
+	
+	/** carriage return and line feed without updating the cursor */
+	protected void newLine()
+	{
+		curx = 0;
+		lineDown();
+	}
+	
+	
+	/** moves the cursor down, scrolling the region when at its bottom margin */
+	protected void lineDown()
+	{
+		if(cury == scrollBottom - 1)
 		{
-			cury++;
+			view.scroll(scrollTop, scrollBottom, true);
 		}
-		else
+		else if(cury < rowCount - 1)
 		{
-			view.scroll(scrollTop, scrollBottom, true);
+			cury++;
 		}
-		showCursor();
 	}
 	
 	
-	protected void tab()
+	/** moves the cursor up, scrolling the region down when at its top margin (RI) */
+	protected void reverseIndex()
 	{
 		hideCursor();
-		
-		curx = ((curx / tabSize) + 1) * tabSize;
-		if(curx >= colCount)
+		if(cury == scrollTop)
 		{
-			curx = 0;
-			cury++;
+			view.scroll(scrollTop, scrollBottom, false);
+		}
+		else if(cury > 0)
+		{
+			cury--;
 		}
-		
 		showCursor();
 	}
 	
 	
-	protected int readCodePoint() throws Exception
+	/** sets the scrolling region (DECSTBM), the rows are 1-based, 0 means the default */
+	protected void setScrollRegion(int top, int bottom)
 	{
-		if(pushback.size() > 0)
+		int t = (top <= 0) ? 0 : top - 1;
+		int b = ((bottom <= 0) || (bottom > rowCount)) ? rowCount : bottom;
+		if(t < b - 1)
 		{
-			return pushback.remove(0);
+			scrollTop = t;
+			scrollBottom = b;
+			view.setScrollRegion(t, b);
+			cursorHome();
 		}
-		
-		int c = rd.read();
-
-		// FIX
-		//D.print("[0x" + Hex.toHexString(c, 4) + "] ", c < 0x20 ? Hex.toHexString(c, 2) : (char)c);
-
-		if(highSurrogate > 0)
+	}
+	
+	
+	/** inserts (IL) or deletes (DL) the lines at the cursor row, within the scrolling region */
+	protected void insertDeleteLines(int count, boolean insert)
+	{
+		if((cury >= scrollTop) && (cury < scrollBottom))
 		{
-			if(c < 0)
+			hideCursor();
+			count = Math.min(count, scrollBottom - cury);
+			if(insert)
 			{
-				c = highSurrogate;
-				highSurrogate = 0;
-				return c;
+				view.insertLines(cury, scrollBottom, count);
 			}
 			else
 			{
-				return -1;
+				view.deleteLines(cury, scrollBottom, count);
 			}
+			curx = 0;
+			showCursor();
 		}
-		else
+	}
+	
+	
+	/** scrolls the region up (SU) or down (SD) */
+	protected void scrollRegion(int count, boolean up)
+	{
+		view.scroll(scrollTop, scrollBottom, Math.min(count, scrollBottom - scrollTop), up);
+	}
+	
+	
+	/** moves the cursor up (dy < 0) or down, stopping at the margin of the scrolling region if inside it */
+	protected void cursorVertical(int dy)
+	{
+		hideCursor();
+		int min = (cury >= scrollTop) ? scrollTop : 0;
+		int max = (cury < scrollBottom) ? scrollBottom - 1 : rowCount - 1;
+		cury = Math.max(min, Math.min(max, cury + dy));
+		showCursor();
+	}
+	
+	
+	protected void cursorHorizontal(int dx)
+	{
+		hideCursor();
+		curx = Math.max(0, Math.min(colCount - 1, curx + dx));
+		showCursor();
+	}
+	
+	
+	/** continues the text on the next line */
+	protected void wrap()
+	{
+		if(cury < rowCount)
 		{
-			if(Character.isHighSurrogate((char)c))
-			{
-				highSurrogate = (char)c;
-				
-				c = rd.read();
-				
-				if(Character.isLowSurrogate((char)c))
-				{
-					c = Character.toCodePoint(highSurrogate, (char)c);
-					highSurrogate = 0;
-					return c;
-				}
-				else
-				{
-					pushback.add(0, c);
-					c = highSurrogate;
-					highSurrogate = 0;
-					return c;
-				}
-			}
-			else
-			{
-				return c;
-			}
+			view.setWrapped(cury);
 		}
+		newLine();
 	}
 	
-
-	@Override
-	public void setTerminalSize(int cols, int rows, double canvasWidth, double canvasHeight)
+	
+	protected void tab()
 	{
-		reset();
+		hideCursor();
 		
-		if(connection != null)
+		curx = ((curx / tabSize) + 1) * tabSize;
+		if(curx >= colCount)
 		{
-			connection.setTerminalSize(cols, rows, canvasWidth, canvasHeight);
+			curx = 0;
+			cury++;
 		}
 		
-		// TODO
-//		view.refreshAll();
+		showCursor();
+	}
+	
+	
+	@Override
+	public synchronized void setTerminalSize(int cols, int rows, double canvasWidth, double canvasHeight)
+	{
+		reset();
+		
+		// the view might have moved the cursor when reflowing the lines
+		curx = Math.max(0, Math.min(view.getCursorX(), colCount - 1));
+		cury = Math.max(0, Math.min(view.getCursorY(), rowCount - 1));
 	}
 	
 	
 	protected int getIntArg(int ix)
 	{
-		if(ix < args.size())
-		{
-			String v = args.get(ix);
-			if(CKit.isNotBlank(v))
-			{
-				try
-				{
-					return Integer.parseInt(v);
-				}
-				catch(Exception e)
-				{
-					log.error(e);
-				}
-			}
-		}
-		return 0;
+		return parser.getParam(ix, 0);
+	}
+	
+	
+	/** returns the first parameter as a count, where 0 or missing means 1 */
+	protected int getCountArg()
+	{
+		return Math.max(1, getIntArg(0));
 	}
 	
 	
 	protected int argCount()
 	{
-		return args.size();
+		return parser.getParamCount();
 	}
 	
 	
@@ -475,6 +615,85 @@ public class GTermVT100 implements ITermEmulator
 	}
 	
 	
+	/** saves the cursor position and the attributes (DECSC) */
+	protected void saveCursor()
+	{
+		SavedCursor c = savedCursors[alternateScreen ? 1 : 0];
+		c.x = curx;
+		c.y = cury;
+		c.attributes = view.getAttributes();
+		c.saved = true;
+	}
+	
+	
+	/** restores the cursor position and the attributes saved by DECSC, or moves the cursor home */
+	protected void restoreCursor()
+	{
+		SavedCursor c = savedCursors[alternateScreen ? 1 : 0];
+		if(c.saved)
+		{
+			view.setAttributes(c.attributes);
+			cursorPosition(c.x, c.y);
+		}
+		else
+		{
+			view.clearAttributes();
+			cursorHome();
+		}
+	}
+	
+	
+	/** 
+	 * switches to the alternate screen or back.  The view swaps the screens without copying.
+	 * Mode 1047 clears the alternate screen, 1049 also saves and restores the cursor.
+	 */
+	protected void setAlternateScreen(int mode, boolean on)
+	{
+		if(on == alternateScreen)
+		{
+			return;
+		}
+		
+		hideCursor();
+		if(on)
+		{
+			if(mode == 1049)
+			{
+				saveCursor();
+			}
+			
+			alternateScreen = true;
+			view.setAlternateScreen(true);
+			if(mode != 47)
+			{
+				clearScreen(0, rowCount);
+			}
+		}
+		else
+		{
+			if(mode == 1047)
+			{
+				clearScreen(0, rowCount);
+			}
+			
+			alternateScreen = false;
+			view.setAlternateScreen(false);
+			if(mode == 1049)
+			{
+				// the primary screen might have been reflowed in the meantime, the view keeps its cursor
+				SavedCursor c = savedCursors[0];
+				if(c.saved)
+				{
+					view.setAttributes(c.attributes);
+				}
+				curx = Math.max(0, Math.min(view.getCursorX(), colCount - 1));
+				cury = Math.max(0, Math.min(view.getCursorY(), rowCount - 1));
+			}
+		}
+		showCursor();
+	}
+	
+	
 	protected void cursorHome()
 	{
 		curx = 0;
@@ -483,12 +702,21 @@ public class GTermVT100 implements ITermEmulator
 	}
 	
 	
+	protected void cursorPosition(int x, int y)
+	{
+		hideCursor();
+		curx = Math.max(0, Math.min(x, colCount - 1));
+		cury = Math.max(0, Math.min(y, rowCount - 1));
+		showCursor();
+	}
+	
+	
 	/** Esc[{val};{val}m */
 	protected boolean setGraphicsMode()
 	{
-//		D.print("setGraphicsMode", args); // FIX
-		
-		for(int i=0; i<argCount(); i++)
+		// Esc[m is the same as Esc[0m
+		int ct = Math.max(1, argCount());
+		for(int i=0; i<ct; i++)
 		{
 			int arg = getIntArg(i);
 			switch(arg)
@@ -501,6 +729,10 @@ public class GTermVT100 implements ITermEmulator
 				// bold on
 				view.setBold();
 				break;
+			case 3:
+				// italic on
+				view.setItalic();
+				break;
 			case 4:
 				// underscore
 				view.setUnderscore();
@@ -517,64 +749,97 @@ public class GTermVT100 implements ITermEmulator
 				// concealed on
 				view.setConcealed();
 				break;
-			case 30:
-				// black fg
-				view.setForeground(TermColor.BLACK);
+			case 22:
+				// normal intensity
+				view.clearBold();
 				break;
-			case 31:
-				// red fg
-				view.setForeground(TermColor.RED);
+			case 23:
+				// italic off
+				view.clearItalic();
 				break;
-			case 32:
-				// green fg
-				view.setForeground(TermColor.GREEN);
+			case 24:
+				// underscore off
+				view.clearUnderscore();
 				break;
-			case 33:
-				// yellow fg
-				view.setForeground(TermColor.YELLOW);
+			case 25:
+				// blink off
+				view.clearBlink();
 				break;
-			case 34:
-				// blue fg
-				view.setForeground(TermColor.BLUE);
+			case 27:
+				// reverse video off
+				view.clearReversed();
 				break;
-			case 35:
-				// magenta fg
-				view.setForeground(TermColor.MAGENTA);
+			case 28:
+				// concealed off
+				view.clearConcealed();
 				break;
-			case 36:
-				// cyan fg
-				view.setForeground(TermColor.CYAN);
+			case 29:
+				// crossed out off, the crossed out attribute is not supported
 				break;
+			case 30:
+			case 31:
+			case 32:
+			case 33:
+			case 34:
+			case 35:
+			case 36:
 			case 37:
-				// white fg
-				view.setForeground(TermColor.WHITE);
+				// black, red, green, yellow, blue, magenta, cyan, white fg
+				view.setForeground(ColorCode.indexed(arg - 30));
 				break;
-			case 40:
-				// black bg
+			case 38:
+				// extended fg: 38;5;n or 38;2;r;g;b
+				i = setExtendedColor(i, true);
 				break;
-			case 41:
-				// read bg
+			case 39:
+				// default fg
+				view.setForeground(ColorCode.DEFAULT);
 				break;
+			case 40:
+			case 41:
 			case 42:
-				// green bg
-				break;
 			case 43:
-				// yellow bg
-				break;
 			case 44:
-				// blue bg
-				break;
 			case 45:
-				// magenta bg
-				break;
 			case 46:
-				// cyan bg
-				break;
 			case 47:
-				// white bg
+				// black, red, green, yellow, blue, magenta, cyan, white bg
+				view.setBackground(ColorCode.indexed(arg - 40));
+				break;
+			case 48:
+				// extended bg: 48;5;n or 48;2;r;g;b
+				i = setExtendedColor(i, false);
+				break;
+			case 49:
+				// default bg
+				view.setBackground(ColorCode.DEFAULT);
+				break;
+			case 90:
+			case 91:
+			case 92:
+			case 93:
+			case 94:
+			case 95:
+			case 96:
+			case 97:
+				// bright fg
+				view.setForeground(ColorCode.indexed(arg - 90 + 8));
+				break;
+			case 100:
+			case 101:
+			case 102:
+			case 103:
+			case 104:
+			case 105:
+			case 106:
+			case 107:
+				// bright bg
+				view.setBackground(ColorCode.indexed(arg - 100 + 8));
 				break;
 			default:
-				return false;
+				// the remaining parameters still apply
+				log.debug("unsupported SGR %d", arg);
+				break;
 			}
 		}
 		
@@ -582,152 +847,190 @@ public class GTermVT100 implements ITermEmulator
 	}
 	
 	
-	protected void processEscapeSequence() throws Exception
+	/**
+	 * handles the extended color SGR parameter (38 or 48) at the specified index, in either
+	 * the common form (38;5;n and 38;2;r;g;b) or the ISO 8613-6 form (38:5:n and 38:2:[id]:r:g:b).
+	 * Returns the index of the last parameter consumed.
+	 */
+	protected int setExtendedColor(int ix, boolean fg)
 	{
-		escapeSequence.clear();
-		args.clear();
-		arg.clear();
+		int color = -1;
+		int last;
 		
-		boolean inQuotes = false;
-		
-		int c = readCodePoint();
-		escapeSequence.appendCodePoint(c);
+		if(parser.hasSubParam(ix))
+		{
+			// the sub-parameters belong to this color only
+			last = ix + 1;
+			while(parser.hasSubParam(last))
+			{
+				last++;
+			}
+			
+			int n = last - ix;
+			switch(getIntArg(ix + 1))
+			{
+			case 2:
+				// the color space id is optional
+				if(n >= 4)
+				{
+					color = ColorCode.rgb(getIntArg(last - 2), getIntArg(last - 1), getIntArg(last));
+				}
+				break;
+			case 5:
+				if(n >= 2)
+				{
+					color = ColorCode.indexed(getIntArg(ix + 2));
+				}
+				break;
+			}
+		}
+		else
+		{
+			int ct = argCount();
+			switch(getIntArg(ix + 1))
+			{
+			case 2:
+				last = Math.min(ix + 4, ct - 1);
+				if(last == ix + 4)
+				{
+					color = ColorCode.rgb(getIntArg(ix + 2), getIntArg(ix + 3), getIntArg(ix + 4));
+				}
+				break;
+			case 5:
+				last = Math.min(ix + 2, ct - 1);
+				if(last == ix + 2)
+				{
+					color = ColorCode.indexed(getIntArg(ix + 2));
+				}
+				break;
+			default:
+				last = ix + 1;
+				break;
+			}
+		}
 		
+		if(color >= 0)
+		{
+			if(fg)
+			{
+				view.setForeground(color);
+			}
+			else
+			{
+				view.setBackground(color);
+			}
+		}
+		return last;
+	}
+	
+	
+	/** process Esc sequence */
+	protected void handleEscapeSequence(int c)
+	{
 		switch(c)
 		{
+		case '7':
+			// Esc7 - Save Cursor (DECSC)
+			saveCursor();
+			break;
+		case '8':
+			// Esc8 - Restore Cursor (DECRC)
+			restoreCursor();
+			break;
+		case 'D':
+			// EscD - Index (IND)
+			linefeed();
+			break;
+		case 'E':
+			// EscE - Next Line (NEL)
+			hideCursor();
+			newLine();
+			showCursor();
+			break;
 		case 'H':
 			// EscH - Move cursor to upper left corner (cursorhome)
 			cursorHome();
-			return;
+			break;
+		case 'M':
+			// EscM - Reverse Index (RI)
+			reverseIndex();
+			break;
 		case 'J':
 			// EscJ - Erase to end of screen (cleareos)
 			clearScreen(cury, rowCount);
-			return;
+			break;
 		case 'K':
 			// EscK - Erase to end of current line (cleareol)
 			// TODO
 			log.error("cleareol");
-			return;
+			break;
 		case 'N':
 			// SS2 – Single Shift Two, select G2 character set
 			// TODO
 			log.error("SS2");
-			return;
+			break;
 		case 'O':
 			// SS3 – Single Shift Three, select G3 character set
 			// TODO
 			log.error("SS3");
-			return;
-		case 'P':
-			// DCS – Device Control String
-			// Terminated by ST. Xterm's uses of this sequence include defining User-Defined Keys, and requesting or setting Termcap/Terminfo data.
-			// TODO
-			log.error("DCS");
-			return;
+			break;
 		case '\\':
 			// ST – String Terminator. Terminates strings in other controls.
-			// TODO
-			log.error("ST");
-			return;
-		case ']':
-			// OSC – Operating System Command. Starts a control string for the operating system to use, terminated by ST
-			// TODO
-			log.error("OSC");
-			return;
-		case 'X':
-			// SOS – Start of String.  Takes an argument of a string of text, terminated by ST.
-			// TODO
-			log.error("SOS");
-			return;
-		case '^':
-			// PM – Privacy Message.  Takes an argument of a string of text, terminated by ST.
-			// TODO
-			log.error("PM");
-			return;
-		case '_':
-			// APC – Application Program Command.  Takes an argument of a string of text, terminated by ST.
-			// TODO
-			log.error("APC");
-			return;
+			break;
 		case 'c':
 			// RIS – Reset to Initial State
 			reset();
-			return;
+			break;
 		case '=':
 			// ESC =     Application Keypad (DECKPAM).
 			log.error("DECKPAM");
-			return;
+			break;
 		case '>':
 			// ESC >     Normal Keypad (DECKPNM), VT100.
 			log.error("DECKPNM");
-			return;
-		case '[':
-			// CSI - Control Sequence Introducer
-			for(;;)
-			{
-				c = readCodePoint();
-				escapeSequence.appendCodePoint(c);
-				
-				if(TermTools.isFinalSymbol(c))
-				{
-					// end of sequence
-					args.add(arg.toString());
-					arg.clear();
-					
-					boolean handled = handleControlSequence(c);
-					if(!handled)
-					{
-						log.error("unknown control sequence: %s (%s)", escapeSequence, Hex.toHexString(escapeSequence.getBytes(CKit.CHARSET_ASCII)));						
-					}
-					return;
-				}
-				else
-				{
-					// TODO check for buffer size, prevent overflow.  log and display accumulated symbols?
-					
-					switch(c)
-					{
-					case '"':
-						if(inQuotes)
-						{
-							// end of quoted argument
-							arg.appendCodePoint(c);
-							inQuotes = false;
-						}
-						else
-						{
-							inQuotes = true;
-							arg.appendCodePoint(c);
-						}
-						break;
-					case ';':
-						if(!inQuotes)
-						{
-							// argument separator
-							args.add(arg.toString());
-							arg.clear();
-						}
-						break;
-					default:
-						arg.appendCodePoint(c);
-					}
-				}
-			}
+			break;
 		default:
 			log.error("unhandled escape sequence %c %04X", (char)c, c);
-			return;
+			break;
 		}
 	}
 
 	
+	/** process OSC – Operating System Command, terminated by ST or BEL */
+	protected void handleOperatingSystemCommand(String s)
+	{
+		// TODO window title, etc.
+		log.debug("OSC %s", s);
+	}
+	
+	
 	/** process Esc-[ (CSI) control sequence */
 	protected boolean handleControlSequence(int ch)
 	{
 		switch(ch)
 		{
+		case 'A':
+			// Esc[{n}A - Cursor Up (CUU)
+			cursorVertical(-getCountArg());
+			break;
+		case 'B':
+			// Esc[{n}B - Cursor Down (CUD)
+			cursorVertical(getCountArg());
+			break;
+		case 'C':
+			// Esc[{n}C - Cursor Forward (CUF)
+			cursorHorizontal(getCountArg());
+			break;
+		case 'D':
+			// Esc[{n}D - Cursor Backward (CUB)
+			cursorHorizontal(-getCountArg());
+			break;
 		case 'H':
+		case 'f':
+			// Esc[{row};{col}H - Cursor Position (CUP)
+			// Esc[{row};{col}f - Horizontal and Vertical Position (HVP)
 			// Esc[H - Move cursor to upper left corner - cursorhome 
-			cursorHome();
+			cursorPosition(getIntArg(1) - 1, getIntArg(0) - 1);
 			break;
 		case 'J':
 			int n = getIntArg(0);
@@ -752,12 +1055,166 @@ public class GTermVT100 implements ITermEmulator
 			// (including the character at the cursor position).
 			view.clearLine(curx, cury);
 			break;
+		case 'L':
+			// Esc[{n}L - Insert Line (IL)
+			insertDeleteLines(getCountArg(), true);
+			break;
+		case 'M':
+			// Esc[{n}M - Delete Line (DL)
+			insertDeleteLines(getCountArg(), false);
+			break;
+		case 'S':
+			// Esc[{n}S - Scroll Up (SU)
+			scrollRegion(getCountArg(), true);
+			break;
+		case 'T':
+			if(argCount() > 1)
+			{
+				// the highlight mouse tracking
+				return false;
+			}
+			// Esc[{n}T - Scroll Down (SD)
+			scrollRegion(getCountArg(), false);
+			break;
 		case 'm':
 			return setGraphicsMode();
+		case 'r':
+			// Esc[{top};{bottom}r - Set Top and Bottom Margins (DECSTBM)
+			setScrollRegion(getIntArg(0), getIntArg(1));
+			break;
+		case 's':
+			// Esc[s - Save Cursor (SCOSC)
+			saveCursor();
+			break;
+		case 'u':
+			// Esc[u - Restore Cursor (SCORC)
+			restoreCursor();
+			break;
 		default:
 			return false;
 		}
 		
 		return true;
 	}
+	
+	
+	/** process Esc-[? (CSI with the private marker) control sequence */
+	protected boolean handlePrivateControlSequence(int ch, int intermediates)
+	{
+		switch(intermediates)
+		{
+		case 0:
+			switch(ch)
+			{
+			case 'h':
+				// Esc[?{mode};...h - DEC Private Mode Set (DECSET)
+				return setPrivateModes(true);
+			case 'l':
+				// Esc[?{mode};...l - DEC Private Mode Reset (DECRST)
+				return setPrivateModes(false);
+			}
+			break;
+		case '$':
+			if(ch == 'p')
+			{
+				// Esc[?{mode}$p - Request DEC Private Mode (DECRQM)
+				reportPrivateMode(getIntArg(0));
+				return true;
+			}
+			break;
+		}
+		return false;
+	}
+	
+	
+	protected boolean setPrivateModes(boolean on)
+	{
+		boolean handled = true;
+		int ct = argCount();
+		for(int i=0; i<ct; i++)
+		{
+			int mode = getIntArg(i);
+			if(!setPrivateMode(mode, on))
+			{
+				log.debug("unsupported private mode %d %s", mode, on ? "set" : "reset");
+				handled = false;
+			}
+		}
+		return handled;
+	}
+	
+	
+	/** sets or resets the DEC private mode, returns false if the mode is not supported */
+	protected boolean setPrivateMode(int mode, boolean on)
+	{
+		switch(mode)
+		{
+		case 47:
+		case 1047:
+		case 1049:
+			// the alternate screen, used by the full screen applications
+			setAlternateScreen(mode, on);
+			return true;
+		case 2026:
+			// synchronized output: the application is updating the screen
+			setSynchronizedOutput(on);
+			return true;
+		}
+		return false;
+	}
+	
+	
+	/** replies to DECRQM with Esc[?{mode};{value}$y: 0 = not recognized, 1 = set, 2 = reset */
+	protected void reportPrivateMode(int mode)
+	{
+		int value;
+		switch(mode)
+		{
+		case 47:
+		case 1047:
+		case 1049:
+			value = alternateScreen ? 1 : 2;
+			break;
+		case 2026:
+			value = synchronizedOutput ? 1 : 2;
+			break;
+		default:
+			value = 0;
+			break;
+		}
+		
+		try
+		{
+			out("\u001b[?" + mode + ";" + value + "$y");
+		}
+		catch(Exception e)
+		{
+			log.error(e);
+		}
+	}
+	
+	
+	protected void setSynchronizedOutput(boolean on)
+	{
+		if(synchronizedOutput != on)
+		{
+			synchronizedOutput = on;
+			if(view != null)
+			{
+				view.setSynchronizedOutput(on);
+			}
+		}
+	}
+	
+	
+	//
+	
+	
+	private static class SavedCursor
+	{
+		public int x;
+		public int y;
+		public int attributes;
+		public boolean saved;
+	}
 }
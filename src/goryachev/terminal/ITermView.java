@@ -28,9 +28,63 @@ public interface ITermView
 	 * </ul>
 	 */
 	public int draw(int x, int y, int codePoint);
+	
+	
+	/**
+	 * draws a run of code points from start (inclusive) to end (exclusive) beginning at cell x,
+	 * using the current attributes.  A double width glyph takes two cells (see UnicodeWidth).
+	 * The caller guarantees that the run fits on the line and contains no zero width code points.
+	 */
+	public void draw(int x, int y, int[] text, int start, int end);
+	
+	
+	/** attaches a combining mark (or another zero width code point) to the glyph in the specified cell */
+	public void combine(int x, int y, int codePoint);
 
 
 	public void scroll(int top, int bottom, boolean up);
+	
+	
+	/** 
+	 * scrolls the rows from top (inclusive) to bottom (exclusive) up or down by the specified number of lines.
+	 * The lines scrolled off the top of the screen go into the history.
+	 */
+	public void scroll(int top, int bottom, int count, boolean up);
+	
+	
+	/** inserts the blank lines at row y, shifting the rows below down, up to the bottom (exclusive) */
+	public void insertLines(int y, int bottom, int count);
+	
+	
+	/** deletes the lines at row y, shifting the rows below up, up to the bottom (exclusive) */
+	public void deleteLines(int y, int bottom, int count);
+	
+	
+	/** 
+	 * begins (true) or ends (false) a synchronized update (DEC private mode 2026).
+	 * The view should not present the screen contents until the update ends,
+	 * or until a timeout expires in case the application never ends it.
+	 */
+	public void setSynchronizedOutput(boolean on);
+
+
+	/** 
+	 * switches to the alternate screen (true), which has no scrollback history, or back to the primary
+	 * screen (false), restoring the cursor position it had when the alternate screen was entered.
+	 */
+	public void setAlternateScreen(boolean on);
+	
+	
+	/** records the scrolling region (DECSTBM): the rows from top (inclusive) to bottom (exclusive) */
+	public void setScrollRegion(int top, int bottom);
+	
+	
+	/** marks the line as soft-wrapped: the text continues on the next line, allowing it to be reflowed on resize */
+	public void setWrapped(int y);
+	
+	
+	/** returns true if the line has been soft-wrapped, that is, its text continues on the next line */
+	public boolean isWrapped(int y);
 
 
 	/** clear line from position x to the right edge of the screen */
@@ -45,9 +99,25 @@ public interface ITermView
 	public void showCursor(int x, int y);
 	
 	
+	/** returns the cursor column, which may change when the screen is resized */
+	public int getCursorX();
+	
+	
+	/** returns the cursor row, which may change when the screen is resized */
+	public int getCursorY();
+	
+	
 	public void clearAttributes();
 	
 	
+	/** returns the current attributes as an opaque value, to be restored by setAttributes() */
+	public int getAttributes();
+	
+	
+	/** restores the attributes returned by getAttributes() */
+	public void setAttributes(int attributes);
+	
+	
 	public void setBlink();
 	
 	
@@ -57,14 +127,38 @@ public interface ITermView
 	public void setConcealed();
 	
 	
+	public void setItalic();
+	
+	
 	public void setReversed();
 	
 	
 	public void setUnderscore();
 	
 	
-	public void setBackground(TermColor c);
+	/** turns off the bold attribute (SGR 22, normal intensity) */
+	public void clearBold();
+	
+	
+	public void clearBlink();
+	
+	
+	public void clearConcealed();
+	
+	
+	public void clearItalic();
+	
+	
+	public void clearReversed();
+	
+	
+	public void clearUnderscore();
+	
+	
+	/** sets the background color, specified by a ColorCode */
+	public void setBackground(int color);
 	
 	
-	public void setForeground(TermColor c);
+	/** sets the foreground color, specified by a ColorCode */
+	public void setForeground(int color);
 }
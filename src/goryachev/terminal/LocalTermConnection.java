@@ -3,24 +3,38 @@ package goryachev.terminal;
 import goryachev.common.log.Log;
 import goryachev.common.util.CPlatform;
 import goryachev.common.util.SystemTask;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.concurrent.CompletableFuture;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Local Terminal Connection: starts an OS-specific shell process.
+ *
+ * The process output is read in large chunks, decoded incrementally, and fed to the GTermVT100 emulator
+ * bound to the view.  The reader stops reading while the renderer falls too far behind, so a flood
+ * of output fills the pipe and blocks the process instead of growing the queues.
+ * The process monitor and the output reader run on virtual threads.
  */
 public class LocalTermConnection
-	extends ATermConnection<LocalCommandTerminalEmulator>
+	extends ATermConnection<GTermVT100>
 {
 	protected static final Log log = Log.get("LocalTermConnection");
+	protected static final int BUFFER_SIZE = 65536;
 	private volatile Process process;
+	private final AtomicInteger threadCount = new AtomicInteger();
 
 
 	public LocalTermConnection()
 	{
-		super(new LocalCommandTerminalEmulator());
+		super(new GTermVT100());
 	}
 
 
@@ -32,10 +46,10 @@ public class LocalTermConnection
 		{
 			p.destroy();
 			process = null;
-			
+
 			SystemTask.schedule(750, () ->
 			{
-				p.destroyForcibly();	
+				p.destroyForcibly();
 			});
 		}
 	}
@@ -44,8 +58,9 @@ public class LocalTermConnection
 	@Override
 	public void setTerminalSize(int cols, int rows, double canvasWidth, double canvasHeight)
 	{
-		// TODO
+		// TODO no pty: the process is not notified
 		log.debug("cols=%d rows=%d w=%f h=%f", cols, rows, canvasWidth, canvasHeight);
+		super.setTerminalSize(cols, rows, canvasWidth, canvasHeight);
 	}
 
 
@@ -57,121 +72,196 @@ public class LocalTermConnection
 
 		try
 		{
-			String[] cmd;
-			String[] env;
+			ProcessBuilder pb;
 			if(CPlatform.isWindows())
 			{
-				cmd = new String[]
-				{
-					"Powershell.exe"
-				};
-				env = new String[]
-				{
-				};
+				pb = new ProcessBuilder("Powershell.exe");
 			}
 			else
 			{
-				cmd = new String[]
-				{
-					"/bin/bash"
-				};
-				env = new String[]
-				{
-					"TERM=xterm-256color"
-				};
+				pb = new ProcessBuilder("/bin/bash");
+				pb.environment().put("TERM", "xterm-256color");
 			}
-			
-			process = Runtime.getRuntime().exec(cmd, env);
-			
-			CompletableFuture<Process> onExit = process.onExit();
-			Thread t = new Thread("process monitor")
+			pb.redirectErrorStream(true);
+
+			Process p = pb.start();
+			process = p;
+			fireConnected();
+
+			Charset cs = getCharset();
+			Thread reader = startThread("stdout reader", () -> readOutput(p.getInputStream(), cs));
+
+			startThread("process monitor", () ->
 			{
-				@Override
-				public void run()
+				try
 				{
-					try
-					{
-						Process p = onExit.get();
-						log.info("Finished %s", p);
-						fireDisconnected(null);
-					}
-					catch(Throwable e)
-					{
-						log.error(e);
-						fireDisconnected(e);
-					}
+					p.onExit().get();
+					reader.join();
+
+					log.info("Finished %s, received %d bytes (%.1f MB/s)", p, getBytesReceived(), getThroughput() / 1_000_000.0);
+					fireDisconnected(null);
 				}
-			};
-			t.setDaemon(true);
-			t.start();
-			
-			BufferedReader stdout = process.inputReader();
-			Thread stdoutThread = new Thread("stdout reader")
+				catch(Throwable e)
+				{
+					log.error(e);
+					fireDisconnected(e);
+				}
+			});
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+			fireDisconnected(e);
+		}
+	}
+
+
+	protected Thread startThread(String name, Runnable r)
+	{
+		return Thread.ofVirtual().name(name).start(() ->
+		{
+			threadCount.incrementAndGet();
+			try
+			{
+				r.run();
+			}
+			finally
+			{
+				threadCount.decrementAndGet();
+			}
+		});
+	}
+
+
+	/** returns the number of threads currently serving this connection */
+	public int getThreadCount()
+	{
+		return threadCount.get();
+	}
+
+
+	/** returns the charset used by the child process */
+	protected Charset getCharset()
+	{
+		String enc = System.getProperty("native.encoding");
+		if(enc != null)
+		{
+			try
+			{
+				return Charset.forName(enc);
+			}
+			catch(Exception e)
 			{
-				@Override
-				public void run()
+				log.warn(e);
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+
+	protected void readOutput(InputStream in, Charset cs)
+	{
+		if(StandardCharsets.UTF_8.equals(cs))
+		{
+			readUtf8(in);
+			return;
+		}
+
+		CharsetDecoder dec = cs.newDecoder().
+			onMalformedInput(CodingErrorAction.REPLACE).
+			onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		GTermVT100 em = emulator();
+
+		try
+		{
+			for(;;)
+			{
+				int len = in.read(bytes.array(), bytes.position(), bytes.remaining());
+				if(len < 0)
 				{
-					try
-					{
-						for(;;)
-						{
-							int c = stdout.read();
-							if(c < 0)
-							{
-								return;
-							}
-							
-							emulator().writeStdout(c);
-						}
-					}
-					catch(Throwable ignore)
-					{ }
+					break;
 				}
-			};
-			stdoutThread.setDaemon(true);
-			stdoutThread.start();
-			
-			BufferedReader stderr = process.errorReader();
-			Thread stderrThread = new Thread("stdout reader")
+				addBytesReceived(len);
+				record(bytes.array(), bytes.position(), len);
+
+				// incomplete multi-byte sequences remain in the buffer until the next read
+				bytes.position(bytes.position() + len);
+				bytes.flip();
+				dec.decode(bytes, chars, false);
+				bytes.compact();
+
+				chars.flip();
+				em.process(chars.array(), 0, chars.limit());
+				chars.clear();
+
+				processed(len, em.isIdle() && (bytes.position() == 0));
+			}
+
+			// the incomplete sequence at the end of the output
+			bytes.flip();
+			dec.decode(bytes, chars, true);
+			dec.flush(chars);
+			chars.flip();
+			em.process(chars.array(), 0, chars.limit());
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+		}
+	}
+
+
+	/** reads UTF-8 output, decoding the bytes directly into batches of code points */
+	protected void readUtf8(InputStream in)
+	{
+		Utf8Decoder dec = new Utf8Decoder();
+		ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		int[] codePoints = new int[BUFFER_SIZE + 1];
+		GTermVT100 em = emulator();
+
+		try
+		{
+			for(;;)
 			{
-				@Override
-				public void run()
+				int len = in.read(bytes.array(), 0, BUFFER_SIZE);
+				if(len < 0)
 				{
-					try
-					{
-						for(;;)
-						{
-							int c = stderr.read();
-							if(c < 0)
-							{
-								return;
-							}
-							
-							emulator().writeStderr(c);
-						}
-					}
-					catch(Throwable ignore)
-					{ }
+					break;
 				}
-			};
-			stderrThread.setDaemon(true);
-			stderrThread.start();
+				addBytesReceived(len);
+				record(bytes.array(), 0, len);
+
+				// an incomplete multi-byte sequence is kept by the decoder until the next read
+				bytes.clear().limit(len);
+				int n = dec.decode(bytes, codePoints, 0, codePoints.length);
+				em.process(codePoints, 0, n);
+
+				processed(len, em.isIdle() && !dec.isPending());
+			}
+
+			// the incomplete sequence at the end of the output
+			int n = dec.flush(codePoints, 0);
+			em.process(codePoints, 0, n);
 		}
 		catch(Throwable e)
 		{
 			log.error(e);
-			fireDisconnected(e);
 		}
 	}
 
 
-	public void userInput(String ch) throws IOException
+	@Override
+	public void send(String text) throws IOException
 	{
 		Process p = process;
 		if(p != null)
 		{
-			p.outputWriter().write(ch);
-			p.outputWriter().flush();
+			Writer wr = p.outputWriter();
+			wr.write(text);
+			wr.flush();
 		}
 	}
 }
@@ -0,0 +1,452 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal;
+import goryachev.common.io.BufferedFile;
+import goryachev.common.log.Log;
+import goryachev.common.util.CKit;
+import goryachev.common.util.CList;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Replay Connection: plays back a session recorded by the SessionRecorder, either at the original
+ * speed (or a multiple of it), or as fast as the emulator can process the output.
+ *
+ * The recording is scanned for the keyframes when connected.  Seeking processes the nearest
+ * keyframe preceding the requested time, followed by the output recorded after it, as fast as
+ * possible; the scrollback history is not restored.
+ *
+ * The user input is ignored.  The playback runs on a virtual thread and observes the flow control,
+ * so a replay at the maximum speed doubles as a reproducible throughput test.
+ */
+public class ReplayConnection
+	extends ATermConnection<GTermVT100>
+{
+	protected static final Log log = Log.get("ReplayConnection");
+	/** the speed at which the output is processed as fast as possible */
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+	private static final String CLEAR = "\u001b[?1047l\u001b[r\u001b[0m\u001b[2J\u001b[H";
+	private final File file;
+	private final CList<Keyframe> keyframes = new CList<>();
+	private volatile double speed = 1.0;
+	/** the requested seek time, ns, or -1 */
+	private volatile long seekTime = -1;
+	/** the time of the last record processed, ns */
+	private volatile long position;
+	private volatile long duration;
+	private volatile boolean closed;
+	private volatile Thread thread;
+	private BufferedFile in;
+	private Charset charset;
+	private long dataStart;
+	
+	
+	public ReplayConnection(File file)
+	{
+		super(new GTermVT100());
+		this.file = file;
+	}
+	
+	
+	/** sets the playback speed relative to the original, or MAX_SPEED */
+	public void setSpeed(double speed)
+	{
+		if(!(speed > 0.0))
+		{
+			throw new IllegalArgumentException("speed must be positive: " + speed);
+		}
+		this.speed = speed;
+		wakeUp();
+	}
+	
+	
+	public double getSpeed()
+	{
+		return speed;
+	}
+	
+	
+	/** continues the playback from the specified time since the start of the session, in milliseconds */
+	public void seek(long ms)
+	{
+		seekTime = Math.max(0L, ms) * 1_000_000L;
+		wakeUp();
+	}
+	
+	
+	/** returns the time of the output processed last, since the start of the session, in milliseconds */
+	public long getPosition()
+	{
+		return position / 1_000_000L;
+	}
+	
+	
+	/** returns the duration of the recording in milliseconds, available once connected */
+	public long getDuration()
+	{
+		return duration / 1_000_000L;
+	}
+	
+	
+	private void wakeUp()
+	{
+		Thread t = thread;
+		if(t != null)
+		{
+			LockSupport.unpark(t);
+		}
+	}
+	
+	
+	@Override
+	public void connect(ITermView view)
+	{
+		emulator().setView(view);
+		emulator().setConnection(this);
+		
+		try
+		{
+			open();
+			fireConnected();
+			Thread t = Thread.ofVirtual().name("replay").unstarted(this::play);
+			thread = t;
+			t.start();
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+			fireDisconnected(e);
+		}
+	}
+	
+	
+	/** reads the header and builds the keyframe index */
+	protected void open() throws Exception
+	{
+		in = new BufferedFile(file, BufferedFile.Mode.READ, 65536, 4);
+		if(in.readInt() != SessionRecorder.MAGIC)
+		{
+			throw new IOException("not a session recording: " + file);
+		}
+		
+		int ver = in.readInt();
+		if(ver != SessionRecorder.VERSION)
+		{
+			throw new IOException("unsupported version " + ver + ": " + file);
+		}
+		
+		in.readLong();
+		charset = Charset.forName(in.readUTF());
+		dataStart = in.getCurrentPosition();
+		
+		// a truncated record at the end is ignored
+		long pos = dataStart;
+		long len = in.length();
+		while(pos + SessionRecorder.RECORD_HEADER <= len)
+		{
+			in.seek(pos);
+			byte type = in.readByte();
+			long time = in.readLong();
+			int sz = in.readInt();
+			if(pos + SessionRecorder.RECORD_HEADER + sz > len)
+			{
+				break;
+			}
+			
+			if(type == SessionRecorder.KEYFRAME)
+			{
+				keyframes.add(new Keyframe(time, pos));
+			}
+			duration = time;
+			pos += SessionRecorder.RECORD_HEADER + sz;
+		}
+		in.seek(dataStart);
+	}
+	
+	
+	protected void play()
+	{
+		GTermVT100 em = emulator();
+		boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+		CharsetDecoder dec = charset.newDecoder().
+			onMalformedInput(CodingErrorAction.REPLACE).
+			onUnmappableCharacter(CodingErrorAction.REPLACE);
+		byte[] buf = new byte[65536];
+		// the undecoded bytes, an incomplete multi-byte sequence remains here until the next record
+		ByteBuffer bytes = ByteBuffer.allocate(buf.length);
+		CharBuffer chars = null;
+		Throwable err = null;
+		
+		// the output is processed as fast as possible until this time, ns
+		long skipUntil = -1;
+		// System.nanoTime() corresponding to the start of the session at the current speed
+		long base = System.nanoTime();
+		double sp = speed;
+		
+		try
+		{
+			while(!closed)
+			{
+				long seek = seekTime;
+				if(seek >= 0)
+				{
+					seekTime = -1;
+					Keyframe k = findKeyframe(seek);
+					if(k == null)
+					{
+						in.seek(dataStart);
+						process(em, CLEAR);
+					}
+					else
+					{
+						in.seek(k.offset);
+					}
+					dec.reset();
+					bytes.clear();
+					skipUntil = seek;
+					position = seek;
+				}
+				
+				byte type;
+				long time;
+				int len;
+				try
+				{
+					type = in.readByte();
+					time = in.readLong();
+					len = in.readInt();
+					if(len > buf.length)
+					{
+						buf = new byte[len];
+					}
+					in.readFully(buf, 0, len);
+				}
+				catch(EOFException e)
+				{
+					// the end of the recording, possibly truncated
+					break;
+				}
+				
+				switch(type)
+				{
+				case SessionRecorder.DATA:
+					if(time > skipUntil)
+					{
+						// the clock restarts after a seek or a speed change
+						if((skipUntil >= 0) || (sp != speed))
+						{
+							sp = speed;
+							base = System.nanoTime() - (long)(position / sp);
+							skipUntil = -1;
+						}
+						
+						if(!waitUntil(base + (long)(time / sp)))
+						{
+							// a seek or a speed change has been requested while waiting, the record is read again
+							in.seek(in.getCurrentPosition() - SessionRecorder.RECORD_HEADER - len);
+							continue;
+						}
+					}
+					
+					if(utf8)
+					{
+						em.process(buf, 0, len);
+					}
+					else
+					{
+						if(bytes.remaining() < len)
+						{
+							bytes = ByteBuffer.allocate(bytes.position() + len).put(bytes.flip());
+						}
+						bytes.put(buf, 0, len);
+						chars = decode(dec, bytes, chars);
+						em.process(chars.array(), 0, chars.limit());
+					}
+					
+					position = time;
+					addBytesReceived(len);
+					processed(len);
+					break;
+				case SessionRecorder.KEYFRAME:
+					// processed only when seeking, the header is followed by the columns and the rows
+					if(skipUntil >= 0)
+					{
+						process(em, new String(buf, 8, len - 8, StandardCharsets.UTF_8));
+					}
+					break;
+				default:
+					log.warn("unknown record type %d", type);
+					break;
+				}
+			}
+			
+			// the incomplete sequence at the end of the recording
+			if(bytes.position() > 0)
+			{
+				bytes.flip();
+				chars = CharBuffer.allocate(bytes.remaining() + 1);
+				dec.decode(bytes, chars, true);
+				dec.flush(chars);
+				chars.flip();
+				em.process(chars.array(), 0, chars.limit());
+			}
+			
+			log.info("Finished %s, replayed %d bytes (%.1f MB/s)", file, getBytesReceived(), getThroughput() / 1_000_000.0);
+		}
+		catch(InterruptedException e)
+		{
+			// closed
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+			err = e;
+		}
+		
+		closeFile();
+		fireDisconnected(err);
+	}
+	
+	
+	private static void process(GTermVT100 em, String s)
+	{
+		char[] cs = s.toCharArray();
+		em.process(cs, 0, cs.length);
+	}
+	
+	
+	/** decodes the bytes accumulated in the buffer, leaving the incomplete sequence at the end in it */
+	private static CharBuffer decode(CharsetDecoder dec, ByteBuffer bytes, CharBuffer chars)
+	{
+		bytes.flip();
+		if((chars == null) || (chars.capacity() < bytes.remaining()))
+		{
+			chars = CharBuffer.allocate(bytes.remaining());
+		}
+		chars.clear();
+		
+		dec.decode(bytes, chars, false);
+		bytes.compact();
+		chars.flip();
+		return chars;
+	}
+	
+	
+	/**
+	 * waits until the specified System.nanoTime(), returns false if a seek or a speed change
+	 * has been requested in the meantime
+	 */
+	private boolean waitUntil(long deadline) throws InterruptedException
+	{
+		double sp = speed;
+		if(sp == MAX_SPEED)
+		{
+			return true;
+		}
+		
+		for(;;)
+		{
+			if(closed)
+			{
+				throw new InterruptedException();
+			}
+			else if((seekTime >= 0) || (speed != sp))
+			{
+				return false;
+			}
+			
+			long d = deadline - System.nanoTime();
+			if(d <= 0)
+			{
+				return true;
+			}
+			LockSupport.parkNanos(d);
+		}
+	}
+	
+	
+	/** returns the last keyframe at or before the specified time, or null */
+	private Keyframe findKeyframe(long time)
+	{
+		Keyframe rv = null;
+		for(Keyframe k: keyframes)
+		{
+			if(k.time > time)
+			{
+				break;
+			}
+			rv = k;
+		}
+		return rv;
+	}
+	
+	
+	/** returns the number of keyframes in the recording */
+	public int getKeyframeCount()
+	{
+		return keyframes.size();
+	}
+	
+	
+	@Override
+	public void send(String text) throws IOException
+	{
+		// the recorded session does not accept input
+	}
+	
+	
+	/** stops the playback */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		
+		Thread t = thread;
+		if(t == null)
+		{
+			closeFile();
+		}
+		else
+		{
+			// might be blocked by the flow control
+			t.interrupt();
+		}
+	}
+	
+	
+	private synchronized void closeFile()
+	{
+		BufferedFile f = in;
+		if(f != null)
+		{
+			in = null;
+			CKit.close(f);
+		}
+	}
+	
+	
+	//
+	
+	
+	private static class Keyframe
+	{
+		public final long time;
+		/** the file position of the record */
+		public final long offset;
+		
+		
+		public Keyframe(long time, long offset)
+		{
+			this.time = time;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal;
+import goryachev.common.log.Log;
+import goryachev.terminal.model.TermModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Session Recorder: appends the raw output received by a connection to a file, along with
+ * the time it was received, so the session can be replayed later (see ReplayConnection).
+ *
+ * The recorder periodically appends a keyframe: the screen of the model encoded as a VT sequence
+ * (see TermModel.encodeScreen()), so the replay can seek to any point by processing the nearest
+ * preceding keyframe followed by the output recorded after it, instead of the whole session.
+ * A keyframe is taken only when the emulator is between sequences.
+ *
+ * The file format:
+ * <pre>
+ * header:   int MAGIC, int VERSION, long start time (epoch ms), UTF charset name
+ * record:   byte type, long time (ns since the start), int length, payload
+ * DATA:     the bytes received
+ * KEYFRAME: int columns, int rows, UTF-8 bytes of the VT sequence
+ * </pre>
+ * The records are written by the connection reader thread.
+ */
+public class SessionRecorder
+	implements Closeable
+{
+	protected static final Log log = Log.get("SessionRecorder");
+	static final int MAGIC = 0x47545231;
+	static final int VERSION = 1;
+	static final byte DATA = 1;
+	static final byte KEYFRAME = 2;
+	/** the size of the record type, time, and length */
+	static final int RECORD_HEADER = 13;
+	public static final long DEFAULT_KEYFRAME_INTERVAL = 30_000;
+	private static final long FLUSH_INTERVAL = 1_000_000_000L;
+	private final FileChannel channel;
+	private final TermModel model;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+	private final long start;
+	private volatile long keyframeInterval = DEFAULT_KEYFRAME_INTERVAL * 1_000_000L;
+	private long lastKeyframe;
+	private long lastFlush;
+	private long bytesWritten;
+	private int keyframeCount;
+	private boolean closed;
+	
+	
+	/**
+	 * creates a new recording, replacing the file if it exists.
+	 * @param model the model to take the keyframes from, or null for no keyframes
+	 */
+	public SessionRecorder(File file, TermModel model, Charset charset) throws IOException
+	{
+		this.model = model;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		start = System.nanoTime();
+		lastFlush = start;
+		
+		byte[] cs = charset.name().getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putShort((short)cs.length);
+		buffer.put(cs);
+		flush();
+	}
+	
+	
+	public SessionRecorder(File file, TermModel model) throws IOException
+	{
+		this(file, model, StandardCharsets.UTF_8);
+	}
+	
+	
+	/** sets the minimum time between the keyframes, in milliseconds */
+	public void setKeyframeInterval(long ms)
+	{
+		keyframeInterval = ms * 1_000_000L;
+	}
+	
+	
+	/** records a chunk of output received by the connection */
+	public synchronized void received(byte[] buf, int off, int len)
+	{
+		if(closed || (len <= 0))
+		{
+			return;
+		}
+		
+		try
+		{
+			writeRecord(DATA, System.nanoTime() - start, buf, off, len, 0, 0);
+		}
+		catch(IOException e)
+		{
+			failed(e);
+		}
+	}
+	
+	
+	/**
+	 * invoked after the emulator has processed all the output received so far.
+	 * @param idle true if the emulator is between sequences, allowing a keyframe to be taken
+	 */
+	public synchronized void processed(boolean idle)
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		try
+		{
+			long now = System.nanoTime();
+			long t = now - start;
+			if(idle && (model != null) && (t - lastKeyframe >= keyframeInterval))
+			{
+				writeKeyframe(t);
+			}
+			else if(now - lastFlush > FLUSH_INTERVAL)
+			{
+				flush();
+			}
+		}
+		catch(IOException e)
+		{
+			failed(e);
+		}
+	}
+	
+	
+	/** the session goes on without the recording */
+	private void failed(IOException e)
+	{
+		log.error(e);
+		close();
+	}
+	
+	
+	protected void writeKeyframe(long time) throws IOException
+	{
+		int cols;
+		int rows;
+		String vt;
+		synchronized(model.getLock())
+		{
+			cols = model.getColumnCount();
+			rows = model.getRowCount();
+			vt = model.encodeScreen();
+		}
+		
+		byte[] b = vt.getBytes(StandardCharsets.UTF_8);
+		writeRecord(KEYFRAME, time, b, 0, b.length, cols, rows);
+		flush();
+		lastKeyframe = time;
+		keyframeCount++;
+	}
+	
+	
+	private void writeRecord(byte type, long time, byte[] buf, int off, int len, int cols, int rows) throws IOException
+	{
+		int extra = (type == KEYFRAME) ? 8 : 0;
+		if(buffer.remaining() < RECORD_HEADER + extra)
+		{
+			flush();
+		}
+		
+		buffer.put(type);
+		buffer.putLong(time);
+		buffer.putInt(len + extra);
+		if(type == KEYFRAME)
+		{
+			buffer.putInt(cols);
+			buffer.putInt(rows);
+		}
+		
+		if(len <= buffer.remaining())
+		{
+			buffer.put(buf, off, len);
+		}
+		else
+		{
+			// large payloads bypass the buffer
+			flush();
+			write(ByteBuffer.wrap(buf, off, len));
+		}
+		bytesWritten += (RECORD_HEADER + extra + len);
+	}
+	
+	
+	/** writes the buffered records to the file */
+	public synchronized void flush() throws IOException
+	{
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+		lastFlush = System.nanoTime();
+	}
+	
+	
+	private void write(ByteBuffer b) throws IOException
+	{
+		while(b.hasRemaining())
+		{
+			channel.write(b);
+		}
+	}
+	
+	
+	/** returns the number of bytes recorded, excluding the file header */
+	public synchronized long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+	
+	
+	public synchronized int getKeyframeCount()
+	{
+		return keyframeCount;
+	}
+	
+	
+	@Override
+	public synchronized void close()
+	{
+		if(!closed)
+		{
+			closed = true;
+			try
+			{
+				flush();
+				channel.close();
+			}
+			catch(IOException e)
+			{
+				log.error(e);
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ package goryachev.terminal;
 public enum TermKey
 {
 	BACKSPACE,
+	DELETE,
 	DOWN,
 	ENTER,
 	F1,
@@ -1,6 +1,7 @@
 // Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
 package goryachev.terminal;
 import goryachev.common.util.SB;
+import goryachev.fx.internal.GlyphCache;
 import java.io.InputStream;
 
 
@@ -11,6 +12,10 @@ public class TermTools
 {
 	public static String codePointToString(int c)
 	{
+		if(c < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+		{
+			return GlyphCache.get((char)c);
+		}
 		return new String(Character.toChars(c));
 	}
 	
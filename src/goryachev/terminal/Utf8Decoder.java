@@ -0,0 +1,241 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Streaming UTF-8 Decoder.
+ *
+ * Decodes chunks of bytes into code points, without allocating objects.  A multi-byte sequence
+ * split across chunks is kept in the decoder state until the next chunk arrives.
+ * Malformed input (stray continuation bytes, truncated or overlong sequences, surrogates,
+ * values above U+10FFFF) is replaced with U+FFFD.
+ *
+ * Runs of ASCII are scanned eight bytes at a time, complete two and three byte sequences are
+ * decoded without going through the state kept between the chunks.
+ *
+ * This class is not thread safe.
+ */
+public class Utf8Decoder
+{
+	public static final int REPLACEMENT_CHARACTER = 0xFFFD;
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private int codePoint;
+	private int remaining;
+	private int minimum;
+	private byte[] scratch;
+	
+	
+	public Utf8Decoder()
+	{
+	}
+	
+	
+	/** discards the partial sequence, if any */
+	public void reset()
+	{
+		remaining = 0;
+	}
+	
+	
+	/** 
+	 * ends the input, replacing the truncated sequence at the end, if any, with U+FFFD.
+	 * @return the number of code points written to out at the specified offset, 0 or 1
+	 */
+	public int flush(int[] out, int off)
+	{
+		if(remaining == 0)
+		{
+			return 0;
+		}
+		
+		remaining = 0;
+		out[off] = REPLACEMENT_CHARACTER;
+		return 1;
+	}
+	
+	
+	/** returns true if the input decoded so far ends in the middle of a multi-byte sequence */
+	public boolean isPending()
+	{
+		return (remaining > 0);
+	}
+	
+	
+	/**
+	 * decodes the bytes between the buffer position and its limit, as many as fit the output array.
+	 * The buffer position is advanced past the consumed bytes.
+	 * @return the number of code points written to out starting at off, at most len
+	 */
+	public int decode(ByteBuffer in, int[] out, int off, int len)
+	{
+		// each byte produces at most one code point, plus one for the interrupted partial sequence
+		int n = Math.min(in.remaining(), len - 1);
+		if(n <= 0)
+		{
+			return 0;
+		}
+		
+		int pos = in.position();
+		int rv;
+		if(in.hasArray())
+		{
+			rv = decode(in.array(), in.arrayOffset() + pos, n, out, off);
+		}
+		else
+		{
+			if((scratch == null) || (scratch.length < n))
+			{
+				scratch = new byte[Math.max(n, 4096)];
+			}
+			in.get(pos, scratch, 0, n);
+			rv = decode(scratch, 0, n, out, off);
+		}
+		in.position(pos + n);
+		return rv;
+	}
+	
+	
+	/**
+	 * decodes all the specified bytes.
+	 * The output array must have room for (len + 1) code points starting at outOffset.
+	 * @return the number of code points written
+	 */
+	public int decode(byte[] buf, int off, int len, int[] out, int outOffset)
+	{
+		int i = off;
+		int end = off + len;
+		int o = outOffset;
+		
+		while(i < end)
+		{
+			if(remaining == 0)
+			{
+				// fast path: ASCII
+				while((i + 8 <= end) && (((long)LONG.get(buf, i) & HIGH_BITS) == 0))
+				{
+					out[o] = buf[i];
+					out[o + 1] = buf[i + 1];
+					out[o + 2] = buf[i + 2];
+					out[o + 3] = buf[i + 3];
+					out[o + 4] = buf[i + 4];
+					out[o + 5] = buf[i + 5];
+					out[o + 6] = buf[i + 6];
+					out[o + 7] = buf[i + 7];
+					i += 8;
+					o += 8;
+				}
+				
+				while((i < end) && (buf[i] >= 0))
+				{
+					out[o++] = buf[i++];
+				}
+				
+				if(i == end)
+				{
+					break;
+				}
+				
+				// fast path: a complete two or three byte sequence
+				int b = buf[i];
+				if(((b & 0xe0) == 0xc0) && (i + 1 < end))
+				{
+					int b1 = buf[i + 1];
+					if((b1 & 0xc0) == 0x80)
+					{
+						int c = ((b & 0x1f) << 6) | (b1 & 0x3f);
+						if(c >= 0x80)
+						{
+							out[o++] = c;
+							i += 2;
+							continue;
+						}
+					}
+				}
+				else if(((b & 0xf0) == 0xe0) && (i + 2 < end))
+				{
+					int b1 = buf[i + 1];
+					int b2 = buf[i + 2];
+					if(((b1 & 0xc0) == 0x80) && ((b2 & 0xc0) == 0x80))
+					{
+						int c = ((b & 0x0f) << 12) | ((b1 & 0x3f) << 6) | (b2 & 0x3f);
+						if((c >= 0x800) && ((c < 0xd800) || (c > 0xdfff)))
+						{
+							out[o++] = c;
+							i += 3;
+							continue;
+						}
+					}
+				}
+			}
+			
+			int b = buf[i++] & 0xff;
+			if(b < 0x80)
+			{
+				// interrupts the partial sequence
+				remaining = 0;
+				out[o++] = REPLACEMENT_CHARACTER;
+				out[o++] = b;
+			}
+			else if((b & 0xc0) == 0x80)
+			{
+				// continuation byte
+				if(remaining == 0)
+				{
+					out[o++] = REPLACEMENT_CHARACTER;
+				}
+				else
+				{
+					codePoint = (codePoint << 6) | (b & 0x3f);
+					if(--remaining == 0)
+					{
+						int c = codePoint;
+						if((c < minimum) || (c > 0x10ffff) || ((c >= 0xd800) && (c <= 0xdfff)))
+						{
+							c = REPLACEMENT_CHARACTER;
+						}
+						out[o++] = c;
+					}
+				}
+			}
+			else
+			{
+				// lead byte
+				if(remaining > 0)
+				{
+					remaining = 0;
+					out[o++] = REPLACEMENT_CHARACTER;
+				}
+				
+				if((b & 0xe0) == 0xc0)
+				{
+					codePoint = b & 0x1f;
+					remaining = 1;
+					minimum = 0x80;
+				}
+				else if((b & 0xf0) == 0xe0)
+				{
+					codePoint = b & 0x0f;
+					remaining = 2;
+					minimum = 0x800;
+				}
+				else if((b & 0xf8) == 0xf0)
+				{
+					codePoint = b & 0x07;
+					remaining = 3;
+					minimum = 0x10000;
+				}
+				else
+				{
+					out[o++] = REPLACEMENT_CHARACTER;
+				}
+			}
+		}
+		
+		return o - outOffset;
+	}
+}
@@ -0,0 +1,643 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal;
+import goryachev.common.util.SB;
+
+
+/**
+ * Table-driven DEC ANSI Parser.
+ *
+ * Consumes whole char[], int[] (code points), or byte[] (UTF-8) buffers and emits actions
+ * to the Handler without allocating objects per character or per sequence: numeric parameters
+ * are kept in a fixed int[] array, and contiguous printable code points are delivered in runs.
+ * In the ground state, a run of printable code points is scanned in bulk, bypassing the state table.
+ *
+ * The state machine follows the DEC ANSI parser described in
+ * https://vt100.net/emu/dec_ansi_parser
+ *
+ * This class is not thread safe.
+ */
+public class VTParser
+{
+	public interface Handler
+	{
+		/** prints a run of printable code points, from start (inclusive) to end (exclusive) */
+		public void print(int[] text, int start, int end);
+
+		/** executes a C0 control function */
+		public void execute(int c);
+
+		/** dispatches an escape sequence */
+		public void escDispatch(VTParser p, int ch);
+
+		/** dispatches a control sequence (CSI) */
+		public void csiDispatch(VTParser p, int ch);
+
+		/** dispatches an operating system command (OSC), the string is available via {@link VTParser#getString()} */
+		public void oscDispatch(VTParser p);
+
+		/** starts a device control string (DCS) */
+		public void dcsHook(VTParser p, int ch);
+
+		/** passes a DCS data character */
+		public void dcsPut(int c);
+
+		/** ends a device control string */
+		public void dcsUnhook();
+	}
+
+	//
+
+	/** maximum number of numeric parameters, the rest is ignored */
+	public static final int MAX_PARAMS = 32;
+	/** maximum length of an OSC string, the rest is ignored */
+	public static final int MAX_STRING = 4096;
+	/** maximum value of a numeric parameter */
+	public static final int MAX_PARAM_VALUE = 65535;
+	public static final int REPLACEMENT_CHARACTER = 0xFFFD;
+
+	private static final int GROUND = 0;
+	private static final int ESCAPE = 1;
+	private static final int ESCAPE_INTERMEDIATE = 2;
+	private static final int CSI_ENTRY = 3;
+	private static final int CSI_PARAM = 4;
+	private static final int CSI_INTERMEDIATE = 5;
+	private static final int CSI_IGNORE = 6;
+	private static final int DCS_ENTRY = 7;
+	private static final int DCS_PARAM = 8;
+	private static final int DCS_INTERMEDIATE = 9;
+	private static final int DCS_PASSTHROUGH = 10;
+	private static final int DCS_IGNORE = 11;
+	private static final int OSC_STRING = 12;
+	private static final int SOS_PM_APC_STRING = 13;
+	private static final int STATE_COUNT = 14;
+
+	private static final int NONE = 0;
+	private static final int PRINT = 1;
+	private static final int EXECUTE = 2;
+	private static final int CLEAR = 3;
+	private static final int COLLECT = 4;
+	private static final int PARAM = 5;
+	private static final int ESC_DISPATCH = 6;
+	private static final int CSI_DISPATCH = 7;
+	private static final int HOOK = 8;
+	private static final int PUT = 9;
+	private static final int UNHOOK = 10;
+	private static final int OSC_START = 11;
+	private static final int OSC_PUT = 12;
+	private static final int OSC_END = 13;
+	private static final int IGNORE = 14;
+
+	/** table column for all code points at or above 0x80 */
+	private static final int HIGH = 0x80;
+	private static final int COLUMNS = HIGH + 1;
+	private static final int NO_CHANGE = 0xff;
+
+	/** transition table: (action << 8) | next state */
+	private static final short[] TABLE = createTable();
+	private static final byte[] ENTRY = createEntryActions();
+	private static final byte[] EXIT = createExitActions();
+
+	private final int[] params = new int[MAX_PARAMS];
+	private final int[] run;
+	private final char[] string = new char[MAX_STRING];
+	private int state;
+	private int paramCount;
+	private boolean paramStarted;
+	/** bit i is set when the parameter i is followed by a colon-separated sub-parameter */
+	private int subParams;
+	private int privateMarker;
+	private int intermediates;
+	private int stringLength;
+	private int runLength;
+	private char highSurrogate;
+	private final Utf8Decoder decoder = new Utf8Decoder();
+	private final int[] decoded;
+
+
+	public VTParser(int runCapacity)
+	{
+		run = new int[runCapacity];
+		decoded = new int[runCapacity + 1];
+	}
+
+
+	public VTParser()
+	{
+		this(4096);
+	}
+
+
+	/** resets the parser to the initial (ground) state */
+	public void reset()
+	{
+		state = GROUND;
+		runLength = 0;
+		highSurrogate = 0;
+		decoder.reset();
+		clear();
+	}
+
+
+	/** returns true if the parser is between sequences: not within an escape sequence or a multi-byte character */
+	public boolean isGround()
+	{
+		return (state == GROUND) && !decoder.isPending() && (highSurrogate == 0);
+	}
+
+
+	/** parses a chunk of UTF-16 text.  surrogate pairs split across chunks are handled. */
+	public void parse(char[] buf, int off, int len, Handler h)
+	{
+		int end = off + len;
+		for(int i=off; i<end; i++)
+		{
+			int c = buf[i];
+			if(highSurrogate != 0)
+			{
+				if((c >= 0xdc00) && (c <= 0xdfff))
+				{
+					c = Character.toCodePoint(highSurrogate, (char)c);
+					highSurrogate = 0;
+					feed(c, h);
+					continue;
+				}
+
+				// unpaired high surrogate
+				highSurrogate = 0;
+				feed(REPLACEMENT_CHARACTER, h);
+			}
+
+			if((c >= 0xd800) && (c <= 0xdbff))
+			{
+				highSurrogate = (char)c;
+			}
+			else if((c >= 0xdc00) && (c <= 0xdfff))
+			{
+				// unpaired low surrogate
+				feed(REPLACEMENT_CHARACTER, h);
+			}
+			else
+			{
+				feed(c, h);
+			}
+		}
+
+		flushRun(h);
+	}
+
+
+	/** parses a chunk of UTF-8 encoded bytes.  multi-byte sequences split across chunks are handled. */
+	public void parse(byte[] buf, int off, int len, Handler h)
+	{
+		int end = off + len;
+		while(off < end)
+		{
+			int sz = Math.min(end - off, run.length);
+			int n = decoder.decode(buf, off, sz, decoded, 0);
+			parse(decoded, 0, n, h);
+			off += sz;
+		}
+	}
+
+
+	/** parses a chunk of code points */
+	public void parse(int[] buf, int off, int len, Handler h)
+	{
+		int end = off + len;
+		int i = off;
+		while(i < end)
+		{
+			if(state == GROUND)
+			{
+				// fast path: a run of printable code points
+				int start = i;
+				while((i < end) && isPrintable(buf[i]))
+				{
+					i++;
+				}
+
+				if(i > start)
+				{
+					appendRun(buf, start, i, h);
+					continue;
+				}
+			}
+
+			feed(buf[i++], h);
+		}
+
+		flushRun(h);
+	}
+
+
+	private static boolean isPrintable(int c)
+	{
+		return (c >= 0x20) && (c != 0x7f);
+	}
+
+
+	/** appends the printable code points to the pending run, passing the long runs directly to the handler */
+	private void appendRun(int[] buf, int start, int end, Handler h)
+	{
+		if((runLength == 0) && (end - start >= run.length))
+		{
+			h.print(buf, start, end);
+			return;
+		}
+
+		while(start < end)
+		{
+			int sz = Math.min(end - start, run.length - runLength);
+			System.arraycopy(buf, start, run, runLength, sz);
+			runLength += sz;
+			start += sz;
+			if(runLength == run.length)
+			{
+				flushRun(h);
+			}
+		}
+	}
+
+
+	protected final void feed(int c, Handler h)
+	{
+		if(state == GROUND)
+		{
+			if(isPrintable(c))
+			{
+				// fast path: accumulate printable run
+				run[runLength++] = c;
+				if(runLength == run.length)
+				{
+					flushRun(h);
+				}
+				return;
+			}
+
+			flushRun(h);
+		}
+
+		int e = TABLE[state * COLUMNS + (c < HIGH ? c : HIGH)];
+		int action = e >>> 8;
+		int next = e & 0xff;
+
+		if(next == NO_CHANGE)
+		{
+			perform(action, c, h);
+		}
+		else
+		{
+			perform(EXIT[state], c, h);
+			perform(action, c, h);
+			state = next;
+			perform(ENTRY[next], c, h);
+		}
+	}
+
+
+	protected final void flushRun(Handler h)
+	{
+		if(runLength > 0)
+		{
+			int len = runLength;
+			runLength = 0;
+			h.print(run, 0, len);
+		}
+	}
+
+
+	private void perform(int action, int c, Handler h)
+	{
+		switch(action)
+		{
+		case NONE:
+		case IGNORE:
+			break;
+		case PRINT:
+			run[runLength++] = c;
+			if(runLength == run.length)
+			{
+				flushRun(h);
+			}
+			break;
+		case EXECUTE:
+			h.execute(c);
+			break;
+		case CLEAR:
+			clear();
+			break;
+		case COLLECT:
+			if((c >= 0x3c) && (c <= 0x3f))
+			{
+				privateMarker = c;
+			}
+			else
+			{
+				intermediates = (intermediates << 8) | c;
+			}
+			break;
+		case PARAM:
+			param(c);
+			break;
+		case ESC_DISPATCH:
+			h.escDispatch(this, c);
+			break;
+		case CSI_DISPATCH:
+			endParams();
+			h.csiDispatch(this, c);
+			break;
+		case HOOK:
+			endParams();
+			h.dcsHook(this, c);
+			break;
+		case PUT:
+			h.dcsPut(c);
+			break;
+		case UNHOOK:
+			h.dcsUnhook();
+			break;
+		case OSC_START:
+			stringLength = 0;
+			break;
+		case OSC_PUT:
+			putString(c);
+			break;
+		case OSC_END:
+			h.oscDispatch(this);
+			break;
+		}
+	}
+
+
+	private void clear()
+	{
+		paramCount = 0;
+		paramStarted = false;
+		subParams = 0;
+		privateMarker = 0;
+		intermediates = 0;
+	}
+
+
+	private void param(int c)
+	{
+		if((c == ';') || (c == ':'))
+		{
+			if(paramCount < MAX_PARAMS)
+			{
+				if(!paramStarted)
+				{
+					params[paramCount] = 0;
+				}
+				if(c == ':')
+				{
+					subParams |= (1 << paramCount);
+				}
+				paramCount++;
+			}
+			paramStarted = false;
+		}
+		else if(paramCount < MAX_PARAMS)
+		{
+			int v = paramStarted ? params[paramCount] : 0;
+			v = v * 10 + (c - '0');
+			if(v > MAX_PARAM_VALUE)
+			{
+				v = MAX_PARAM_VALUE;
+			}
+			params[paramCount] = v;
+			paramStarted = true;
+		}
+	}
+
+
+	private void endParams()
+	{
+		if(paramStarted)
+		{
+			if(paramCount < MAX_PARAMS)
+			{
+				paramCount++;
+			}
+			paramStarted = false;
+		}
+	}
+
+
+	private void putString(int c)
+	{
+		if(c < 0x10000)
+		{
+			if(stringLength < MAX_STRING)
+			{
+				string[stringLength++] = (char)c;
+			}
+		}
+		else if(stringLength < MAX_STRING - 1)
+		{
+			string[stringLength++] = Character.highSurrogate(c);
+			string[stringLength++] = Character.lowSurrogate(c);
+		}
+	}
+
+
+	/** returns the number of numeric parameters in the current sequence */
+	public int getParamCount()
+	{
+		return paramCount;
+	}
+
+
+	/** returns the numeric parameter value, or the specified default value if the parameter is omitted or zero */
+	public int getParam(int ix, int defaultValue)
+	{
+		if(ix < paramCount)
+		{
+			int v = params[ix];
+			if(v != 0)
+			{
+				return v;
+			}
+		}
+		return defaultValue;
+	}
+
+
+	/** returns true if the parameter is followed by a colon-separated sub-parameter, as in 38:2::r:g:b */
+	public boolean hasSubParam(int ix)
+	{
+		return (ix < paramCount - 1) && ((subParams & (1 << ix)) != 0);
+	}
+
+
+	/** returns the private marker character ('?', '>', '<', '=') or 0 */
+	public int getPrivateMarker()
+	{
+		return privateMarker;
+	}
+
+
+	/** returns the intermediate characters packed one per byte, the last one in the lowest byte, or 0 */
+	public int getIntermediates()
+	{
+		return intermediates;
+	}
+
+
+	/** returns the OSC string.  this method allocates a new String */
+	public String getString()
+	{
+		return new String(string, 0, stringLength);
+	}
+
+
+	/** describes the current sequence for diagnostic purposes */
+	public String describe(int ch)
+	{
+		SB sb = new SB();
+		if(privateMarker != 0)
+		{
+			sb.append((char)privateMarker);
+		}
+		for(int i=0; i<paramCount; i++)
+		{
+			if(i > 0)
+			{
+				sb.append(hasSubParam(i - 1) ? ':' : ';');
+			}
+			sb.append(params[i]);
+		}
+		for(int sh=24; sh>=0; sh-=8)
+		{
+			int c = (intermediates >>> sh) & 0xff;
+			if(c != 0)
+			{
+				sb.append((char)c);
+			}
+		}
+		sb.appendCodePoint(ch);
+		return sb.toString();
+	}
+
+
+	private static void set(short[] t, int state, int from, int to, int action, int next)
+	{
+		for(int c=from; c<=to; c++)
+		{
+			t[state * COLUMNS + c] = (short)((action << 8) | next);
+		}
+	}
+
+
+	/** C0 controls except the ones handled in any state */
+	private static void setC0(short[] t, int state, int action)
+	{
+		set(t, state, 0x00, 0x17, action, NO_CHANGE);
+		set(t, state, 0x19, 0x19, action, NO_CHANGE);
+		set(t, state, 0x1c, 0x1f, action, NO_CHANGE);
+	}
+
+
+	private static short[] createTable()
+	{
+		short[] t = new short[STATE_COUNT * COLUMNS];
+
+		for(int s=0; s<STATE_COUNT; s++)
+		{
+			set(t, s, 0x00, HIGH, IGNORE, NO_CHANGE);
+
+			// transitions from any state
+			set(t, s, 0x18, 0x18, EXECUTE, GROUND);
+			set(t, s, 0x1a, 0x1a, EXECUTE, GROUND);
+			set(t, s, 0x1b, 0x1b, NONE, ESCAPE);
+		}
+
+		setC0(t, GROUND, EXECUTE);
+		set(t, GROUND, 0x20, 0x7e, PRINT, NO_CHANGE);
+		set(t, GROUND, HIGH, HIGH, PRINT, NO_CHANGE);
+
+		setC0(t, ESCAPE, EXECUTE);
+		set(t, ESCAPE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE);
+		set(t, ESCAPE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+		set(t, ESCAPE, 'P', 'P', NONE, DCS_ENTRY);
+		set(t, ESCAPE, 'X', 'X', NONE, SOS_PM_APC_STRING);
+		set(t, ESCAPE, '[', '[', NONE, CSI_ENTRY);
+		set(t, ESCAPE, ']', ']', NONE, OSC_STRING);
+		set(t, ESCAPE, '^', '_', NONE, SOS_PM_APC_STRING);
+		set(t, ESCAPE, HIGH, HIGH, IGNORE, GROUND);
+
+		setC0(t, ESCAPE_INTERMEDIATE, EXECUTE);
+		set(t, ESCAPE_INTERMEDIATE, 0x20, 0x2f, COLLECT, NO_CHANGE);
+		set(t, ESCAPE_INTERMEDIATE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+		set(t, ESCAPE_INTERMEDIATE, HIGH, HIGH, IGNORE, GROUND);
+
+		setC0(t, CSI_ENTRY, EXECUTE);
+		set(t, CSI_ENTRY, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+		set(t, CSI_ENTRY, 0x30, 0x3b, PARAM, CSI_PARAM);
+		set(t, CSI_ENTRY, 0x3c, 0x3f, COLLECT, CSI_PARAM);
+		set(t, CSI_ENTRY, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+		set(t, CSI_ENTRY, HIGH, HIGH, IGNORE, GROUND);
+
+		setC0(t, CSI_PARAM, EXECUTE);
+		set(t, CSI_PARAM, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+		set(t, CSI_PARAM, 0x30, 0x3b, PARAM, NO_CHANGE);
+		set(t, CSI_PARAM, 0x3c, 0x3f, IGNORE, CSI_IGNORE);
+		set(t, CSI_PARAM, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+		set(t, CSI_PARAM, HIGH, HIGH, IGNORE, GROUND);
+
+		setC0(t, CSI_INTERMEDIATE, EXECUTE);
+		set(t, CSI_INTERMEDIATE, 0x20, 0x2f, COLLECT, NO_CHANGE);
+		set(t, CSI_INTERMEDIATE, 0x30, 0x3f, IGNORE, CSI_IGNORE);
+		set(t, CSI_INTERMEDIATE, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+		set(t, CSI_INTERMEDIATE, HIGH, HIGH, IGNORE, GROUND);
+
+		setC0(t, CSI_IGNORE, EXECUTE);
+		set(t, CSI_IGNORE, 0x40, 0x7e, NONE, GROUND);
+		set(t, CSI_IGNORE, HIGH, HIGH, IGNORE, GROUND);
+
+		set(t, DCS_ENTRY, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+		set(t, DCS_ENTRY, 0x30, 0x3b, PARAM, DCS_PARAM);
+		set(t, DCS_ENTRY, 0x3c, 0x3f, COLLECT, DCS_PARAM);
+		set(t, DCS_ENTRY, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+		set(t, DCS_PARAM, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+		set(t, DCS_PARAM, 0x30, 0x3b, PARAM, NO_CHANGE);
+		set(t, DCS_PARAM, 0x3c, 0x3f, IGNORE, DCS_IGNORE);
+		set(t, DCS_PARAM, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+		set(t, DCS_INTERMEDIATE, 0x20, 0x2f, COLLECT, NO_CHANGE);
+		set(t, DCS_INTERMEDIATE, 0x30, 0x3f, IGNORE, DCS_IGNORE);
+		set(t, DCS_INTERMEDIATE, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+		setC0(t, DCS_PASSTHROUGH, PUT);
+		set(t, DCS_PASSTHROUGH, 0x20, 0x7e, PUT, NO_CHANGE);
+		set(t, DCS_PASSTHROUGH, HIGH, HIGH, PUT, NO_CHANGE);
+
+		set(t, OSC_STRING, 0x07, 0x07, NONE, GROUND);
+		set(t, OSC_STRING, 0x20, 0x7f, OSC_PUT, NO_CHANGE);
+		set(t, OSC_STRING, HIGH, HIGH, OSC_PUT, NO_CHANGE);
+
+		return t;
+	}
+
+
+	private static byte[] createEntryActions()
+	{
+		byte[] a = new byte[STATE_COUNT];
+		a[ESCAPE] = CLEAR;
+		a[CSI_ENTRY] = CLEAR;
+		a[DCS_ENTRY] = CLEAR;
+		a[DCS_PASSTHROUGH] = HOOK;
+		a[OSC_STRING] = OSC_START;
+		return a;
+	}
+
+
+	private static byte[] createExitActions()
+	{
+		byte[] a = new byte[STATE_COUNT];
+		a[DCS_PASSTHROUGH] = UNHOOK;
+		a[OSC_STRING] = OSC_END;
+		return a;
+	}
+}
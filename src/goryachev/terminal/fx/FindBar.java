@@ -0,0 +1,120 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.fx;
+import goryachev.fx.CssStyle;
+import goryachev.fx.FX;
+import goryachev.fx.FxButton;
+import goryachev.fx.FxCheckBox;
+import goryachev.fx.HPane;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+
+
+/**
+ * Find Bar: the search field shown at the bottom of an FxTermView.
+ *
+ * ENTER selects the previous (older) match, SHIFT-ENTER the next one, ESCAPE closes the bar.
+ */
+public class FindBar
+	extends HPane
+{
+	public static final CssStyle PANE = new CssStyle("FindBar_PANE");
+	protected final FxTermView view;
+	public final TextField textField;
+	public final FxCheckBox caseSensitive;
+	public final FxCheckBox wholeWords;
+	public final FxCheckBox ignoreAccents;
+	protected final Label status;
+	
+	
+	public FindBar(FxTermView view)
+	{
+		super(5);
+		FX.style(this, PANE);
+		setPadding(2, 5);
+		
+		this.view = view;
+		
+		textField = new TextField();
+		textField.textProperty().addListener((s,p,c) -> find());
+		textField.addEventHandler(KeyEvent.KEY_PRESSED, this::handleKeyPressed);
+		
+		caseSensitive = new FxCheckBox("Match case");
+		caseSensitive.selectedProperty().addListener((s,p,c) -> find());
+		
+		wholeWords = new FxCheckBox("Whole words");
+		wholeWords.selectedProperty().addListener((s,p,c) -> find());
+		
+		ignoreAccents = new FxCheckBox("Ignore accents");
+		ignoreAccents.selectedProperty().addListener((s,p,c) -> find());
+		
+		status = new Label();
+		status.setMinWidth(100);
+		
+		fill(textField);
+		add(caseSensitive);
+		add(wholeWords);
+		add(ignoreAccents);
+		add(status);
+		add(new FxButton("▲", "Previous match", () -> view.selectMatch(true)));
+		add(new FxButton("▼", "Next match", () -> view.selectMatch(false)));
+		add(new FxButton("×", "Close", view::hideFindBar));
+		
+		// the keys typed here are not to reach the terminal
+		addEventHandler(KeyEvent.ANY, (ev) -> ev.consume());
+	}
+	
+	
+	public void focus()
+	{
+		textField.requestFocus();
+		textField.selectAll();
+	}
+	
+	
+	protected void find()
+	{
+		view.find(textField.getText(), caseSensitive.isSelected(), ignoreAccents.isSelected(), wholeWords.isSelected());
+	}
+	
+	
+	protected void handleKeyPressed(KeyEvent ev)
+	{
+		KeyCode c = ev.getCode();
+		switch(c)
+		{
+		case ENTER:
+			view.selectMatch(!ev.isShiftDown());
+			ev.consume();
+			break;
+		case ESCAPE:
+			view.hideFindBar();
+			ev.consume();
+			break;
+		}
+	}
+	
+	
+	/** shows the number of matches found so far, and the position of the selected one (starting with 1, 0 when none) */
+	public void updateStatus(int count, int selected, boolean complete)
+	{
+		String s;
+		if(count == 0)
+		{
+			s = complete ? "No matches" : "Searching...";
+		}
+		else
+		{
+			String n = complete ? String.valueOf(count) : (count + "+");
+			s = (selected > 0) ? (selected + " of " + n) : (n + " matches");
+		}
+		status.setText(s);
+	}
+	
+	
+	public void clearStatus()
+	{
+		status.setText(null);
+	}
+}
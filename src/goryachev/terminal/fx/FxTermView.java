@@ -3,16 +3,31 @@ package goryachev.terminal.fx;
 import goryachev.common.log.Log;
 import goryachev.common.util.CKit;
 import goryachev.common.util.D;
+import goryachev.common.util.ElasticLongArray;
+import goryachev.common.util.text.FindOperation;
 import goryachev.fx.CPane;
 import goryachev.fx.CssStyle;
 import goryachev.fx.FX;
+import goryachev.fx.FxApplication;
 import goryachev.fx.FxObject;
-import goryachev.terminal.ITermView;
-import goryachev.terminal.TermColor;
 import goryachev.terminal.ATermConnection;
+import goryachev.terminal.FlowControl;
 import goryachev.terminal.TermKey;
 import goryachev.terminal.TermTools;
+import goryachev.terminal.model.CellStyle;
+import goryachev.terminal.model.LinkDetector;
+import goryachev.terminal.model.ScreenLine;
+import goryachev.terminal.model.StyleTable;
+import goryachev.terminal.model.TermFrame;
+import goryachev.terminal.model.TermLink;
+import goryachev.terminal.model.TermModel;
+import goryachev.terminal.model.TermSearch;
+import java.util.Arrays;
+import java.util.Locale;
+import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javafx.animation.AnimationTimer;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.beans.property.ObjectProperty;
@@ -20,26 +35,32 @@ import javafx.beans.property.ReadOnlyProperty;
 import javafx.geometry.Bounds;
 import javafx.geometry.Insets;
 import javafx.geometry.Orientation;
+import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Cursor;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.ScrollBar;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
+import javafx.scene.transform.Transform;
+import javafx.stage.Window;
 import javafx.util.Duration;
 
 
 /**
- * FX Terminal View.
- * 
- * TODO split into FX view and TermScreenBuffer
+ * FX Terminal View: renders a TermModel.
  */
 public class FxTermView
 	extends CPane
-	implements ITermView
 {
 	public enum Status
 	{
@@ -52,58 +73,138 @@ public class FxTermView
 	protected static final Log log = Log.get("FxTermView");
 
 	public static final CssStyle PANE = new CssStyle("FxTermView_PANE");
+	public static final int DEFAULT_HISTORY_CAPACITY = 100_000;
+	/** the maximum duration of a synchronized update, in milliseconds */
+	public static final long SYNCHRONIZED_OUTPUT_TIMEOUT = 150;
+	/** the maximum frame rate while the output arrives faster than it can be rendered */
+	public static final int FLOOD_FRAME_RATE = 30;
+	/** the number of idle pulses after which the frame timer stops */
+	private static final int IDLE_FRAMES = 30;
 
-	public final TermScreenBuffer buffer;
-	protected final Object lock = new Object();
+	public final TermModel model;
+	protected final Object lock;
+	protected final StyleTable styles;
+	/** the copy of the model being painted, accessed in the FX thread only */
+	protected final TermFrame frame = new TermFrame();
 	protected final TermPalette palette = new TermPalette();
 	protected final Text proto = new Text();
-	protected final CellInfo cellInfo = new CellInfo();
 	protected final ScrollBar scrollBar;
 	protected final AtomicBoolean repaintRequested = new AtomicBoolean();
+	private final AtomicBoolean frameTimerRunning = new AtomicBoolean();
+	private final AnimationTimer frameTimer;
+	/** minimum interval between frames in nanoseconds, 0 for every pulse */
+	private volatile long frameInterval;
+	private long lastFrame;
+	private int idleFrames;
+	protected final GlyphAtlas atlas = new GlyphAtlas(GlyphAtlas.DEFAULT_SIZE);
+	private boolean glyphAtlasEnabled = true;
 	private Font font;
 	private TextMetrics metrics;
 	private Canvas canvas;
-	private int topLine;
+	/** the number of lines the viewport is scrolled back into history, 0 shows the live screen */
+	private int scrollOffset;
+	private boolean updatingScrollBar;
+	/** the model history counter the scroll offset is anchored to */
+	private long historyCounter;
+	/** the model reflow shift the scroll offset is anchored to */
+	private long reflowShift;
 	protected int rowCount;
 	protected int colCount;
-	private int curx = -1;
-	private int cury = -1;
 	private GraphicsContext gx;
+	private WritableImage scrollImage;
+	/** reusable buffer for the text of a run of cells */
+	private char[] runText = new char[256];
 	private Timeline cursorAnimation;
-	private boolean cursorEnabled = true;
 	private boolean cursorOn = true;
-	private boolean blink;
-	private boolean bold;
-	private boolean concealed;
-	private boolean italic;
-	private boolean reversed;
-	private boolean underscore;
+	/** the last key pressed has been handled, the character it types is not sent */
+	private boolean keyHandled;
 	private final FxObject<ATermConnection> connection = new FxObject<>();
 	private final FxObject<Status> status = new FxObject<>();
 	private ATermConnection.Listener listener;
+	private final TermModel.Listener modelListener;
+	private TermSearch search;
+	private final AtomicBoolean searchUpdateRequested = new AtomicBoolean();
+	private FindBar findBar;
+	/** the selected match, or -1 */
+	private long selectedMatch = -1;
+	/** the matches in the viewport: the row, the column, and the number of cells, the selected one is negative */
+	private ElasticLongArray visibleMatches = new ElasticLongArray(16);
+	private ElasticLongArray visibleMatchesPrev = new ElasticLongArray(16);
+	/** the highlighted cells, per row: 0 none, 1 match, 2 selected match */
+	private byte[][] highlights;
+	/** null when the link detection is disabled */
+	private LinkDetector linkDetector = new LinkDetector();
+	private Consumer<TermLink> linkHandler;
+	/** the link under the mouse pointer, underlined */
+	private TermLink hoverLink;
+	private int hoverY;
+	/** the cell under the mouse pointer, or -1 */
+	private int mouseX = -1;
+	private int mouseY = -1;
 			
 	
 	public FxTermView()
+	{
+		this(new TermModel(DEFAULT_HISTORY_CAPACITY));
+	}
+	
+	
+	public FxTermView(TermModel model)
 	{
 		FX.style(this, PANE);
 		
 		setMinWidth(0);
 		setMinHeight(0);
 		
-		buffer = new TermScreenBuffer();
+		this.model = model;
+		lock = model.getLock();
+		styles = model.getStyleTable();
+		
+		modelListener = new TermModel.Listener()
+		{
+			@Override
+			public void onModelChanged(TermModel m)
+			{
+				repaint();
+			}
+
+
+			@Override
+			public void onBell(TermModel m)
+			{
+				bell();
+			}
+		};
+		model.addListener(modelListener);
 		
 		scrollBar = new ScrollBar();
 		scrollBar.setOrientation(Orientation.VERTICAL);
+		scrollBar.setMin(0);
+		scrollBar.setMax(0);
+		scrollBar.valueProperty().addListener((s,p,c) -> handleScrollBar());
 		setRight(scrollBar);
 		
 		cursorAnimation = createCursorAnimation();
 		
+		frameTimer = new AnimationTimer()
+		{
+			@Override
+			public void handle(long now)
+			{
+				handleFrame(now);
+			}
+		};
+		
 		setFont(new Font("Courier New", 11.0));
 
 		setFocusTraversable(true);
 		addEventHandler(KeyEvent.KEY_PRESSED, this::handleKeyPressed);
 		addEventHandler(KeyEvent.KEY_TYPED, this::handleKeyTyped);
 		addEventHandler(MouseEvent.MOUSE_PRESSED, (ev) -> requestFocus());
+		addEventHandler(MouseEvent.MOUSE_MOVED, this::handleMouseMoved);
+		addEventHandler(MouseEvent.MOUSE_EXITED, this::handleMouseExited);
+		addEventHandler(MouseEvent.MOUSE_CLICKED, this::handleMouseClicked);
+		addEventHandler(ScrollEvent.SCROLL, this::handleScroll);
 		
 		connection.addListener((s,p,c) -> handleConnectionChange(p,c));
 		FX.onChange(this::handleSizeChange, true, widthProperty(), heightProperty());
@@ -112,7 +213,12 @@ public class FxTermView
 	
 	public void shutdown()
 	{
+		model.removeListener(modelListener);
+		model.getFlowControl().detach();
+		cancelSearch();
 		cursorAnimation.stop();
+		frameTimer.stop();
+		frameTimerRunning.set(false);
 	}
 	
 
@@ -136,16 +242,22 @@ public class FxTermView
 		
 		double w = getWidth() - m.getLeft() - m.getRight() - scrollBar.getWidth();
 		double h = getHeight() - m.getTop() - m.getBottom();
+		if(findBar != null)
+		{
+			h -= findBar.prefHeight(-1);
+		}
 		
+		int cols;
+		int rows;
 		if((w < 1) || (h < 1))
 		{
-			colCount = 80;
-			rowCount = 25;
+			cols = 80;
+			rows = 25;
 		}
 		else
 		{
-			colCount = CKit.floor(w / tm.cellWidth);
-			rowCount = CKit.floor(h / tm.lineHeight);
+			cols = CKit.floor(w / tm.cellWidth);
+			rows = CKit.floor(h / tm.lineHeight);
 		}
 		
 		Canvas cv = new Canvas(w, h);
@@ -159,10 +271,11 @@ public class FxTermView
 		gx = canvas.getGraphicsContext2D();
 		gx.setFill(getBackgroundColor());
 		gx.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		frame.invalidate();
 		
-		int dy = buffer.resize(colCount, rowCount);
-		log.debug("dy=%d cury=%d", dy, cury); // FIX
-		cury -= dy;
+		colCount = cols;
+		rowCount = rows;
+		model.setSize(cols, rows);
 		
 		ATermConnection conn = getConnection();
 		if(conn != null)
@@ -183,9 +296,21 @@ public class FxTermView
 	
 	protected void handleKeyPressed(KeyEvent ev)
 	{
+		keyHandled = false;
+		
+		if(ev.isShortcutDown() && ev.isShiftDown() && (ev.getCode() == KeyCode.F))
+		{
+			showFindBar();
+			keyHandled = true;
+			ev.consume();
+			return;
+		}
+		
 		ATermConnection conn = getConnection();
 		if(conn != null)
 		{
+			setScrollOffset(0);
+			
 			KeyCode c = ev.getCode();
 			TermKey k = translateKeyCode(c);
 			if(k != null)
@@ -193,6 +318,7 @@ public class FxTermView
 				try
 				{
 					conn.handleKey(k);
+					keyHandled = true;
 					ev.consume();
 				}
 				catch(Exception e)
@@ -209,11 +335,7 @@ public class FxTermView
 	// TODO or may be on cursor set
 	protected void resetCursorPhase()
 	{
-		synchronized(lock)
-		{
-			cursorOn = true;
-		}
-		
+		cursorOn = true;
 		cursorAnimation.stop();
 		cursorAnimation.play();
 	}
@@ -225,6 +347,8 @@ public class FxTermView
 		{
 		case BACK_SPACE:
 			return TermKey.BACKSPACE;
+		case DELETE:
+			return TermKey.DELETE;
 		case DOWN:
 			return TermKey.DOWN;
 		case ENTER:
@@ -265,20 +389,27 @@ public class FxTermView
 
 	protected void handleKeyTyped(KeyEvent ev)
 	{
+		if(keyHandled)
+		{
+			// the character typed by the key handled in handleKeyPressed()
+			keyHandled = false;
+			ev.consume();
+			return;
+		}
+		
 		ATermConnection conn = getConnection();
 		if(conn != null)
 		{
+			setScrollOffset(0);
+			
 			try
 			{
 				String s = ev.getCharacter();
 				if(s.length() == 1)
 				{
 					int c = s.codePointAt(0);
-					if(c >= 0x20)
-					{
-						conn.handleKey(c);
-						ev.consume();
-					}
+					conn.handleKey(c);
+					ev.consume();
 				}
 			}
 			catch(Exception e)
@@ -291,35 +422,113 @@ public class FxTermView
 	}
 	
 
-	@Override
-	public void bell()
+	protected void bell()
 	{
 		// TODO
 		D.print("<BELL>");
 	}
 	
 	
-	@Override
-	public void scroll(int top, int bottom, boolean up)
+	/** scrolls the viewport back into history by the specified number of lines, 0 shows the live screen */
+	public void setScrollOffset(int offset)
 	{
-		log.debug("scroll top=%d, bottom=%d, up=%s", top, bottom, up);
-		
 		synchronized(lock)
 		{
-			buffer.scroll(top, bottom, up);
+			updateAnchor();
+			offset = Math.max(0, Math.min(offset, model.getBuffer().getHistorySize()));
+			if(offset == scrollOffset)
+			{
+				return;
+			}
+			
+			scrollOffset = offset;
 		}
 		repaint();
 	}
 	
 	
-	@Override
+	public int getScrollOffset()
+	{
+		synchronized(lock)
+		{
+			updateAnchor();
+			return scrollOffset;
+		}
+	}
+	
+	
+	/** keeps the viewport anchored to the same content as the new lines are added to history, under lock */
+	protected void updateAnchor()
+	{
+		long hc = model.getHistoryCounter();
+		long shift = model.getReflowShift();
+		if(scrollOffset > 0)
+		{
+			// the lines renumbered by the background reflow are above the viewport
+			long added = (hc - historyCounter) - (shift - reflowShift);
+			// the history might have shrunk after the lines were reflowed
+			// the alternate screen has no history
+			scrollOffset = (int)Math.max(0, Math.min(scrollOffset + added, model.getBuffer().getHistorySize()));
+		}
+		historyCounter = hc;
+		reflowShift = shift;
+	}
+	
+	
+	protected void handleScroll(ScrollEvent ev)
+	{
+		double dy = ev.getDeltaY();
+		if(dy != 0.0)
+		{
+			int lines = (int)Math.round(dy / textMetrics().lineHeight);
+			if(lines == 0)
+			{
+				lines = (dy > 0) ? 1 : -1;
+			}
+			setScrollOffset(getScrollOffset() + lines);
+			ev.consume();
+		}
+	}
+	
+	
+	protected void handleScrollBar()
+	{
+		if(updatingScrollBar)
+		{
+			return;
+		}
+		
+		int max = (int)Math.round(scrollBar.getMax());
+		int val = (int)Math.round(scrollBar.getValue());
+		setScrollOffset(max - val);
+	}
+	
+	
+	/** updates the scroll bar to reflect the history size and the viewport position */
+	protected void updateScrollBar(int historySize, int offset)
+	{
+		updatingScrollBar = true;
+		try
+		{
+			double max = historySize;
+			double visible = (historySize == 0) ? 0.0 : (max * rowCount / (historySize + rowCount));
+			scrollBar.setMax(max);
+			scrollBar.setVisibleAmount(visible);
+			scrollBar.setValue(historySize - offset);
+		}
+		finally
+		{
+			updatingScrollBar = false;
+		}
+	}
+	
+	
 	public int getRowCount()
 	{
 		return rowCount;
 	}
 	
 	
-	@Override
 	public int getColumnCount()
 	{
 		return colCount;
@@ -404,385 +613,997 @@ public class FxTermView
 			double w = Math.ceil(b.getWidth());
 			double h = Math.ceil(b.getHeight());
 			
-			metrics = new TextMetrics(font, h, b.getMinY(), w);
+			proto.setText("i");
+			double wi = proto.getBoundsInLocal().getWidth();
+			proto.setText("W");
+			double ww = proto.getBoundsInLocal().getWidth();
+			boolean mono = (Math.abs(wi - ww) < 0.01) && (Math.abs(Math.ceil(ww) - w) < 0.01);
+			
+			metrics = new TextMetrics(font, h, b.getMinY(), w, mono);
 		}
 		return metrics;
 	}
 	
 	
-	@Override
-	public int draw(int x, int y, int codePoint)
+	protected Timeline createCursorAnimation()
 	{
-		synchronized(lock)
+		Timeline t = new Timeline(new KeyFrame(Duration.millis(500), (ev) -> blinkCursor()));
+		t.setCycleCount(Timeline.INDEFINITE);
+		t.play();
+		return t;
+	}
+	
+	
+	protected void blinkCursor()
+	{
+		cursorOn = !cursorOn;
+		repaint();
+	}
+	
+	
+	/** returns the default background color */
+	protected Color getBackgroundColor()
+	{
+		return palette.getBackground();
+	}
+	
+	
+	/** returns the default foreground color */
+	protected Color getForegroundColor()
+	{
+		return palette.getForeground();
+	}
+	
+	
+	protected Color getCursorBackground()
+	{
+		return Color.BLACK;
+	}
+	
+	
+	protected Color getCursorForeground()
+	{
+		return Color.WHITE;
+	}
+	
+	
+	public void dumpBufferAtCursor()
+	{
+//		ScreenLine t = textLine(cury);
+//		t.dump();
+	}
+	
+	
+	/** 
+	 * requests a repaint.  The screen is painted at most once per pulse (and no more often than
+	 * the frame rate cap allows), from whatever has been modified since the last frame.
+	 * This method never blocks.
+	 */
+	protected void repaint()
+	{
+		if(repaintRequested.compareAndSet(false, true))
 		{
-			// TODO unicode processing here
-			// TODO combining characters, double width, etc.
-			// for now, one code point per cell
-			if(x >= colCount)
+			if(frameTimerRunning.compareAndSet(false, true))
 			{
-				return -1;
+				FX.later(frameTimer::start);
 			}
+		}
+	}
+	
+	
+	protected void handleFrame(long now)
+	{
+		if(repaintRequested.get())
+		{
+			idleFrames = 0;
 			
-			String text = TermTools.codePointToString(codePoint);
-			Color bg = getBackgroundColor();
-			Color fg = getForegroundColor();
-
-			int flags = 0;
-			if(blink)
-			{
-				flags |= Flag.BLINK.bit(); // TODO blink must be handled in software!  cursor animation, opposite phase
-			}
-			if(bold)
+			FlowControl fc = model.getFlowControl();
+			long interval = frameInterval;
+			if(fc.isFlood())
 			{
-				flags |= Flag.BOLD.bit();
+				// render the latest state only, leaving more time to the emulator and the user input
+				interval = Math.max(interval, 1_000_000_000L / FLOOD_FRAME_RATE);
 			}
-			if(reversed)
+			
+			if((now - lastFrame) < interval)
 			{
-				flags |= Flag.REVERSE.bit();
+				return;
 			}
-			if(italic)
+			
+			long syncStart = model.getSynchronizedOutputStart();
+			if(syncStart != 0)
 			{
-				flags |= Flag.BOLD.bit();
+				if((System.nanoTime() - syncStart) < SYNCHRONIZED_OUTPUT_TIMEOUT * 1_000_000L)
+				{
+					// the application is still updating the screen
+					return;
+				}
+				log.debug("synchronized output timed out");
 			}
-			if(underscore)
+			
+			lastFrame = now;
+			redraw();
+			fc.rendered();
+		}
+		else if(++idleFrames > IDLE_FRAMES)
+		{
+			// nothing to paint: stop the timer so idle views do not keep the pulses running
+			frameTimerRunning.set(false);
+			frameTimer.stop();
+			
+			if(repaintRequested.get() && frameTimerRunning.compareAndSet(false, true))
 			{
-				flags |= Flag.UNDERSCORE.bit();
+				frameTimer.start();
 			}
-			
-			ScreenLine t = buffer.getScreenLine(y);
-			t.setCell(x, text, bg, fg, flags);
 		}
-
-		repaint();
-		return 1;
 	}
-
-
-	@Override
-	public void clearLine(int x, int y)
+	
+	
+	/** limits the frame rate, 0 paints on every pulse */
+	public void setMaxFrameRate(int fps)
 	{
-		synchronized(lock)
-		{
-			buffer.clearLineFrom(x, y);
-		}
-		repaint();
+		frameInterval = (fps <= 0) ? 0 : (1_000_000_000L / fps);
 	}
 	
 	
-	protected Timeline createCursorAnimation()
+	public int getMaxFrameRate()
 	{
-		Timeline t = new Timeline(new KeyFrame(Duration.millis(500), (ev) -> blinkCursor()));
-		t.setCycleCount(Timeline.INDEFINITE);
-		t.play();
-		return t;
+		long t = frameInterval;
+		return (t == 0) ? 0 : (int)(1_000_000_000L / t);
 	}
 	
 	
-	protected void blinkCursor()
+	/**
+	 * paints a frame.  The changes are copied from the model into the frame under the lock,
+	 * the painting happens outside of the lock so the emulator is never blocked by the renderer.
+	 */
+	protected void redraw()
 	{
+		if(repaintRequested.getAndSet(false) == false)
+		{
+			log.warn("repaint not requested");
+			return;
+		}
+	
+		// FIX remove
+		int count = 0;
+		int runs = 0;
+		long start = System.nanoTime();
+		
+		int offset;
 		synchronized(lock)
 		{
-			cursorOn = !cursorOn;
-			buffer.updateCursor(curx, cury, cursorOn && cursorEnabled);
+			updateAnchor();
+			offset = scrollOffset;
+			if(updateHighlights(model.getHistoryCounter() - offset))
+			{
+				frame.invalidate();
+			}
+			frame.update(model, offset, cursorOn);
 		}
 		
-		repaint();
+		// the links are detected in the newly copied rows only, outside of the lock
+		if((hoverLink != null) && (frame.getScroll() != 0))
+		{
+			// the underline has moved along with the pixels
+			int y = hoverY;
+			if((y >= frame.getScrollTop()) && (y < frame.getScrollBottom()))
+			{
+				y -= frame.getScroll();
+			}
+			frame.markChanged(y, hoverLink.start, hoverLink.end);
+			hoverLink = null;
+		}
+		frame.updateLinks(linkDetector);
+		updateHover();
+		
+		TextMetrics tm = textMetrics();
+		Insets m = getInsets();
+		double cw = tm.cellWidth;
+		double lineHeight = tm.lineHeight;
+		
+		colCount = frame.getColumnCount();
+		rowCount = frame.getRowCount();
+		scrollPixels(tm, m, frame.getScrollTop(), frame.getScrollBottom(), frame.getScroll());
+		
+		if(glyphAtlasEnabled)
+		{
+			atlas.prepare(tm, outputScale());
+		}
+		
+		// visit modified rows only
+		for(int y=frame.nextDirtyRow(0); y>=0; y=frame.nextDirtyRow(y + 1))
+		{
+			double posy = m.getTop() + y * lineHeight;
+			int cursorx = (frame.isCursorVisible() && (frame.getCursorY() == y)) ? frame.getCursorX() : -1;
+			byte[] hs = (highlights == null) ? null : highlights[y];
+			
+			// visit modified cells only, coalescing adjacent cells with the same style into runs
+			int x = frame.nextChangedCell(0, y);
+			while((x >= 0) && (x < colCount))
+			{
+				double posx = m.getLeft() + x * cw;
+				int st = frame.getStyle(x, y);
+				int end = x + 1;
+				
+				if(x == cursorx)
+				{
+					if(frame.isWideHead(x, y))
+					{
+						end++;
+					}
+					paintCell(tm, x, y, st, posx, posy, true);
+				}
+				else
+				{
+					int h = (hs == null) ? 0 : hs[x];
+					while((end < colCount) && (end != cursorx) && (frame.getStyle(end, y) == st) && frame.isChanged(end, y))
+					{
+						if((hs != null) && (hs[end] != h))
+						{
+							break;
+						}
+						end++;
+					}
+					
+					if((hoverLink != null) && (hoverY == y))
+					{
+						// the underline is painted in the link cells only
+						int b = (x < hoverLink.start) ? hoverLink.start : hoverLink.end;
+						if((b > x) && (b < end))
+						{
+							end = b;
+						}
+					}
+					
+					paintRun(tm, y, x, end, st, posx, posy);
+				}
+				
+				count += (end - x);
+				runs++;
+				x = frame.nextChangedCell(end, y);
+			}
+		}
+		
+		if(glyphAtlasEnabled)
+		{
+			atlas.flush();
+		}
+		
+		frame.clearChanges();
+		updateScrollBar(frame.getHistorySize(), offset);
+		
+		if(count > 1)
+		{
+			log.trace("redraw cells=%d runs=%d in %d ms", count, runs, (System.nanoTime() - start)/1_000_000L);
+		}
 	}
 	
 	
-	@Override
-	public void hideCursor()
+	/** 
+	 * shifts the rendered pixels of the rows between top (inclusive) and bottom (exclusive) by the specified
+	 * number of lines (up when positive), leaving the newly exposed rows to be painted.
+	 */
+	protected void scrollPixels(TextMetrics tm, Insets m, int top, int bottom, int lines)
 	{
-		synchronized(lock)
+		if(lines == 0)
 		{
-			cursorEnabled = false;
-			buffer.updateCursor(curx, cury, cursorOn && cursorEnabled);
+			return;
 		}
-		repaint();
+		
+		int rows = bottom - top - Math.abs(lines);
+		if(rows <= 0)
+		{
+			// all the lines in the area are new
+			return;
+		}
+		
+		double lh = tm.lineHeight;
+		double x = m.getLeft();
+		double w = colCount * tm.cellWidth;
+		double h = rows * lh;
+		double srcy = m.getTop() + (lines > 0 ? top + lines : top) * lh;
+		double dsty = m.getTop() + (lines > 0 ? top : top - lines) * lh;
+		
+		double scale = outputScale();
+		SnapshotParameters p = new SnapshotParameters();
+		p.setTransform(Transform.scale(scale, scale));
+		p.setViewport(new Rectangle2D(x * scale, srcy * scale, w * scale, h * scale));
+		
+		int iw = (int)Math.ceil(w * scale);
+		int ih = (int)Math.ceil(h * scale);
+		WritableImage im = scrollImage;
+		if((im == null) || (im.getWidth() < iw) || (im.getHeight() < ih))
+		{
+			im = null;
+		}
+		
+		im = canvas.snapshot(p, im);
+		scrollImage = im;
+		
+		gx.drawImage(im, 0, 0, iw, ih, x, dsty, w, h);
 	}
 	
 	
-	@Override
-	public void showCursor(int x, int y)
+	protected double outputScale()
 	{
-		synchronized(lock)
-		{			
-			if((curx != x) || (cury != y) || (!cursorEnabled))
+		if(getScene() != null)
+		{
+			Window w = getScene().getWindow();
+			if(w != null)
 			{
-				buffer.updateCursor(curx, cury, false);
-				
-				curx = x;
-				cury = y;
-				cursorEnabled = true;
+				return w.getOutputScaleY();
+			}
+		}
+		return 1.0;
+	}
+	
+	
+	/**
+	 * paints a run of cells [start, end) sharing the same style: a single background rectangle,
+	 * followed by as few fillText() calls as possible.  Glyphs which may not fit the cell grid
+	 * are painted individually.
+	 */
+	protected void paintRun(TextMetrics tm, int y, int start, int end, int st, double posx, double posy)
+	{
+		double cw = tm.cellWidth;
+		CellStyle cs = frame.getCellStyle(st);
+		
+		Color bg = getCellBackground(cs, start, y);
+		gx.setFill(bg);
+		gx.fillRect(posx, posy, (end - start) * cw, tm.lineHeight);
+		
+		Color fg = palette.getForeground(cs.fg);
+		
+		if(glyphAtlasEnabled)
+		{
+			for(int x=start; x<end; x++)
+			{
+				int cp = frame.getCodePoint(x, y);
+				if(cp > ' ')
+				{
+					double px = posx + (x - start) * cw;
+					// the atlas slots fit a single cell, and might be all in use by this frame
+					if((frame.getCluster(x, y) != null) || frame.isWideHead(x, y) || !atlas.paint(gx, cp, cs.flags, fg, px, posy))
+					{
+						gx.setFill(fg);
+						gx.setFont(tm.getFont(cs.flags));
+						paintGlyph(tm, x, y, px, posy - tm.baseline);
+					}
+				}
+			}
+			paintLinkUnderline(tm, y, start, end, posx, posy, fg);
+			return;
+		}
+		
+		gx.setFill(fg);
+		gx.setFont(tm.getFont(cs.flags));
+		
+		double ty = posy - tm.baseline;
+		int len = 0;
+		int segment = start;
+		int blanks = 0;
+		
+		if(runText.length < (end - start))
+		{
+			runText = new char[end - start];
+		}
+		
+		for(int x=start; x<end; x++)
+		{
+			int cp = frame.getCodePoint(x, y);
+			if(cp == 0)
+			{
+				cp = ' ';
+			}
+			
+			if(cp == ScreenLine.WIDE_TAIL)
+			{
+				// covered by the preceding glyph
+				paintText(tm, segment, len - blanks, posx, ty, start);
+				len = 0;
+				blanks = 0;
+			}
+			else if(tm.monospaced && isGridAligned(cp) && (frame.getCluster(x, y) == null))
+			{
+				if(len == 0)
+				{
+					segment = x;
+				}
 				
-				buffer.updateCursor(curx, cury, cursorOn);
+				runText[len++] = (char)cp;
+				blanks = (cp == ' ') ? blanks + 1 : 0;
 			}
 			else
 			{
-				return;
+				paintText(tm, segment, len - blanks, posx, ty, start);
+				len = 0;
+				blanks = 0;
+				
+				paintGlyph(tm, x, y, posx + (x - start) * cw, ty);
 			}
 		}
 		
-		repaint();
+		paintText(tm, segment, len - blanks, posx, ty, start);
+		paintLinkUnderline(tm, y, start, end, posx, posy, fg);
 	}
 	
 	
-	@Override
-	public void setForeground(TermColor c)
+	/** underlines the cells [start, end) which belong to the link under the mouse pointer */
+	private void paintLinkUnderline(TextMetrics tm, int y, int start, int end, double posx, double posy, Color fg)
 	{
-		synchronized(lock)
+		if((hoverLink != null) && (hoverY == y) && (start >= hoverLink.start) && (end <= hoverLink.end))
 		{
-			palette.setForeground(c);
+			gx.setFill(fg);
+			gx.fillRect(posx, posy + tm.lineHeight - 1, (end - start) * tm.cellWidth, 1);
 		}
 	}
 	
 	
-	@Override
-	public void setBackground(TermColor c)
+	/** paints a single glyph with its combining marks, if any, spanning one or two cells */
+	private void paintGlyph(TextMetrics tm, int x, int y, double posx, double ty)
 	{
-		synchronized(lock)
+		String s = frame.getCluster(x, y);
+		if(s == null)
 		{
-			palette.setBackground(c);
+			s = TermTools.codePointToString(frame.getCodePoint(x, y));
 		}
+		
+		double w = frame.isWideHead(x, y) ? 2 * tm.cellWidth : tm.cellWidth;
+		gx.fillText(s, posx, ty, w);
 	}
 	
 	
-	protected Color getBackgroundColor()
+	private void paintText(TextMetrics tm, int x, int len, double posx, double y, int start)
 	{
-		return palette.getBackground();
+		// leading blanks are painted too, but trailing ones are not
+		if(len > 0)
+		{
+			double cw = tm.cellWidth;
+			String s = new String(runText, 0, len);
+			gx.fillText(s, posx + (x - start) * cw, y, len * cw);
+		}
 	}
 	
 	
-	protected Color getForegroundColor()
+	/** 
+	 * returns true if the glyph is known to occupy exactly one cell in a monospaced font,
+	 * so it can be painted as a part of a larger string.
+	 */
+	protected static boolean isGridAligned(int cp)
 	{
-		return palette.getForeground();
+		if(cp < 0x20)
+		{
+			return false;
+		}
+		else if(cp < 0x0300)
+		{
+			// latin, latin-1, latin extended, IPA, spacing modifiers
+			return (cp < 0x7f) || (cp >= 0xa0);
+		}
+		else if(cp < 0x0370)
+		{
+			// combining diacritical marks
+			return false;
+		}
+		else if(cp < 0x0483)
+		{
+			// greek, cyrillic
+			return true;
+		}
+		return false;
 	}
 	
 	
-	protected Color getCursorBackground()
+	protected void paintCell(TextMetrics tm, int x, int y, int st, double posx, double posy, boolean isCursor)
 	{
-		return Color.BLACK;
+		int cp = frame.getCodePoint(x, y);
+		boolean wide = frame.isWideHead(x, y);
+		double cw = wide ? 2 * tm.cellWidth : tm.cellWidth;
+		double lineHeight = tm.lineHeight;
+		CellStyle cs = frame.getCellStyle(st);
+		
+		Color bg;
+		if(isCursor)
+		{
+			bg = getCursorBackground();
+		}
+		else
+		{
+			bg = getCellBackground(cs, x, y);
+		}
+		
+		gx.setFill(bg);
+		gx.fillRect(posx, posy, cw, lineHeight);
+		
+		if(cp > 0)
+		{
+			Color fg;
+			if(isCursor)
+			{
+				fg = getCursorForeground();
+			}
+			else
+			{
+				fg = palette.getForeground(cs.fg);
+			}
+			
+			if(!glyphAtlasEnabled || wide || (frame.getCluster(x, y) != null) || !atlas.paint(gx, cp, cs.flags, fg, posx, posy))
+			{
+				gx.setFill(fg);
+				gx.setFont(tm.getFont(cs.flags));
+				paintGlyph(tm, x, y, posx, posy - tm.baseline);
+			}
+			
+			paintLinkUnderline(tm, y, x, wide ? x + 2 : x + 1, posx, posy, fg);
+		}
 	}
 	
 	
-	protected Color getCursorForeground()
+	/** returns the background of the cell, which might be highlighted as a search match */
+	protected Color getCellBackground(CellStyle cs, int x, int y)
 	{
-		return Color.WHITE;
+		if(highlights != null)
+		{
+			switch(highlights[y][x])
+			{
+			case 1:
+				return getMatchBackground();
+			case 2:
+				return getSelectedMatchBackground();
+			}
+		}
+		return palette.getBackground(cs.bg);
 	}
 	
 	
-	public void dumpBufferAtCursor()
+	protected Color getMatchBackground()
 	{
-//		ScreenLine t = textLine(cury);
-//		t.dump();
+		return Color.YELLOW;
 	}
 	
 	
-	@Override
-	public void clearAttributes()
+	protected Color getSelectedMatchBackground()
 	{
-		synchronized(lock)
+		return Color.ORANGE;
+	}
+	
+	
+	/**
+	 * collects the search matches visible in the viewport starting with the specified line, under lock.
+	 * Returns true if the highlighted cells have changed relative to the viewport.
+	 */
+	protected boolean updateHighlights(long top)
+	{
+		ElasticLongArray ms = visibleMatchesPrev;
+		visibleMatchesPrev = visibleMatches;
+		visibleMatches = ms;
+		ms.clear();
+		
+		int rows = model.getRowCount();
+		int cols = model.getColumnCount();
+		TermSearch s = search;
+		if(s != null)
+		{
+			int count = s.getMatchCount();
+			for(int i=s.indexOf(top, 0); i<count; i++)
+			{
+				long m = s.getMatch(i);
+				long y = TermSearch.getLine(m) - top;
+				if(y >= rows)
+				{
+					break;
+				}
+				
+				long v = (y << 24) | (TermSearch.getColumn(m) << 12) | TermSearch.getCellCount(m);
+				ms.add((m == selectedMatch) ? -v : v);
+			}
+		}
+		
+		if((highlights == null) || (highlights.length != rows) || (highlights[0].length != cols))
+		{
+			highlights = (rows == 0) ? null : new byte[rows][cols];
+			visibleMatchesPrev.clear();
+			if(highlights == null)
+			{
+				return false;
+			}
+		}
+		else if(sameMatches(ms, visibleMatchesPrev))
 		{
-			blink = false;
-			bold = false;
-			concealed = false;
-			reversed = false;
-			underscore = false;
-			palette.reset();
+			return false;
+		}
+		
+		for(byte[] row: highlights)
+		{
+			Arrays.fill(row, (byte)0);
+		}
+		
+		for(int i=0; i<ms.size(); i++)
+		{
+			long v = ms.get(i);
+			byte h = 1;
+			if(v < 0)
+			{
+				v = -v;
+				h = 2;
+			}
 			
-			buffer.forceUpdateAll();
+			int y = (int)(v >>> 24);
+			int x = (int)(v >>> 12) & 0xfff;
+			int end = Math.min(cols, x + (int)(v & 0xfff));
+			if(x < end)
+			{
+				Arrays.fill(highlights[y], x, end, h);
+			}
 		}
-
-		repaint();
+		return true;
 	}
 	
 	
-	@Override
-	public void setBlink()
+	private static boolean sameMatches(ElasticLongArray a, ElasticLongArray b)
 	{
-		synchronized(lock)
+		int sz = a.size();
+		if(sz != b.size())
+		{
+			return false;
+		}
+		
+		for(int i=0; i<sz; i++)
 		{
-			blink = true;
+			if(a.get(i) != b.get(i))
+			{
+				return false;
+			}
 		}
+		return true;
 	}
 	
 	
-	@Override
-	public void setBold()
+	/** 
+	 * starts a background search of the screen and the history for the specified pattern,
+	 * cancelling the previous one.  A blank pattern clears the search.
+	 */
+	public void find(String pattern, boolean caseSensitive, boolean ignoreAccents, boolean wholeWords)
 	{
-		synchronized(lock)
+		cancelSearch();
+		
+		if(CKit.isNotBlank(pattern))
 		{
-			bold = true;
+			FindOperation op = new FindOperation(Locale.getDefault(), pattern, caseSensitive, ignoreAccents, wholeWords);
+			search = new TermSearch(model, op, (s) -> handleSearchUpdated());
+			search.start();
 		}
+		
+		updateFindStatus();
+		repaint();
 	}
 	
 	
-	@Override
-	public void setConcealed()
+	protected void cancelSearch()
 	{
-		synchronized(lock)
+		if(search != null)
 		{
-			concealed = true;
+			search.cancel();
+			search = null;
 		}
+		selectedMatch = -1;
 	}
 	
 	
-	public boolean isConcealed()
+	/** invoked in the search thread */
+	private void handleSearchUpdated()
 	{
-		return concealed;
+		if(searchUpdateRequested.compareAndSet(false, true))
+		{
+			FX.later(() ->
+			{
+				searchUpdateRequested.set(false);
+				updateFindStatus();
+				repaint();
+			});
+		}
 	}
 	
 	
-	public void setItalic()
+	protected void updateFindStatus()
 	{
-		synchronized(lock)
+		if(findBar != null)
 		{
-			italic = true;
+			TermSearch s = search;
+			if(s == null)
+			{
+				findBar.clearStatus();
+			}
+			else
+			{
+				int sel = 0;
+				if(selectedMatch >= 0)
+				{
+					int ix = s.indexOf(TermSearch.getLine(selectedMatch), TermSearch.getColumn(selectedMatch));
+					if((ix < s.getMatchCount()) && (s.getMatch(ix) == selectedMatch))
+					{
+						sel = ix + 1;
+					}
+				}
+				findBar.updateStatus(s.getMatchCount(), sel, s.isComplete());
+			}
 		}
 	}
 	
 	
-	@Override
-	public void setReversed()
+	/** selects the previous (older) or the next search match, scrolling it into view */
+	public void selectMatch(boolean older)
 	{
+		TermSearch s = search;
+		if(s == null)
+		{
+			return;
+		}
+		
+		int count = s.getMatchCount();
+		if(count == 0)
+		{
+			return;
+		}
+		
+		long hc;
+		int ix;
 		synchronized(lock)
 		{
-			reversed = true;
+			updateAnchor();
+			hc = model.getHistoryCounter();
+			
+			if(selectedMatch < 0)
+			{
+				// start from the viewport
+				long top = hc - scrollOffset;
+				ix = older ? s.indexOf(top + rowCount, 0) - 1 : s.indexOf(top, 0);
+			}
+			else
+			{
+				ix = s.indexOf(TermSearch.getLine(selectedMatch), TermSearch.getColumn(selectedMatch));
+				if(older)
+				{
+					ix--;
+				}
+				else if((ix < count) && (s.getMatch(ix) == selectedMatch))
+				{
+					ix++;
+				}
+			}
+		}
+		
+		// wrap around
+		if(ix < 0)
+		{
+			ix = count - 1;
+		}
+		else if(ix >= count)
+		{
+			ix = 0;
+		}
+		
+		long m = s.getMatch(ix);
+		selectedMatch = m;
+		
+		int row = (int)(TermSearch.getLine(m) - hc) + getScrollOffset();
+		if((row < 0) || (row >= rowCount))
+		{
+			setScrollOffset(rowCount / 2 - (int)(TermSearch.getLine(m) - hc));
 		}
+		
+		updateFindStatus();
+		repaint();
 	}
 	
 	
-	@Override
-	public void setUnderscore()
+	public void showFindBar()
 	{
-		synchronized(lock)
+		if(findBar == null)
 		{
-			underscore = true;
+			findBar = new FindBar(this);
+			setBottom(findBar);
+			handleSizeChange();
 		}
+		findBar.focus();
 	}
 	
 	
-	protected void repaint()
+	public void hideFindBar()
 	{
-		if(repaintRequested.compareAndSet(false, true))
+		if(findBar != null)
 		{
-			repaintRequested.set(true);
-			
-			FX.later(this::redraw);
-			Thread.yield();
+			setBottom(null);
+			findBar = null;
+			cancelSearch();
+			handleSizeChange();
+			repaint();
 		}
+		requestFocus();
 	}
 	
 	
-	protected void redraw()
+	/** 
+	 * enables or disables painting the glyphs from the glyph atlas, falling back to fillText()
+	 * when disabled.
+	 */
+	public void setGlyphAtlasEnabled(boolean on)
 	{
-		if(repaintRequested.getAndSet(false) == false)
+		glyphAtlasEnabled = on;
+		frame.invalidate();
+		repaint();
+	}
+	
+	
+	public boolean isGlyphAtlasEnabled()
+	{
+		return glyphAtlasEnabled;
+	}
+	
+	
+	/** enables or disables detecting the URLs, file references, and stack trace frames in the visible lines */
+	public void setLinkDetectionEnabled(boolean on)
+	{
+		if(on != isLinkDetectionEnabled())
 		{
-			log.warn("repaint not requested");
+			linkDetector = on ? new LinkDetector() : null;
+			frame.invalidate();
+			repaint();
+		}
+	}
+	
+	
+	public boolean isLinkDetectionEnabled()
+	{
+		return (linkDetector != null);
+	}
+	
+	
+	/** 
+	 * sets the handler invoked when a link is clicked with the shortcut key down,
+	 * or null to use the default handler (see openLink())
+	 */
+	public void setLinkHandler(Consumer<TermLink> h)
+	{
+		linkHandler = h;
+	}
+	
+	
+	/** the default link handler opens URLs and existing files in the desktop applications */
+	protected void openLink(TermLink k)
+	{
+		String uri;
+		switch(k.type)
+		{
+		case URL:
+			uri = k.target;
+			break;
+		case FILE:
+			File f = new File(k.target);
+			if(!f.isFile())
+			{
+				log.debug("file not found: %s", k);
+				return;
+			}
+			uri = f.toURI().toString();
+			break;
+		default:
+			log.debug("no handler: %s", k);
 			return;
 		}
+		
+		try
+		{
+			FxApplication.getInstance().getHostServices().showDocument(uri);
+		}
+		catch(Throwable e)
+		{
+			// not an FxApplication
+			log.error(e);
+		}
+	}
 	
-		// FIX remove
-		int count = 0;
-		long start = System.nanoTime();
-
-		synchronized(lock)
+	
+	/** returns the cell under the mouse pointer, or null if outside of the grid */
+	protected int[] getCell(MouseEvent ev)
+	{
+		if(canvas == null)
 		{
-			TextMetrics tm = textMetrics();
-			Insets m = getInsets();
-			double cw = tm.cellWidth;
-			double lineHeight = tm.lineHeight;
-			
-			for(int y=0; y<rowCount; y++)
+			return null;
+		}
+		
+		TextMetrics tm = textMetrics();
+		Insets m = getInsets();
+		Point2D p = canvas.sceneToLocal(ev.getSceneX(), ev.getSceneY());
+		double x = p.getX() - m.getLeft();
+		double y = p.getY() - m.getTop();
+		if((x < 0) || (y < 0))
+		{
+			return null;
+		}
+		
+		int cx = (int)(x / tm.cellWidth);
+		int cy = (int)(y / tm.lineHeight);
+		if((cx >= colCount) || (cy >= rowCount))
+		{
+			return null;
+		}
+		return new int[] { cx, cy };
+	}
+	
+	
+	protected void handleMouseMoved(MouseEvent ev)
+	{
+		int[] c = getCell(ev);
+		mouseX = (c == null) ? -1 : c[0];
+		mouseY = (c == null) ? -1 : c[1];
+		if(updateHover())
+		{
+			repaint();
+		}
+	}
+	
+	
+	protected void handleMouseExited(MouseEvent ev)
+	{
+		mouseX = -1;
+		mouseY = -1;
+		if(updateHover())
+		{
+			repaint();
+		}
+	}
+	
+	
+	protected void handleMouseClicked(MouseEvent ev)
+	{
+		if((ev.getButton() == MouseButton.PRIMARY) && ev.isShortcutDown() && ev.isStillSincePress())
+		{
+			int[] c = getCell(ev);
+			TermLink k = (c == null) ? null : frame.getLink(c[0], c[1]);
+			if(k != null)
 			{
-				ScreenLine t = buffer.getScreenLine(y);
-				if(t.isModified())
+				if(linkHandler == null)
 				{
-					double posy = m.getTop() + y * tm.lineHeight;
-					
-//					if(t.isForceUpdate())
-//					{
-//						// attempt to limit the canvas queue
-//						// https://bugs.java.com/bugdatabase/view_bug.do?bug_id=8092801
-//						// https://github.com/kasemir/org.csstudio.display.builder/issues/174
-//						// https://stackoverflow.com/questions/18097404/how-can-i-free-canvas-memory
-//						// https://bugs.openjdk.java.net/browse/JDK-8103438
-//						gx.clearRect(m.getLeft(), posy, cw * colCount, lineHeight);
-//					}
-
-					for(int x=0; x<colCount; x++)
-					{
-						// FIX next updated cell?
-						CellInfo inf = t.getUpdatedCell(cellInfo, x);
-						if(inf != null)
-						{
-							// paint modified cell
-							
-							double posx = m.getLeft() + x * tm.cellWidth;
-							boolean isCursor = cursorEnabled && cursorOn && (curx == x) && (cury == y);
-							
-//							if(!t.isForceUpdate())
-//							{
-//								// attempt to limit the canvas queue
-//								// https://bugs.java.com/bugdatabase/view_bug.do?bug_id=8092801
-//								// https://github.com/kasemir/org.csstudio.display.builder/issues/174
-//								// https://stackoverflow.com/questions/18097404/how-can-i-free-canvas-memory
-//								// https://bugs.openjdk.java.net/browse/JDK-8103438
-//								gx.clearRect(posx, posy, cw, lineHeight);
-//							}
-							Color bg;
-							if(isCursor)
-							{
-								bg = getCursorBackground();
-							}
-							else
-							{
-								bg = inf.bg;
-								if(bg == null)
-								{
-									bg = getBackgroundColor();
-								}
-							}
-							
-							gx.setFill(bg);
-							gx.fillRect(posx, posy, cw, lineHeight);
-							
-							String text = inf.text;
-							if(text != null)
-							{
-								Color fg;
-								if(isCursor)
-								{
-									fg = getCursorForeground();
-								}
-								else
-								{
-									fg = inf.fg;
-									if(fg == null)
-									{
-										fg = getForegroundColor();
-									}
-								}
-								
-								gx.setFill(fg);
-								gx.setFont(tm.font);
-								// TODO cell width from flags
-								gx.fillText(text, posx, posy - tm.baseline, cw);
-							}
-							
-							count++;
-						}
-					}
-					
-					t.clearModified();
+					openLink(k);
+				}
+				else
+				{
+					linkHandler.accept(k);
 				}
+				ev.consume();
 			}
 		}
+	}
+	
+	
+	/** 
+	 * looks up the link under the mouse pointer, marking the cells to be repainted if it has changed.
+	 * Returns true if the hover link has changed.
+	 */
+	protected boolean updateHover()
+	{
+		TermLink k = frame.getLink(mouseX, mouseY);
+		if(k == hoverLink)
+		{
+			return false;
+		}
 		
-		if(count > 1)
+		if(hoverLink != null)
+		{
+			frame.markChanged(hoverY, hoverLink.start, hoverLink.end);
+		}
+		
+		hoverLink = k;
+		hoverY = mouseY;
+		
+		if(k != null)
 		{
-			log.trace("redraw cells=%d in %d ms", count, (System.nanoTime() - start)/1_000_000L);
+			frame.markChanged(hoverY, k.start, k.end);
 		}
+		setCursor(k == null ? null : Cursor.HAND);
+		return true;
 	}
 	
 	
@@ -847,7 +1668,8 @@ public class FxTermView
 			}
 			
 			conn.setListener(listener);
-			conn.connect(this);
+			conn.setFlowControl(model.getFlowControl());
+			conn.connect(model);
 		}
 	}
 	
@@ -0,0 +1,409 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.fx;
+import goryachev.common.log.Log;
+import goryachev.terminal.TermTools;
+import java.util.Arrays;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Transform;
+
+
+/**
+ * Glyph Atlas.
+ *
+ * Rasterizes each (code point, bold/italic, foreground color) combination once into a cell-sized slot
+ * of a shared WritableImage, so the cells can be painted with drawImage() sub-rectangle blits instead
+ * of fillText() which performs text layout on every call.
+ *
+ * When the atlas fills up, the slots are reused in approximate LRU order (the clock algorithm: a slot
+ * referenced since the last sweep gets a second chance).  The slots used by the current frame are
+ * never reused: the canvas renders drawImage() from the final state of the atlas image at the next
+ * pulse.  When all the slots are in use, paint() fails and the caller falls back to fillText().
+ *
+ * The new glyphs are drawn into the slots by flush() at the end of the frame, all of them with
+ * a single snapshot of the scratch canvas.
+ *
+ * The atlas must only be accessed from the FX application thread.
+ */
+public class GlyphAtlas
+{
+	protected static final Log log = Log.get("GlyphAtlas");
+	/** atlas image width and height, in pixels */
+	public static final int DEFAULT_SIZE = 1024;
+	private static final long EMPTY = -1L;
+	private final int size;
+	private final Canvas scratch = new Canvas();
+	private final SnapshotParameters params = new SnapshotParameters();
+	private TextMetrics metrics;
+	private double scale;
+	private WritableImage image;
+	private WritableImage scratchImage;
+	private int slotWidth;
+	private int slotHeight;
+	private int columns;
+	private int capacity;
+	private int count;
+	private int hand;
+	private long[] slotKeys;
+	private boolean[] referenced;
+	/** the frame which last used each slot */
+	private int[] slotFrames;
+	private int frame;
+	// the glyphs to be drawn by flush()
+	private int pendingCount;
+	private int[] pendingSlots;
+	private int[] pendingCodePoints;
+	private int[] pendingFlags;
+	private Color[] pendingColors;
+	// open addressing hash table: key -> slot
+	private long[] hashKeys;
+	private int[] hashSlots;
+	private int mask;
+	private Color lastColor;
+	private int lastArgb;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long snapshots;
+	
+	
+	public GlyphAtlas(int size)
+	{
+		this.size = size;
+		params.setFill(Color.TRANSPARENT);
+	}
+	
+	
+	/**
+	 * prepares the atlas for painting a frame with the specified metrics and output scale,
+	 * discarding all the glyphs if either has changed.
+	 */
+	public void prepare(TextMetrics tm, double scale)
+	{
+		frame++;
+		
+		if((tm != metrics) || (scale != this.scale))
+		{
+			metrics = tm;
+			this.scale = scale;
+			
+			slotWidth = Math.max(1, (int)Math.ceil(tm.cellWidth * scale));
+			slotHeight = Math.max(1, (int)Math.ceil(tm.lineHeight * scale));
+			columns = Math.max(1, size / slotWidth);
+			int rows = Math.max(1, size / slotHeight);
+			capacity = columns * rows;
+			
+			image = new WritableImage(columns * slotWidth, rows * slotHeight);
+			// the new glyphs are laid out in the scratch canvas the same way as in the atlas
+			scratch.setWidth(columns * slotWidth / scale);
+			scratch.setHeight(rows * slotHeight / scale);
+			params.setTransform(Transform.scale(scale, scale));
+			scratchImage = null;
+			
+			slotKeys = new long[capacity];
+			referenced = new boolean[capacity];
+			slotFrames = new int[capacity];
+			pendingSlots = new int[capacity];
+			pendingCodePoints = new int[capacity];
+			pendingFlags = new int[capacity];
+			pendingColors = new Color[capacity];
+			
+			int sz = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			hashKeys = new long[sz];
+			hashSlots = new int[sz];
+			mask = sz - 1;
+			
+			clear();
+			
+			log.debug("slot=%dx%d capacity=%d", slotWidth, slotHeight, capacity);
+		}
+	}
+	
+	
+	/** discards all the glyphs */
+	public void clear()
+	{
+		if(hashKeys != null)
+		{
+			Arrays.fill(hashKeys, EMPTY);
+		}
+		count = 0;
+		hand = 0;
+		
+		if(pendingColors != null)
+		{
+			Arrays.fill(pendingColors, null);
+		}
+		pendingCount = 0;
+	}
+	
+	
+	/** 
+	 * paints the glyph into the cell whose top left corner is at (x, y).
+	 * Returns false if all the slots are in use by the current frame, and the glyph has not been painted.
+	 */
+	public boolean paint(GraphicsContext gx, int codePoint, int flags, Color fg, double x, double y)
+	{
+		int slot = slotFor(codePoint, flags, fg);
+		if(slot < 0)
+		{
+			return false;
+		}
+		
+		int sx = (slot % columns) * slotWidth;
+		int sy = (slot / columns) * slotHeight;
+		gx.drawImage(image, sx, sy, slotWidth, slotHeight, x, y, metrics.cellWidth, metrics.lineHeight);
+		return true;
+	}
+	
+	
+	protected int slotFor(int codePoint, int flags, Color fg)
+	{
+		if(fg != lastColor)
+		{
+			lastColor = fg;
+			lastArgb = toArgb(fg);
+		}
+		
+		int style = TextMetrics.fontStyle(flags);
+		long key = ((long)lastArgb << 32) | ((long)style << 21) | codePoint;
+		
+		int ix = find(key);
+		if(ix >= 0)
+		{
+			hits++;
+			int slot = hashSlots[ix];
+			referenced[slot] = true;
+			slotFrames[slot] = frame;
+			return slot;
+		}
+		
+		int slot;
+		if(count < capacity)
+		{
+			slot = count++;
+		}
+		else
+		{
+			slot = evict();
+			if(slot < 0)
+			{
+				return -1;
+			}
+		}
+		
+		misses++;
+		slotKeys[slot] = key;
+		referenced[slot] = true;
+		slotFrames[slot] = frame;
+		insert(key, slot);
+		
+		int p = pendingCount++;
+		pendingSlots[p] = slot;
+		pendingCodePoints[p] = codePoint;
+		pendingFlags[p] = flags;
+		pendingColors[p] = fg;
+		return slot;
+	}
+	
+	
+	/** 
+	 * clock: finds a slot not used by the current frame, skipping the slots referenced since the last sweep.
+	 * Returns -1 if all the slots are used by the current frame.
+	 */
+	private int evict()
+	{
+		for(int i=2*capacity; i>0; i--)
+		{
+			int slot = hand;
+			hand = (hand + 1) % capacity;
+			
+			if(slotFrames[slot] == frame)
+			{
+				continue;
+			}
+			else if(referenced[slot])
+			{
+				referenced[slot] = false;
+				continue;
+			}
+			
+			remove(slotKeys[slot]);
+			evictions++;
+			return slot;
+		}
+		return -1;
+	}
+	
+	
+	/** draws the glyphs added by the current frame into their slots, must be called at the end of the frame */
+	public void flush()
+	{
+		int n = pendingCount;
+		if(n == 0)
+		{
+			return;
+		}
+		
+		TextMetrics tm = metrics;
+		double sw = slotWidth / scale;
+		double sh = slotHeight / scale;
+		int rows = (n + columns - 1) / columns;
+		
+		GraphicsContext g = scratch.getGraphicsContext2D();
+		g.clearRect(0, 0, columns * sw, rows * sh);
+		for(int i=0; i<n; i++)
+		{
+			double x = (i % columns) * sw;
+			double y = (i / columns) * sh;
+			
+			// the glyph must not spill over into the neighbouring slots
+			g.save();
+			g.beginPath();
+			g.rect(x, y, sw, sh);
+			g.clip();
+			g.setFill(pendingColors[i]);
+			g.setFont(tm.getFont(pendingFlags[i]));
+			g.fillText(TermTools.codePointToString(pendingCodePoints[i]), x, y - tm.baseline, tm.cellWidth);
+			g.restore();
+		}
+		
+		params.setViewport(new Rectangle2D(0, 0, columns * slotWidth, rows * slotHeight));
+		scratchImage = scratch.snapshot(params, scratchImage);
+		snapshots++;
+		
+		PixelReader rd = scratchImage.getPixelReader();
+		PixelWriter wr = image.getPixelWriter();
+		for(int i=0; i<n; i++)
+		{
+			int slot = pendingSlots[i];
+			wr.setPixels((slot % columns) * slotWidth, (slot / columns) * slotHeight, slotWidth, slotHeight, rd, (i % columns) * slotWidth, (i / columns) * slotHeight);
+		}
+		
+		Arrays.fill(pendingColors, 0, n, null);
+		pendingCount = 0;
+	}
+	
+	
+	private static int toArgb(Color c)
+	{
+		int a = (int)Math.round(c.getOpacity() * 255);
+		int r = (int)Math.round(c.getRed() * 255);
+		int g = (int)Math.round(c.getGreen() * 255);
+		int b = (int)Math.round(c.getBlue() * 255);
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+	
+	
+	private int hash(long key)
+	{
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+	
+	
+	private int find(long key)
+	{
+		int ix = hash(key);
+		for(;;)
+		{
+			long k = hashKeys[ix];
+			if(k == key)
+			{
+				return ix;
+			}
+			else if(k == EMPTY)
+			{
+				return -1;
+			}
+			ix = (ix + 1) & mask;
+		}
+	}
+	
+	
+	private void insert(long key, int slot)
+	{
+		int ix = hash(key);
+		while(hashKeys[ix] != EMPTY)
+		{
+			ix = (ix + 1) & mask;
+		}
+		hashKeys[ix] = key;
+		hashSlots[ix] = slot;
+	}
+	
+	
+	private void remove(long key)
+	{
+		int ix = find(key);
+		if(ix < 0)
+		{
+			return;
+		}
+		
+		// backward shift deletion keeps the probe sequences intact without tombstones
+		hashKeys[ix] = EMPTY;
+		int j = ix;
+		for(;;)
+		{
+			j = (j + 1) & mask;
+			long k = hashKeys[j];
+			if(k == EMPTY)
+			{
+				break;
+			}
+			
+			int h = hash(k);
+			boolean stays = (ix <= j) ? ((ix < h) && (h <= j)) : ((ix < h) || (h <= j));
+			if(!stays)
+			{
+				hashKeys[ix] = k;
+				hashSlots[ix] = hashSlots[j];
+				hashKeys[j] = EMPTY;
+				ix = j;
+			}
+		}
+	}
+	
+	
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	
+	public int size()
+	{
+		return count;
+	}
+	
+	
+	public long getHits()
+	{
+		return hits;
+	}
+	
+	
+	public long getMisses()
+	{
+		return misses;
+	}
+	
+	
+	public long getEvictions()
+	{
+		return evictions;
+	}
+	
+	
+	/** returns the number of the scratch canvas snapshots taken to draw the new glyphs */
+	public long getSnapshots()
+	{
+		return snapshots;
+	}
+}
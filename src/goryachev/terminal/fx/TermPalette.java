@@ -1,77 +1,135 @@
 // Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
 package goryachev.terminal.fx;
-import goryachev.terminal.TermColor;
+import goryachev.terminal.model.ColorCode;
 import javafx.scene.paint.Color;
 
 
 /**
- * Terminal Palette Manager.
+ * Terminal Palette: maps the ColorCodes stored in the screen model to Colors.
+ *
+ * The indexed colors come from a precomputed table of 256 entries: the 16 ANSI colors,
+ * the 6x6x6 color cube, and the 24 step grayscale ramp.  The direct (truecolor) values
+ * are kept in a small direct-mapped cache, so painting does not create a Color per cell.
+ *
+ * This class is not thread safe.
  */
 public class TermPalette
 {
-	private Color fg;
-	private Color bg;
+	private static final int CACHE_SIZE = 1024;
+	private static final int[] CUBE = { 0x00, 0x5f, 0x87, 0xaf, 0xd7, 0xff };
+	private final Color[] indexed = createIndexedColors();
+	/** ColorCodes of the cached direct colors, 0 for an empty slot */
+	private final int[] cacheCodes = new int[CACHE_SIZE];
+	private final Color[] cacheColors = new Color[CACHE_SIZE];
+	private Color foreground = Color.BLACK;
+	private Color background = Color.WHITE;
 	
 	
 	public TermPalette()
 	{
-		reset();
 	}
 	
 	
-	public void reset()
+	private static Color[] createIndexedColors()
 	{
-		fg = Color.BLACK;
-		bg = Color.WHITE;
+		Color[] cs = new Color[256];
+		
+		// standard
+		cs[0] = Color.BLACK;
+		cs[1] = Color.RED;
+		cs[2] = Color.GREEN;
+		cs[3] = Color.YELLOW;
+		cs[4] = Color.BLUE;
+		cs[5] = Color.MAGENTA;
+		cs[6] = Color.CYAN;
+		cs[7] = Color.WHITE;
+		
+		// bright
+		cs[8] = Color.rgb(0x7f, 0x7f, 0x7f);
+		cs[9] = Color.rgb(0xff, 0x00, 0x00);
+		cs[10] = Color.rgb(0x00, 0xff, 0x00);
+		cs[11] = Color.rgb(0xff, 0xff, 0x00);
+		cs[12] = Color.rgb(0x5c, 0x5c, 0xff);
+		cs[13] = Color.rgb(0xff, 0x00, 0xff);
+		cs[14] = Color.rgb(0x00, 0xff, 0xff);
+		cs[15] = Color.rgb(0xff, 0xff, 0xff);
+		
+		// 6x6x6 cube
+		for(int i=0; i<216; i++)
+		{
+			cs[16 + i] = Color.rgb(CUBE[i / 36], CUBE[(i / 6) % 6], CUBE[i % 6]);
+		}
+		
+		// grayscale
+		for(int i=0; i<24; i++)
+		{
+			int v = 8 + i * 10;
+			cs[232 + i] = Color.rgb(v, v, v);
+		}
+		return cs;
 	}
 	
 	
-	protected Color translateColor(TermColor c)
+	/** returns the default background color */
+	public Color getBackground()
 	{
-		switch(c)
-		{
-		case BLACK:
-			return Color.BLACK;
-		case BLUE:
-			return Color.BLUE;
-		case CYAN:
-			return Color.CYAN;
-		case GREEN:
-			return Color.GREEN;
-		case MAGENTA:
-			return Color.MAGENTA;
-		case RED:
-			return Color.RED;
-		case WHITE:
-			return Color.WHITE;
-		case YELLOW:
-			return Color.YELLOW;
-		default:
-			throw new Error("?" + c);
-		}
+		return background;
 	}
 	
 	
-	public void setBackground(TermColor c)
+	/** returns the default foreground color */
+	public Color getForeground()
 	{
-		bg = translateColor(c);
+		return foreground;
 	}
 	
 	
-	public void setForeground(TermColor c)
+	public Color getBackground(int code)
 	{
-		fg = translateColor(c);
+		return (code == ColorCode.DEFAULT) ? background : toColor(code);
 	}
 	
 	
-	public Color getBackground()
+	public Color getForeground(int code)
 	{
-		return bg;
+		return (code == ColorCode.DEFAULT) ? foreground : toColor(code);
 	}
 	
 	
-	public Color getForeground()
+	/** returns the indexed color 0 ... 255 */
+	public Color getIndexedColor(int index)
+	{
+		return indexed[index & 0xff];
+	}
+	
+	
+	protected Color toColor(int code)
+	{
+		if(ColorCode.isIndexed(code))
+		{
+			return indexed[ColorCode.getIndex(code)];
+		}
+		else if(ColorCode.isRGB(code))
+		{
+			return directColor(code);
+		}
+		return foreground;
+	}
+	
+	
+	protected Color directColor(int code)
 	{
-		return fg;
+		int h = code * 0x9e3779b9;
+		int ix = (h >>> 22) & (CACHE_SIZE - 1);
+		if(cacheCodes[ix] == code)
+		{
+			return cacheColors[ix];
+		}
+		
+		int rgb = ColorCode.getRGB(code);
+		Color c = Color.rgb((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+		cacheCodes[ix] = code;
+		cacheColors[ix] = c;
+		return c;
 	}
-}
\ No newline at end of file
+}
@@ -1,6 +1,9 @@
 // Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
 package goryachev.terminal.fx;
+import goryachev.terminal.model.Flag;
 import javafx.scene.text.Font;
+import javafx.scene.text.FontPosture;
+import javafx.scene.text.FontWeight;
 
 
 /**
@@ -12,13 +15,51 @@ public class TextMetrics
 	public final double lineHeight;
 	public final double baseline;
 	public final double cellWidth;
+	/** all the glyphs have the same width, allowing a run of characters to be painted with a single fillText() */
+	public final boolean monospaced;
+	/** regular, bold, italic, and bold italic variants of the font */
+	private final Font[] variants = new Font[4];
 	
 	
-	public TextMetrics(Font f, double lineHeight, double baseline, double cellWidth)
+	public TextMetrics(Font f, double lineHeight, double baseline, double cellWidth, boolean monospaced)
 	{
 		this.font = f;
 		this.lineHeight = lineHeight;
 		this.baseline = baseline;
 		this.cellWidth = cellWidth;
+		this.monospaced = monospaced;
+		variants[0] = f;
+	}
+	
+	
+	/** returns the font variant (bold, italic) corresponding to the specified Flag bits */
+	public Font getFont(int flags)
+	{
+		int ix = fontStyle(flags);
+		Font f = variants[ix];
+		if(f == null)
+		{
+			FontWeight w = ((ix & 1) == 0) ? FontWeight.NORMAL : FontWeight.BOLD;
+			FontPosture p = ((ix & 2) == 0) ? FontPosture.REGULAR : FontPosture.ITALIC;
+			f = Font.font(font.getFamily(), w, p, font.getSize());
+			variants[ix] = f;
+		}
+		return f;
+	}
+	
+	
+	/** returns the index of the font variant: 1 = bold, 2 = italic, 3 = bold italic */
+	public static int fontStyle(int flags)
+	{
+		int rv = 0;
+		if((flags & Flag.BOLD.bit()) != 0)
+		{
+			rv |= 1;
+		}
+		if((flags & Flag.ITALIC.bit()) != 0)
+		{
+			rv |= 2;
+		}
+		return rv;
 	}
 }
@@ -1,17 +1,19 @@
-// Copyright © 2020-2024 Andy Goryachev <andy@goryachev.com>
-package goryachev.terminal.fx;
-import javafx.scene.paint.Color;
-
-
-/**
- * Cell Info.
- */
-public class CellInfo
-{
-	public int x;
-	public int y;
-	public String text;
-	public Color bg;
-	public Color fg;
-	public short flags;
-}
+// Copyright © 2020-2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+
+
+/**
+ * Cell Info.
+ */
+public class CellInfo
+{
+	public int x;
+	public int y;
+	public int codePoint;
+	public String text;
+	/** background ColorCode */
+	public int bg;
+	/** foreground ColorCode */
+	public int fg;
+	public short flags;
+}
@@ -0,0 +1,50 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+
+
+/**
+ * Immutable Cell Style: foreground and background ColorCodes and attribute flags.
+ */
+public final class CellStyle
+{
+	public final int fg;
+	public final int bg;
+	public final short flags;
+	
+	
+	public CellStyle(int fg, int bg, int flags)
+	{
+		this.fg = fg;
+		this.bg = bg;
+		this.flags = (short)flags;
+	}
+	
+	
+	@Override
+	public boolean equals(Object x)
+	{
+		if(x == this)
+		{
+			return true;
+		}
+		else if(x instanceof CellStyle s)
+		{
+			return
+				(flags == s.flags) &&
+				(fg == s.fg) &&
+				(bg == s.bg);
+		}
+		return false;
+	}
+	
+	
+	@Override
+	public int hashCode()
+	{
+		int h = CellStyle.class.hashCode();
+		h = h * 31 + fg;
+		h = h * 31 + bg;
+		h = h * 31 + flags;
+		return h;
+	}
+}
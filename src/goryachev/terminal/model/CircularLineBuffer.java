@@ -0,0 +1,129 @@
+// Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.CircularBuffer;
+
+
+/**
+ * Circular Line Buffer.
+ * 
+ * A capacity-bounded ring of lines with O(1) append and O(1) random access,
+ * used to keep the scrollback history.  When the buffer is full, appending a line
+ * evicts the oldest one.
+ */
+public class CircularLineBuffer
+	implements IScreenBuffer
+{
+	protected final StyleTable styles;
+	protected final CircularBuffer<ScreenLine> buffer;
+	private int columnCount;
+
+	
+	public CircularLineBuffer(StyleTable styles, int capacity)
+	{
+		this.styles = styles;
+		buffer = new CircularBuffer<ScreenLine>(capacity);
+	}
+
+
+	@Override
+	public int size()
+	{
+		return buffer.size();
+	}
+	
+	
+	@Override
+	public int getCapacity()
+	{
+		return buffer.getCapacity();
+	}
+
+
+	@Override
+	public ScreenLine get(int ix)
+	{
+		if(ix < 0)
+		{
+			return null;
+		}
+		return buffer.get(ix);
+	}
+
+
+	@Override
+	public void add(ScreenLine item)
+	{
+		buffer.add(item);
+	}
+	
+	
+	/** 
+	 * appends a line, moving it into the buffer.
+	 * @return the evicted oldest line when the buffer is full, or null
+	 */
+	public ScreenLine push(ScreenLine item)
+	{
+		return buffer.add(item);
+	}
+
+
+	/** 
+	 * inserts a line before the oldest one.
+	 * @throws ArrayIndexOutOfBoundsException when the buffer is full
+	 */
+	public void insertFirst(ScreenLine item)
+	{
+		buffer.insertFirst(item);
+	}
+	
+	
+	/** removes and returns the oldest line */
+	public ScreenLine removeFirst()
+	{
+		return buffer.removeFirst();
+	}
+	
+	
+	/** removes and returns the most recent line */
+	public ScreenLine removeLast()
+	{
+		return buffer.removeLast();
+	}
+
+
+	@Override
+	public void scroll(int top, int bottom, boolean up)
+	{
+		if(up)
+		{
+			ScreenLine s = buffer.get(top);
+			for(int i=top+1; i<bottom; i++)
+			{
+				buffer.set(i - 1, buffer.get(i));
+			}
+			s.reset(columnCount);
+			buffer.set(bottom - 1, s);
+		}
+		else
+		{
+			ScreenLine s = buffer.get(bottom - 1);
+			for(int i=bottom-1; i>top; --i)
+			{
+				buffer.set(i, buffer.get(i - 1));
+			}
+			s.reset(columnCount);
+			buffer.set(top, s);
+		}
+	}
+	
+	
+	/** 
+	 * the column count is used for the new lines only (the history lines are reflowed by TermScreenBuffer),
+	 * and the row count does not affect the capacity.
+	 */
+	@Override
+	public void updateSize(int colCount, int rowCount)
+	{
+		columnCount = colCount;
+	}
+}
@@ -0,0 +1,92 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.terminal.TermColor;
+
+
+/**
+ * Color Code: a terminal color encoded in an int, so the screen model does not depend on any UI toolkit.
+ * The renderer maps the codes to the actual colors with its palette.
+ * <pre>
+ * 0x00000000             the default foreground or background
+ * 0x01000000 | index     indexed color 0 ... 255
+ * 0x02000000 | 0xrrggbb  direct color
+ * </pre>
+ */
+public class ColorCode
+{
+	public static final int DEFAULT = 0;
+	private static final int TYPE_MASK = 0xff000000;
+	private static final int INDEXED = 0x01000000;
+	private static final int RGB = 0x02000000;
+	
+	
+	public static int indexed(int index)
+	{
+		return INDEXED | (index & 0xff);
+	}
+	
+	
+	public static int rgb(int red, int green, int blue)
+	{
+		return RGB | ((red & 0xff) << 16) | ((green & 0xff) << 8) | (blue & 0xff);
+	}
+	
+	
+	public static boolean isDefault(int code)
+	{
+		return code == DEFAULT;
+	}
+	
+	
+	public static boolean isIndexed(int code)
+	{
+		return (code & TYPE_MASK) == INDEXED;
+	}
+	
+	
+	public static boolean isRGB(int code)
+	{
+		return (code & TYPE_MASK) == RGB;
+	}
+	
+	
+	/** returns the palette index of an indexed color */
+	public static int getIndex(int code)
+	{
+		return code & 0xff;
+	}
+	
+	
+	/** returns the 0xrrggbb value of a direct color */
+	public static int getRGB(int code)
+	{
+		return code & 0xffffff;
+	}
+	
+	
+	/** returns the code of the standard ANSI color (indexes 0 ... 7) */
+	public static int of(TermColor c)
+	{
+		switch(c)
+		{
+		case BLACK:
+			return indexed(0);
+		case RED:
+			return indexed(1);
+		case GREEN:
+			return indexed(2);
+		case YELLOW:
+			return indexed(3);
+		case BLUE:
+			return indexed(4);
+		case MAGENTA:
+			return indexed(5);
+		case CYAN:
+			return indexed(6);
+		case WHITE:
+			return indexed(7);
+		default:
+			throw new Error("?" + c);
+		}
+	}
+}
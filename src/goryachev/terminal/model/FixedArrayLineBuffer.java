@@ -1,5 +1,5 @@
 // Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
-package goryachev.terminal.fx;
+package goryachev.terminal.model;
 
 
 /**
@@ -8,18 +8,20 @@ package goryachev.terminal.fx;
 public class FixedArrayLineBuffer
 	implements IScreenBuffer
 {
+	protected final StyleTable styles;
 	protected final int columnCount;
 	protected ScreenLine[] lines;
 	
 	
-	public FixedArrayLineBuffer(int rowCount, int columnCount)
+	public FixedArrayLineBuffer(StyleTable styles, int rowCount, int columnCount)
 	{
+		this.styles = styles;
 		this.lines = new ScreenLine[rowCount];
 		this.columnCount = columnCount;
 		
 		for(int i=0; i<rowCount; i++)
 		{
-			lines[i] = new ScreenLine(columnCount);
+			lines[i] = new ScreenLine(styles, columnCount);
 		}
 	}
 	
@@ -55,23 +57,26 @@ public class FixedArrayLineBuffer
 	@Override
 	public void scroll(int top, int bottom, boolean up)
 	{
-		// TODO check
+		int h = bottom - top;
+		if(h <= 0)
+		{
+			return;
+		}
 		
+		// the line scrolled out is cleared and reused
 		if(up)
 		{
-			for(int i=top+1; i<bottom; i++)
-			{
-				lines[i - 1] = lines[i];
-			}
-			lines[bottom - 1] = new ScreenLine(columnCount); 
+			ScreenLine s = lines[top];
+			System.arraycopy(lines, top + 1, lines, top, h - 1);
+			s.reset(columnCount);
+			lines[bottom - 1] = s;
 		}
 		else
 		{
-			for(int i=bottom-1; i>=top; --i)
-			{
-				lines[i] = lines[i - 1];
-			}
-			lines[top] = new ScreenLine(columnCount);
+			ScreenLine s = lines[bottom - 1];
+			System.arraycopy(lines, top, lines, top + 1, h - 1);
+			s.reset(columnCount);
+			lines[top] = s;
 		}
 	}
 	
@@ -105,7 +110,7 @@ public class FixedArrayLineBuffer
 				
 				for(int i=size(); i<rowCount; i++)
 				{
-					ls[i] = new ScreenLine(colCount);
+					ls[i] = new ScreenLine(styles, colCount);
 				}
 			}
 			
@@ -1,5 +1,5 @@
 // Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
-package goryachev.terminal.fx;
+package goryachev.terminal.model;
 
 
 /**
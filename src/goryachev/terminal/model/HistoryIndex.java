@@ -0,0 +1,300 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.text.AccentedCharacters;
+import java.util.Arrays;
+
+
+/**
+ * History Index: the scrollback history organized into blocks of BLOCK_SIZE lines, each with
+ * a Bloom filter of the trigrams found in its lines.  The filters are reused once all the lines
+ * of a block have been evicted.
+ *
+ * The emulator thread only counts the appended lines: the lines do not change once in the history,
+ * so the index catches up incrementally, a limited number of lines at a time, whenever a search
+ * needs it (see update()).  The scrolling output is not slowed down, and the lines evicted before
+ * anybody searched are never indexed.
+ *
+ * The filters are blocked: all the bits of a trigram fall within a single 64 bit word selected by
+ * its hash, so adding a trigram costs one multiplication and one memory access, several times less
+ * than a general purpose Bloom filter computing a MurmurHash3 per bit position (BloomFilterMurmur3).
+ *
+ * The characters are folded to lower case without accents before hashing, so the same index
+ * serves the case sensitive and insensitive searches.  A block whose filter lacks any trigram
+ * of the query cannot contain a match and need not be scanned.
+ *
+ * The lines are numbered in the order they were appended, starting with 0, the same way as
+ * TermScreenBuffer numbers them.
+ * Access must be externally synchronized.
+ */
+public class HistoryIndex
+{
+	/** the number of lines in a block */
+	public static final int BLOCK_SIZE = 256;
+	/** the number of 64 bit words in a block filter, about 16 bits per trigram for 4096 distinct trigrams */
+	private static final int WORDS = 1024;
+	private static final int WORD_SHIFT = 32 - 10;
+	private final long[][] filters;
+	/** the block each filter belongs to */
+	private final long[] filterBlocks;
+	private long lineCount;
+	/** the lines below this one have been indexed or evicted */
+	private long indexed;
+	private char[] text = new char[256];
+	
+	
+	public HistoryIndex(int capacity)
+	{
+		// all the blocks with lines still in history, the last one possibly incomplete
+		filters = new long[(capacity + BLOCK_SIZE - 1) / BLOCK_SIZE + 1][];
+		filterBlocks = new long[filters.length];
+		Arrays.fill(filterBlocks, -1L);
+	}
+	
+	
+	/** returns the total number of lines appended */
+	public long getLineCount()
+	{
+		return lineCount;
+	}
+	
+	
+	/** invoked when a line has been appended to the history */
+	public void appended()
+	{
+		lineCount++;
+	}
+	
+	
+	/** 
+	 * discards the filters after the history lines have been reflowed and renumbered,
+	 * the lines are indexed again by update().
+	 * @param lineCount the number of the line to be appended next
+	 */
+	public void reset(long lineCount)
+	{
+		this.lineCount = lineCount;
+		Arrays.fill(filterBlocks, -1L);
+		indexed = 0;
+	}
+	
+	
+	/** 
+	 * indexes up to the specified number of the history lines appended since the last update.
+	 * Returns true if the index is up to date.
+	 */
+	public boolean update(CircularLineBuffer history, int maxLines)
+	{
+		long first = lineCount - history.size();
+		if(indexed < first)
+		{
+			indexed = first;
+		}
+		
+		long end = Math.min(lineCount, indexed + maxLines);
+		for( ; indexed<end; indexed++)
+		{
+			index(indexed, history.get((int)(indexed - first)));
+		}
+		return (indexed == lineCount);
+	}
+	
+	
+	private void index(long n, ScreenLine line)
+	{
+		long block = n / BLOCK_SIZE;
+		int ix = (int)(block % filters.length);
+		long[] f = filters[ix];
+		if(f == null)
+		{
+			f = new long[WORDS];
+			filters[ix] = f;
+			filterBlocks[ix] = block;
+		}
+		else if(filterBlocks[ix] != block)
+		{
+			Arrays.fill(f, 0L);
+			filterBlocks[ix] = block;
+		}
+		
+		if(line.isEmpty())
+		{
+			return;
+		}
+		
+		int len = extractText(line);
+		char[] t = text;
+		for(int i=2; i<len; i++)
+		{
+			int h = hash(t[i - 2], t[i - 1], t[i]);
+			f[h >>> WORD_SHIFT] |= mask(h);
+		}
+	}
+	
+	
+	/**
+	 * copies the folded text of the line, in the same way the search sees it:
+	 * the empty cells are blanks, and the trailing blanks are omitted.
+	 */
+	private int extractText(ScreenLine line)
+	{
+		int[] cps = line.getCodePoints();
+		int w = Math.min(line.getWidth(), cps.length);
+		boolean clusters = line.hasClusters();
+		while((w > 0) && (cps[w - 1] <= ' ') && (!clusters || (line.getCluster(w - 1) == null)))
+		{
+			w--;
+		}
+		
+		if(text.length < (w * 2))
+		{
+			text = new char[w * 2];
+		}
+		
+		char[] t = text;
+		int len = 0;
+		for(int x=0; x<w; x++)
+		{
+			int c = cps[x];
+			if(clusters && (line.getCluster(x) != null))
+			{
+				len = appendCluster(len, line.getCluster(x));
+				t = text;
+			}
+			else if(c == ScreenLine.WIDE_TAIL)
+			{
+				continue;
+			}
+			else if(c < 0x80)
+			{
+				// ascii fast path
+				if(c == 0)
+				{
+					c = ' ';
+				}
+				else if((c >= 'A') && (c <= 'Z'))
+				{
+					c += ('a' - 'A');
+				}
+				t[len++] = (char)c;
+			}
+			else if(c < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+			{
+				t[len++] = fold((char)c);
+			}
+			else
+			{
+				t[len++] = Character.highSurrogate(c);
+				t[len++] = Character.lowSurrogate(c);
+			}
+		}
+		return len;
+	}
+	
+	
+	private int appendCluster(int len, String s)
+	{
+		int sz = len + s.length();
+		if(sz > text.length)
+		{
+			// leaving room for the remaining cells
+			text = Arrays.copyOf(text, sz + text.length);
+		}
+		
+		for(int i=0; i<s.length(); i++)
+		{
+			text[len++] = fold(s.charAt(i));
+		}
+		return len;
+	}
+	
+	
+	/** 
+	 * returns true if the block might have lines containing the query (see getQueryKeys()),
+	 * or if its lines have not been indexed yet.
+	 */
+	public boolean mayContain(long block, int[] keys)
+	{
+		if(keys == null)
+		{
+			return true;
+		}
+		
+		// the lines of the block appended so far must be indexed
+		if(indexed < Math.min(lineCount, (block + 1) * BLOCK_SIZE))
+		{
+			return true;
+		}
+		
+		int ix = (int)(block % filters.length);
+		long[] f = filters[ix];
+		if((f == null) || (filterBlocks[ix] != block))
+		{
+			return true;
+		}
+		
+		for(int h: keys)
+		{
+			long m = mask(h);
+			if((f[h >>> WORD_SHIFT] & m) != m)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	/** returns the block containing the specified line */
+	public static long getBlock(long line)
+	{
+		return Math.floorDiv(line, BLOCK_SIZE);
+	}
+	
+	
+	/**
+	 * returns the trigram hashes of the query, or null if the query is too short to be looked up
+	 * in the index.
+	 */
+	public static int[] getQueryKeys(String query)
+	{
+		if((query == null) || (query.length() < 3))
+		{
+			return null;
+		}
+		
+		int[] rv = new int[query.length() - 2];
+		for(int i=0; i<rv.length; i++)
+		{
+			rv[i] = hash(fold(query.charAt(i)), fold(query.charAt(i + 1)), fold(query.charAt(i + 2)));
+		}
+		return rv;
+	}
+	
+	
+	/** three bit positions within the word, taken from the hash bits not used to select the word */
+	private static long mask(int h)
+	{
+		return (1L << h) | (1L << (h >>> 6)) | (1L << (h >>> 12));
+	}
+	
+	
+	/** multiplicative hash of the trigram, the high bits are the best mixed */
+	private static int hash(char a, char b, char c)
+	{
+		long k = ((long)a << 32) | ((long)b << 16) | c;
+		return (int)((k * 0x9e3779b97f4a7c15L) >>> 32);
+	}
+	
+	
+	/** folds the character to lower case, removing the accent if any */
+	private static char fold(char c)
+	{
+		if(c < 0x80)
+		{
+			return ((c >= 'A') && (c <= 'Z')) ? (char)(c + ('a' - 'A')) : c;
+		}
+		
+		c = AccentedCharacters.removeAccent(Character.toLowerCase(c));
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+}
@@ -0,0 +1,219 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.CList;
+import goryachev.common.util.ElasticLongArray;
+import java.util.BitSet;
+
+
+/**
+ * Line Reflow: joins the soft-wrapped lines into logical lines and wraps them again at a new width.
+ *
+ * The source lines are added in order, and may have different widths.  A line which is not
+ * wrapped and fits the new width is reused as is, the others are copied into new lines.
+ * A double width glyph which does not fit at the end of a line moves to the next one.
+ *
+ * Not thread safe.
+ */
+class LineReflow
+{
+	private final StyleTable styles;
+	private final int width;
+	private final CList<ScreenLine> lines = new CList<>();
+	/** the id of the first source line of the logical line, for each output line */
+	private final ElasticLongArray sources = new ElasticLongArray(256);
+	/** the output line being filled, or null to start a new logical line */
+	private ScreenLine current;
+	private int pos;
+	private long source = -1;
+	/** the previous source line ends with a blank cell, possibly left by a glyph which did not fit */
+	private boolean pendingBlank;
+	private int cursorRow = -1;
+	private int cursorX;
+	
+	
+	public LineReflow(StyleTable styles, int width)
+	{
+		this.styles = styles;
+		this.width = Math.max(1, width);
+	}
+	
+	
+	/**
+	 * adds the next source line with the specified id.
+	 * @param cursor the cursor column if the cursor is on this line, or -1
+	 */
+	public void add(ScreenLine src, long id, int cursor)
+	{
+		boolean wrapped = src.isWrapped();
+		int n = src.getContentWidth();
+		
+		if(current == null)
+		{
+			source = id;
+			if(!wrapped && (n <= width) && (cursor < width))
+			{
+				// nothing to reflow
+				if(cursor >= 0)
+				{
+					setCursor(lines.size(), cursor);
+				}
+				lines.add(src);
+				sources.add(id);
+				return;
+			}
+			newLine();
+		}
+		
+		if(pendingBlank)
+		{
+			pendingBlank = false;
+			if(!((n > 1) && (src.getCodePoint(1) == ScreenLine.WIDE_TAIL)))
+			{
+				appendBlank();
+			}
+		}
+		
+		if(wrapped && (n > 0) && isBlank(src, n - 1))
+		{
+			// might be the room left by a double width glyph which continues on the next line
+			n--;
+			pendingBlank = true;
+		}
+		
+		append(src, n, cursor);
+		
+		if(cursor >= n)
+		{
+			// past the end of the content
+			int c = pos + (cursor - n);
+			setCursor(lines.size() - 1 + (c / width), c % width);
+		}
+		
+		if(!wrapped)
+		{
+			current = null;
+			pendingBlank = false;
+		}
+	}
+	
+	
+	/** appends the cells [0, len) of the source line */
+	private void append(ScreenLine src, int len, int cursor)
+	{
+		int p = 0;
+		while(p < len)
+		{
+			int sz = Math.min(len - p, width - pos);
+			if((sz > 0) && (p + sz < len) && (src.getCodePoint(p + sz) == ScreenLine.WIDE_TAIL))
+			{
+				// the glyph does not fit at the end of the line
+				sz--;
+			}
+			
+			if(sz == 0)
+			{
+				if(pos == 0)
+				{
+					// a double width glyph never fits a single column line
+					p += 2;
+				}
+				else
+				{
+					wrap();
+				}
+				continue;
+			}
+			
+			if((cursor >= p) && (cursor < p + sz))
+			{
+				setCursor(lines.size() - 1, pos + (cursor - p));
+			}
+			
+			current.copyCells(src, p, p + sz, pos);
+			pos += sz;
+			p += sz;
+		}
+	}
+	
+	
+	private void appendBlank()
+	{
+		if(pos >= width)
+		{
+			wrap();
+		}
+		pos++;
+	}
+	
+	
+	private static boolean isBlank(ScreenLine s, int x)
+	{
+		return (s.getCodePoint(x) == 0) && (s.getStyle(x) == StyleTable.DEFAULT) && (s.getCluster(x) == null);
+	}
+	
+	
+	private void wrap()
+	{
+		current.setWrapped(true);
+		newLine();
+	}
+	
+	
+	private void newLine()
+	{
+		current = new ScreenLine(styles, width);
+		pos = 0;
+		lines.add(current);
+		sources.add(source);
+	}
+	
+	
+	private void setCursor(int row, int x)
+	{
+		cursorRow = row;
+		cursorX = x;
+	}
+	
+	
+	/** returns the reflowed lines, the cursor rows past the content are added as the continuation lines */
+	public CList<ScreenLine> getLines()
+	{
+		while(cursorRow >= lines.size())
+		{
+			lines.getLast().setWrapped(true);
+			lines.add(new ScreenLine(styles, width));
+			sources.add(source);
+		}
+		return lines;
+	}
+	
+	
+	/** sets the StyleTable indexes used by the lines reflowed so far */
+	public void markStyles(BitSet used)
+	{
+		for(ScreenLine s: lines)
+		{
+			s.markStyles(used);
+		}
+	}
+	
+	
+	/** returns the id of the first source line of the logical line the specified output line belongs to */
+	public long getSource(int ix)
+	{
+		return sources.get(ix);
+	}
+	
+	
+	/** returns the output row of the cursor, or -1 if the cursor was not on any of the source lines */
+	public int getCursorRow()
+	{
+		return cursorRow;
+	}
+	
+	
+	public int getCursorX()
+	{
+		return cursorX;
+	}
+}
@@ -0,0 +1,350 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.CList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Link Detector: finds the URLs, file references, and stack trace frames in the text of a line.
+ *
+ * The results are cached per line and its version, so a line is examined once no matter how many
+ * times it enters the viewport, until it changes.  The regular expressions run only when a cheap
+ * test finds a character sequence the pattern requires: most lines are rejected without a match
+ * attempt.
+ *
+ * This class is not thread safe.
+ */
+public class LinkDetector
+{
+	private static final int CACHE_SIZE = 2048;
+	private static final TermLink[] NONE = new TermLink[0];
+	private static final Pattern URL = Pattern.compile("\\b(?:https?|ftp|file)://[^\\s<>\"'`]+");
+	private static final Pattern STACK_FRAME = Pattern.compile("\\bat ((?:[\\w$]+\\.)*)[\\w$<>]+\\.[\\w$<>]+\\(([\\w$-]+\\.\\w+):(\\d+)\\)");
+	private static final Pattern FILE = Pattern.compile("(?<![\\w/.~\\\\-])((?:[A-Za-z]:)?[\\w.~/\\\\-]*[\\w-]\\.[A-Za-z]\\w*):(\\d+)(?::(\\d+))?");
+	private final Matcher url = URL.matcher("");
+	private final Matcher stackFrame = STACK_FRAME.matcher("");
+	private final Matcher file = FILE.matcher("");
+	private final LinkedHashMap<ScreenLine,Entry> cache;
+	private final StringBuilder sb = new StringBuilder();
+	private final CList<TermLink> links = new CList<>();
+	/** the cell of each char in sb */
+	private int[] cells = new int[256];
+	private int[] text;
+	private int width;
+	
+	
+	public LinkDetector()
+	{
+		cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ScreenLine,Entry> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+	
+	
+	/**
+	 * returns the links in the copy of the specified version of the line, sorted by the position.
+	 * @param text the code points of the cells
+	 * @param clusters the text of the cells with combining marks, may be null
+	 */
+	public TermLink[] detect(ScreenLine line, int version, int[] text, String[] clusters, int width)
+	{
+		Entry en = cache.get(line);
+		if((en != null) && (en.version == version) && (en.width == width))
+		{
+			return en.links;
+		}
+		
+		TermLink[] rv = detect(text, clusters, width);
+		if(line != null)
+		{
+			cache.put(line, new Entry(version, width, rv));
+		}
+		return rv;
+	}
+	
+	
+	/** returns the links in the text of the cells, sorted by the position */
+	public TermLink[] detect(int[] text, String[] clusters, int width)
+	{
+		if(!extractText(text, clusters, width))
+		{
+			return NONE;
+		}
+		
+		links.clear();
+		
+		if(sb.indexOf("://") >= 0)
+		{
+			url.reset(sb);
+			while(url.find())
+			{
+				int end = trimURL(url.start(), url.end());
+				add(TermLink.Type.URL, url.start(), end, sb.substring(url.start(), end), 0, 0);
+			}
+		}
+		
+		if(hasLineNumber())
+		{
+			if(sb.indexOf("at ") >= 0)
+			{
+				stackFrame.reset(sb);
+				while(stackFrame.find())
+				{
+					String pkg = stackFrame.group(1);
+					String path = pkg.replace('.', '/') + stackFrame.group(2);
+					int line = parse(stackFrame.group(3));
+					add(TermLink.Type.STACK_FRAME, stackFrame.start(2), stackFrame.end(3), path, line, 0);
+				}
+			}
+			
+			// the file pattern is tried at the start of each word followed by a line number only
+			file.reset(sb);
+			file.useTransparentBounds(true);
+			int ix = 0;
+			while((ix = nextLineNumber(ix)) > 0)
+			{
+				int start = wordStart(ix - 1);
+				file.region(start, sb.length());
+				if(file.lookingAt())
+				{
+					int line = parse(file.group(2));
+					int column = (file.group(3) == null) ? 0 : parse(file.group(3));
+					add(TermLink.Type.FILE, file.start(), file.end(), file.group(1), line, column);
+					ix = Math.max(ix, file.end());
+				}
+			}
+		}
+		
+		if(links.size() == 0)
+		{
+			return NONE;
+		}
+		
+		links.sort((a, b) -> Integer.compare(a.start, b.start));
+		return links.toArray(new TermLink[links.size()]);
+	}
+	
+	
+	/** builds the text of the line, returns false if the line is too short to contain a link */
+	private boolean extractText(int[] text, String[] clusters, int width)
+	{
+		this.text = text;
+		this.width = width;
+		sb.setLength(0);
+		if(cells.length < (width * 2 + 1))
+		{
+			cells = new int[width * 2 + 1];
+		}
+		
+		boolean any = false;
+		for(int x=0; x<width; x++)
+		{
+			int c = text[x];
+			String cl = (clusters == null) ? null : clusters[x];
+			if(cl != null)
+			{
+				append(cl, x);
+			}
+			else if(c == ScreenLine.WIDE_TAIL)
+			{
+				continue;
+			}
+			else if(c <= ' ')
+			{
+				append(' ', x);
+			}
+			else
+			{
+				if(c < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+				{
+					append((char)c, x);
+				}
+				else
+				{
+					append(Character.highSurrogate(c), x);
+					append(Character.lowSurrogate(c), x);
+				}
+				any = true;
+			}
+		}
+		return any && (sb.length() > 3);
+	}
+	
+	
+	private void append(char c, int x)
+	{
+		int ix = sb.length();
+		if(ix >= cells.length)
+		{
+			cells = Arrays.copyOf(cells, ix * 2);
+		}
+		cells[ix] = x;
+		sb.append(c);
+	}
+	
+	
+	private void append(String s, int x)
+	{
+		for(int i=0; i<s.length(); i++)
+		{
+			append(s.charAt(i), x);
+		}
+	}
+	
+	
+	/** a file reference or a stack trace frame requires a colon followed by a digit */
+	private boolean hasLineNumber()
+	{
+		return nextLineNumber(0) > 0;
+	}
+	
+	
+	/** returns the index of the first digit following a colon at or after the specified index, or -1 */
+	private int nextLineNumber(int ix)
+	{
+		for(;;)
+		{
+			ix = sb.indexOf(":", ix) + 1;
+			if(ix <= 0)
+			{
+				return -1;
+			}
+			else if(ix < sb.length())
+			{
+				char c = sb.charAt(ix);
+				if((c >= '0') && (c <= '9'))
+				{
+					return ix;
+				}
+			}
+		}
+	}
+	
+	
+	/** returns the start of the word which ends at the specified index */
+	private int wordStart(int ix)
+	{
+		while(ix > 0)
+		{
+			switch(sb.charAt(ix - 1))
+			{
+			case ' ':
+			case '(':
+			case '[':
+			case '<':
+			case '=':
+			case '"':
+			case '\'':
+			case '`':
+				return ix;
+			}
+			ix--;
+		}
+		return 0;
+	}
+	
+	
+	/** omits the trailing punctuation, and the closing parenthesis without the opening one */
+	private int trimURL(int start, int end)
+	{
+		while(end > start)
+		{
+			char c = sb.charAt(end - 1);
+			switch(c)
+			{
+			case '.':
+			case ',':
+			case ';':
+			case ':':
+			case '!':
+			case '?':
+				end--;
+				continue;
+			case ')':
+				if(sb.lastIndexOf("(", end - 1) < start)
+				{
+					end--;
+					continue;
+				}
+				break;
+			case ']':
+			case '}':
+				end--;
+				continue;
+			}
+			break;
+		}
+		return end;
+	}
+	
+	
+	/** adds the link unless it overlaps with one found earlier */
+	private void add(TermLink.Type type, int start, int end, String target, int line, int column)
+	{
+		int x0 = cells[start];
+		int x1 = cells[end - 1] + 1;
+		if((x1 < width) && (text[x1] == ScreenLine.WIDE_TAIL))
+		{
+			// the whole double width glyph
+			x1++;
+		}
+		
+		for(TermLink k: links)
+		{
+			if((x0 < k.end) && (x1 > k.start))
+			{
+				return;
+			}
+		}
+		
+		links.add(new TermLink(type, x0, x1, target, line, column));
+	}
+	
+	
+	private static int parse(String s)
+	{
+		try
+		{
+			return Integer.parseInt(s);
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+	
+	
+	/** removes all the cached results */
+	public void clear()
+	{
+		cache.clear();
+	}
+	
+	
+	//
+	
+	
+	private static class Entry
+	{
+		public final int version;
+		public final int width;
+		public final TermLink[] links;
+		
+		
+		public Entry(int version, int width, TermLink[] links)
+		{
+			this.version = version;
+			this.width = width;
+			this.links = links;
+		}
+	}
+}
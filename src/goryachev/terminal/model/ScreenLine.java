@@ -0,0 +1,473 @@
+// Copyright © 2018-2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.SB;
+import goryachev.terminal.TermTools;
+import goryachev.terminal.UnicodeWidth;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Terminal Screen Line.
+ * 
+ * The cells are stored in packed primitive arrays: code points (0 means an empty cell)
+ * and indexes into the shared StyleTable.  A double width glyph occupies two cells, the second one
+ * holds WIDE_TAIL.  Combining marks are kept aside, as the immutable strings of the cells they
+ * are attached to, allocated only when such marks are present.
+ * 
+ * Every modification increments the line version, so the renderers can detect the changed lines
+ * without the model tracking the individual cells on their behalf.
+ * 
+ * A line which has been soft-wrapped (continued on the next line when the text reached the right
+ * margin) is marked as wrapped, so the logical lines can be reflowed when the width changes.
+ */
+public class ScreenLine
+{
+	/** the code point of the cell covered by the double width glyph in the preceding cell */
+	public static final int WIDE_TAIL = -1;
+	/** the maximum length of a cell string with the combining marks */
+	private static final int MAX_CLUSTER = 32;
+	private final StyleTable styleTable;
+	private int width;
+	private int version;
+	private boolean empty = true;
+	/** the line continues on the next one */
+	private boolean wrapped;
+	private int[] text;
+	private char[] styles;
+	/** the text of the cells with combining marks, or null */
+	private String[] clusters;
+	
+	
+	public ScreenLine(StyleTable styleTable, int width)
+	{
+		this.styleTable = styleTable;
+		this.width = width;
+		text = new int[width];
+		styles = new char[width];
+	}
+	
+	
+	/** returns the version number, incremented on every modification */
+	public int getVersion()
+	{
+		return version;
+	}
+	
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return empty;
+	}
+	
+	
+	/** returns true if the line has been soft-wrapped, that is, it continues on the next line */
+	public boolean isWrapped()
+	{
+		return wrapped;
+	}
+	
+	
+	public void setWrapped(boolean on)
+	{
+		wrapped = on;
+	}
+	
+	
+	/** returns the number of cells up to the last one which is not blank, or the width if the line is wrapped */
+	public int getContentWidth()
+	{
+		if(wrapped)
+		{
+			return width;
+		}
+		else if(empty)
+		{
+			return 0;
+		}
+		
+		for(int x=Math.min(width, text.length)-1; x>=0; x--)
+		{
+			if((text[x] != 0) || (styles[x] != StyleTable.DEFAULT) || ((clusters != null) && (clusters[x] != null)))
+			{
+				return x + 1;
+			}
+		}
+		return 0;
+	}
+	
+	
+	public void setWidth(int w)
+	{
+		// TODO
+		if(w > capacity())
+		{
+			grow(w);
+		}
+		
+		this.width = w;
+		version++;
+	}
+	
+	
+	protected void grow(int w)
+	{
+		int[] tx = new int[w];
+		System.arraycopy(text, 0, tx, 0, width);
+		
+		char[] st = new char[w];
+		System.arraycopy(styles, 0, st, 0, width);
+		
+		if(clusters != null)
+		{
+			clusters = Arrays.copyOf(clusters, w);
+		}
+		
+		text = tx;
+		styles = st;
+	}
+	
+	
+	/** clears the line, making it ready for reuse with the specified width */
+	public void reset(int w)
+	{
+		if(w > capacity())
+		{
+			text = new int[w];
+			styles = new char[w];
+		}
+		else
+		{
+			Arrays.fill(text, 0);
+			Arrays.fill(styles, (char)0);
+		}
+		
+		clusters = null;
+		width = w;
+		version++;
+		empty = true;
+		wrapped = false;
+	}
+	
+	
+	protected int capacity()
+	{
+		return text.length;
+	}
+	
+
+	/** returns true if any cell has combining marks */
+	public boolean hasClusters()
+	{
+		return clusters != null;
+	}
+	
+	
+	/** returns the array of code points of the cells, for reading only, may be longer than the width */
+	int[] getCodePoints()
+	{
+		return text;
+	}
+	
+	
+	/** copies the cells [from, to) of the source line to this line, starting at x */
+	void copyCells(ScreenLine src, int from, int to, int x)
+	{
+		int len = to - from;
+		if(len <= 0)
+		{
+			return;
+		}
+		
+		System.arraycopy(src.text, from, text, x, len);
+		System.arraycopy(src.styles, from, styles, x, len);
+		if(src.clusters != null)
+		{
+			for(int i=0; i<len; i++)
+			{
+				String c = src.clusters[from + i];
+				if(c != null)
+				{
+					if(clusters == null)
+					{
+						clusters = new String[text.length];
+					}
+					clusters[x + i] = c;
+				}
+			}
+		}
+		
+		version++;
+		empty = false;
+	}
+	
+
+	/** 
+	 * sets the cell code point (0 for an empty cell) and the StyleTable index.
+	 * Returns the number of cells taken: 2 for a double width glyph, or 0 if it does not fit. 
+	 */
+	public int setCell(int x, int codePoint, int style)
+	{
+		int w = (codePoint < UnicodeWidth.NARROW_LIMIT) ? 1 : Math.max(1, UnicodeWidth.width(codePoint));
+		if(x + w > width)
+		{
+			return 0;
+		}
+		
+		breakWideGlyphs(x, x + w);
+		text[x] = codePoint;
+		styles[x] = (char)style;
+		if(w == 2)
+		{
+			text[x + 1] = WIDE_TAIL;
+			styles[x + 1] = (char)style;
+		}
+		
+		version++;
+		empty = false;
+		return w;
+	}
+	
+	
+	/** 
+	 * sets a run of cells starting at x to the code points from start (inclusive) to end (exclusive)
+	 * with the same style, a double width glyph taking two cells.  The glyphs past the line width
+	 * are dropped.
+	 * Returns the number of cells taken by the glyphs which fit on the line.
+	 */
+	public int setCells(int x, int[] cps, int start, int end, int style)
+	{
+		int len = end - start;
+		if(len <= 0)
+		{
+			return 0;
+		}
+		
+		int[] tx = text;
+		int max = width;
+		if((x > 0) && (x < max) && (tx[x] == WIDE_TAIL))
+		{
+			// the head of the glyph being overwritten
+			tx[x - 1] = 0;
+		}
+		
+		int px = x;
+		int i = start;
+		for( ; i<end; i++)
+		{
+			int c = cps[i];
+			if((c >= UnicodeWidth.NARROW_LIMIT) && (UnicodeWidth.width(c) == 2))
+			{
+				if(px + 2 > max)
+				{
+					break;
+				}
+				tx[px++] = c;
+				tx[px++] = WIDE_TAIL;
+			}
+			else
+			{
+				if(px >= max)
+				{
+					break;
+				}
+				tx[px++] = c;
+			}
+		}
+		
+		if((px < max) && (tx[px] == WIDE_TAIL))
+		{
+			// the tail of the glyph which has been overwritten
+			tx[px] = 0;
+		}
+		
+		Arrays.fill(styles, x, px, (char)style);
+		if(clusters != null)
+		{
+			Arrays.fill(clusters, x, px, null);
+		}
+		
+		version++;
+		empty = false;
+		return px - x;
+	}
+	
+	
+	/** blanks the halves of the double width glyphs broken by modifying the cells [from, to) */
+	private void breakWideGlyphs(int from, int to)
+	{
+		if((from > 0) && (text[from] == WIDE_TAIL))
+		{
+			text[from - 1] = 0;
+		}
+		if((to < text.length) && (text[to] == WIDE_TAIL))
+		{
+			text[to] = 0;
+		}
+		if(clusters != null)
+		{
+			Arrays.fill(clusters, from, to, null);
+		}
+	}
+	
+	
+	/** 
+	 * attaches a combining mark to the cell at the specified position, or to the double width glyph
+	 * covering it.
+	 */
+	public void combine(int x, int mark)
+	{
+		if((x < 0) || (x >= width))
+		{
+			return;
+		}
+		
+		if((text[x] == WIDE_TAIL) && (x > 0))
+		{
+			x--;
+		}
+		
+		if(clusters == null)
+		{
+			clusters = new String[text.length];
+		}
+		
+		String s = clusters[x];
+		if(s == null)
+		{
+			int c = text[x];
+			s = TermTools.codePointToString((c == 0) ? ' ' : c);
+		}
+		
+		if(s.length() < MAX_CLUSTER)
+		{
+			clusters[x] = s + TermTools.codePointToString(mark);
+			version++;
+			empty = false;
+		}
+	}
+	
+	
+	/** returns the text of the cell with the combining marks, or null if the cell has none */
+	public String getCluster(int x)
+	{
+		return ((clusters == null) || (x >= clusters.length)) ? null : clusters[x];
+	}
+	
+
+	public void clearFrom(int x)
+	{
+		int sz = text.length;
+		if(x < sz)
+		{
+			if((x > 0) && (text[x] == WIDE_TAIL))
+			{
+				text[x - 1] = 0;
+			}
+			
+			Arrays.fill(text, x, sz, 0);
+			Arrays.fill(styles, x, sz, (char)0);
+			if(clusters != null)
+			{
+				Arrays.fill(clusters, x, sz, null);
+			}
+			version++;
+		}
+		
+		if(x == 0)
+		{
+			empty = true;
+		}
+		// the line no longer reaches the right margin
+		wrapped = false;
+	}
+	
+	
+	/** sets the StyleTable indexes used by the cells of this line */
+	void markStyles(BitSet used)
+	{
+		int last = -1;
+		for(char st: styles)
+		{
+			if(st != last)
+			{
+				used.set(st);
+				last = st;
+			}
+		}
+	}
+	
+	
+	@Deprecated
+	protected boolean getFlag(int x, Flag flag)
+	{
+		return (styleTable.get(styles[x]).flags & (1 << flag.ordinal())) != 0;
+	}
+
+
+	@Deprecated
+	public void dump()
+	{
+		SB sb = new SB();
+		for(int i=0; i<text.length; i++)
+		{
+			if(text[i] != 0)
+			{
+				sb.appendCodePoint(text[i]);
+			}
+			
+			for(Flag f: Flag.values())
+			{
+				if(getFlag(i, f))
+				{
+					sb.append("<").append(f).append(">");
+				}
+			}
+		}
+	}
+
+
+	/** returns the code point at the specified position, or 0 if the cell is empty */
+	public int getCodePoint(int x)
+	{
+		return (x < text.length) ? text[x] : 0;
+	}
+	
+	
+	/** returns the StyleTable index of the cell at the specified position */
+	public int getStyle(int x)
+	{
+		return (x < styles.length) ? styles[x] : StyleTable.DEFAULT;
+	}
+	
+	
+	public void getCell(CellInfo inf, int x)
+	{
+		int c;
+		CellStyle st;
+		if(x < text.length)
+		{
+			c = text[x];
+			st = styleTable.get(styles[x]);
+		}
+		else
+		{
+			// history lines may be narrower than the screen
+			c = 0;
+			st = styleTable.get(StyleTable.DEFAULT);
+		}
+		
+		String cluster = getCluster(x);
+		inf.codePoint = c;
+		inf.text = (cluster != null) ? cluster : (c <= 0) ? null : TermTools.codePointToString(c);
+		inf.bg = st.bg;
+		inf.fg = st.fg;
+		inf.flags = st.flags;
+	}
+}
@@ -0,0 +1,177 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.log.Log;
+import goryachev.common.util.CList;
+import java.util.BitSet;
+
+
+/**
+ * Interned Cell Style Table, shared by all the lines of a terminal.
+ * ScreenLines store a compact (16 bit) index into this table instead of the colors and flags.
+ * Index 0 always refers to the default style.
+ * 
+ * Once the table is full, the owner releases the styles no longer used by any line (see reclaim()),
+ * and their indexes are reused.  The generation changes each time, so the observers caching
+ * the styles by index can tell their caches are stale.
+ * 
+ * Access to the style table must be externally synchronized.
+ */
+public class StyleTable
+{
+	protected static final Log log = Log.get("StyleTable");
+	public static final int DEFAULT = 0;
+	public static final int CAPACITY = 65536;
+	private final CList<CellStyle> styles = new CList<>();
+	/** open addressing hash table of (style index + 1), 0 marks an empty slot */
+	private int[] table = new int[256];
+	/** the released indexes to be reused */
+	private int[] free = new int[0];
+	private int freeCount;
+	private int generation;
+	private boolean full;
+	
+	
+	public StyleTable()
+	{
+		intern(ColorCode.DEFAULT, ColorCode.DEFAULT, 0);
+	}
+	
+	
+	/** returns the index of the style with the specified attributes, adding it to the table if necessary */
+	public int intern(int fg, int bg, int flags)
+	{
+		// the lookup does not allocate
+		int mask = table.length - 1;
+		int i = hash(fg, bg, (short)flags) & mask;
+		for(;;)
+		{
+			int v = table[i];
+			if(v == 0)
+			{
+				break;
+			}
+			
+			CellStyle s = styles.get(v - 1);
+			if((s.fg == fg) && (s.bg == bg) && (s.flags == (short)flags))
+			{
+				return v - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		
+		int ix;
+		if(freeCount > 0)
+		{
+			ix = free[--freeCount];
+			styles.set(ix, new CellStyle(fg, bg, flags));
+		}
+		else
+		{
+			ix = styles.size();
+			if(ix >= CAPACITY)
+			{
+				if(!full)
+				{
+					full = true;
+					log.warn("style table is full");
+				}
+				return DEFAULT;
+			}
+			styles.add(new CellStyle(fg, bg, flags));
+		}
+		table[i] = ix + 1;
+		
+		if(styles.size() * 2 > table.length)
+		{
+			rehash(table.length * 2);
+		}
+		return ix;
+	}
+	
+	
+	/** returns true if a new style cannot be added without releasing the unused ones */
+	public boolean isFull()
+	{
+		return (freeCount == 0) && (styles.size() >= CAPACITY);
+	}
+	
+	
+	/** 
+	 * releases the styles whose indexes are not set in the specified bit set, except for the default one.
+	 * Returns the number of styles released.
+	 */
+	public int reclaim(BitSet used)
+	{
+		int sz = styles.size();
+		if(free.length < sz)
+		{
+			free = new int[sz];
+		}
+		
+		freeCount = 0;
+		for(int ix=sz-1; ix>DEFAULT; ix--)
+		{
+			if(!used.get(ix))
+			{
+				styles.set(ix, null);
+				free[freeCount++] = ix;
+			}
+		}
+		
+		rehash(table.length);
+		generation++;
+		full = false;
+		return freeCount;
+	}
+	
+	
+	/** returns the number of times the unused styles have been released */
+	public int getGeneration()
+	{
+		return generation;
+	}
+	
+	
+	private void rehash(int size)
+	{
+		int[] t = new int[size];
+		int mask = t.length - 1;
+		for(int ix=0; ix<styles.size(); ix++)
+		{
+			CellStyle s = styles.get(ix);
+			if(s == null)
+			{
+				continue;
+			}
+			
+			int i = hash(s.fg, s.bg, s.flags) & mask;
+			while(t[i] != 0)
+			{
+				i = (i + 1) & mask;
+			}
+			t[i] = ix + 1;
+		}
+		table = t;
+	}
+	
+	
+	private static int hash(int fg, int bg, short flags)
+	{
+		int h = fg * 31 + bg;
+		h = h * 31 + flags;
+		return h ^ (h >>> 16);
+	}
+	
+	
+	public CellStyle get(int ix)
+	{
+		return styles.get(ix);
+	}
+	
+	
+	/** returns the number of indexes in use or released, which is the upper bound of the style index */
+	public int size()
+	{
+		return styles.size();
+	}
+}
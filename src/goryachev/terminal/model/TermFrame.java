@@ -0,0 +1,561 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Terminal Frame: a renderer-owned copy of the visible part of a TermModel.
+ *
+ * update() is called with the model lock held, and copies only the rows showing a line which
+ * differs from the previous frame (by identity or version), marking the cells whose content
+ * has actually changed.  The renderer then paints the frame without holding the lock, so the
+ * emulator is never blocked for the duration of a paint.
+ *
+ * The frame mirrors the rendered pixels: when the renderer shifts the pixels to implement
+ * a scroll, the frame shifts its rows the same way.
+ *
+ * The links are detected outside of the lock, in the rows copied since the last updateLinks() only.
+ */
+public class TermFrame
+{
+	private int cols;
+	private int rows;
+	private int[][] text;
+	private char[][] styles;
+	/** the text of the cells with combining marks */
+	private String[][] clusters;
+	/** the lines the rows were copied from */
+	private ScreenLine[] sources;
+	private int[] versions;
+	/** the cells to be painted, per row */
+	private BitSet[] changed;
+	private final BitSet dirtyRows = new BitSet();
+	/** the links, per row, null when none */
+	private TermLink[][] links;
+	/** the index of the link + 1 in each cell, per row, null when the row has no links */
+	private short[][] linkIndex;
+	/** the rows copied since the last link detection */
+	private final BitSet linkRows = new BitSet();
+	private CellStyle[] styleCache = new CellStyle[64];
+	private int styleCount;
+	private int styleGeneration;
+	private boolean invalid = true;
+	private int offset;
+	private int scroll;
+	private int scrollTop;
+	private int scrollBottom;
+	/** the buffer the rows were copied from, and its scroll state at the time */
+	private TermScreenBuffer buffer;
+	private long scrollSequence;
+	private long scrollRunStart;
+	private long scrollRun;
+	private int cursorX = -1;
+	private int cursorY = -1;
+	private boolean cursorVisible;
+	private int historySize;
+	
+	
+	public TermFrame()
+	{
+	}
+	
+	
+	/** requests all the cells to be painted on the next frame */
+	public void invalidate()
+	{
+		invalid = true;
+	}
+	
+	
+	/**
+	 * copies the changes from the model viewport, scrolled back into history by the specified
+	 * number of lines.  Must be called with the model lock held.
+	 */
+	public void update(TermModel m, int offset, boolean cursorOn)
+	{
+		TermScreenBuffer b = m.getBuffer();
+		int cs = m.getColumnCount();
+		int rs = m.getRowCount();
+		if((cs != cols) || (rs != rows) || (text == null))
+		{
+			allocate(cs, rs);
+			invalid = true;
+		}
+		
+		// the indexes of the released styles might have been reused
+		StyleTable st = b.getStyleTable();
+		if(st.getGeneration() != styleGeneration)
+		{
+			styleGeneration = st.getGeneration();
+			styleCount = 0;
+			invalid = true;
+		}
+		
+		// the pixels can be shifted when the live screen has scrolled as a whole since the last update
+		scroll = 0;
+		long sc = 0;
+		if((b == buffer) && (b.getScrollSequence() != scrollSequence))
+		{
+			long start = b.getScrollRunStart();
+			if(start == scrollSequence + 1)
+			{
+				sc = b.getScrollRun();
+			}
+			else if(start == scrollRunStart)
+			{
+				sc = b.getScrollRun() - scrollRun;
+			}
+		}
+		
+		if(!invalid && (sc != 0) && (offset == 0) && (this.offset == 0))
+		{
+			scrollTop = b.getScrollRunTop();
+			scrollBottom = b.getScrollRunBottom();
+			int h = scrollBottom - scrollTop;
+			scroll = (int)Math.max(-h, Math.min(h, sc));
+			shift(scrollTop, scrollBottom, scroll);
+		}
+		
+		// this frame's own view of the scroll, other frames may observe the same model
+		buffer = b;
+		scrollSequence = b.getScrollSequence();
+		scrollRunStart = b.getScrollRunStart();
+		scrollRun = b.getScrollRun();
+		this.offset = offset;
+		
+		for(int y=0; y<rows; y++)
+		{
+			ScreenLine line = b.getViewLine(y, offset);
+			if(invalid || (line != sources[y]) || (line.getVersion() != versions[y]))
+			{
+				copy(y, line);
+			}
+		}
+		
+		// cursor
+		int cx = m.getCursorX();
+		int cy = m.getCursorY() + offset;
+		boolean vis = cursorOn && m.isCursorEnabled() && (cx >= 0) && (cx < cols) && (cy >= 0) && (cy < rows);
+		if(vis && (cx > 0) && (text[cy][cx] == ScreenLine.WIDE_TAIL))
+		{
+			// the cursor covers the whole glyph
+			cx--;
+		}
+		if((vis != cursorVisible) || (cx != cursorX) || (cy != cursorY))
+		{
+			if(cursorVisible)
+			{
+				mark(cursorX, cursorY);
+			}
+			
+			cursorX = cx;
+			cursorY = cy;
+			cursorVisible = vis;
+			
+			if(vis)
+			{
+				mark(cx, cy);
+			}
+		}
+		
+		// the style table only grows until the unused styles are released
+		int sz = st.size();
+		if(sz > styleCount)
+		{
+			if(sz > styleCache.length)
+			{
+				styleCache = Arrays.copyOf(styleCache, Math.max(sz, styleCache.length * 2));
+			}
+			
+			for(int i=styleCount; i<sz; i++)
+			{
+				styleCache[i] = st.get(i);
+			}
+			styleCount = sz;
+		}
+		
+		historySize = b.getHistorySize();
+		invalid = false;
+	}
+	
+	
+	private void allocate(int cs, int rs)
+	{
+		cols = cs;
+		rows = rs;
+		text = new int[rs][cs];
+		styles = new char[rs][cs];
+		clusters = new String[rs][cs];
+		sources = new ScreenLine[rs];
+		versions = new int[rs];
+		changed = new BitSet[rs];
+		for(int i=0; i<rs; i++)
+		{
+			changed[i] = new BitSet(cs);
+		}
+		links = new TermLink[rs][];
+		linkIndex = new short[rs][];
+		dirtyRows.clear();
+		linkRows.clear();
+		cursorVisible = false;
+	}
+	
+	
+	/** shifts the rows between top (inclusive) and bottom (exclusive) up (n > 0) or down (n < 0) */
+	private void shift(int top, int bottom, int n)
+	{
+		int len = bottom - top;
+		int d = Math.min(Math.abs(n), len);
+		if(d == 0)
+		{
+			return;
+		}
+		
+		if(n > 0)
+		{
+			rotate(text, top, bottom, d);
+			rotate(styles, top, bottom, d);
+			rotate(clusters, top, bottom, d);
+			rotate(sources, top, bottom, d);
+			rotate(changed, top, bottom, d);
+			rotate(links, top, bottom, d);
+			rotate(linkIndex, top, bottom, d);
+			System.arraycopy(versions, top + d, versions, top, len - d);
+			exposed(bottom - d, bottom);
+		}
+		else
+		{
+			rotate(text, top, bottom, len - d);
+			rotate(styles, top, bottom, len - d);
+			rotate(clusters, top, bottom, len - d);
+			rotate(sources, top, bottom, len - d);
+			rotate(changed, top, bottom, len - d);
+			rotate(links, top, bottom, len - d);
+			rotate(linkIndex, top, bottom, len - d);
+			System.arraycopy(versions, top, versions, top + d, len - d);
+			exposed(top, top + d);
+		}
+		
+		// the pending changes move along with the rows
+		for(int y=top; y<bottom; y++)
+		{
+			dirtyRows.set(y, !changed[y].isEmpty());
+		}
+		
+		// so do the rows awaiting link detection
+		BitSet lr = linkRows.get(top, bottom);
+		linkRows.clear(top, bottom);
+		for(int y=lr.nextSetBit(0); y>=0; y=lr.nextSetBit(y + 1))
+		{
+			int ny = top + y - n;
+			if((ny >= top) && (ny < bottom))
+			{
+				linkRows.set(ny);
+			}
+		}
+		
+		// the pixels of the cursor cell have moved
+		if(cursorVisible && (cursorY >= top) && (cursorY < bottom))
+		{
+			int y = cursorY - n;
+			if((y >= top) && (y < bottom))
+			{
+				mark(cursorX, y);
+			}
+		}
+	}
+	
+	
+	/** the exposed rows must be painted in their entirety */
+	private void exposed(int from, int to)
+	{
+		for(int y=from; y<to; y++)
+		{
+			sources[y] = null;
+		}
+	}
+	
+	
+	/** rotates the array section [top, bottom) left by the specified distance */
+	private static void rotate(Object[] a, int top, int bottom, int distance)
+	{
+		Object[] tmp = Arrays.copyOfRange(a, top, top + distance);
+		System.arraycopy(a, top + distance, a, top, bottom - top - distance);
+		System.arraycopy(tmp, 0, a, bottom - distance, distance);
+	}
+	
+	
+	private void copy(int y, ScreenLine line)
+	{
+		int[] tx = text[y];
+		char[] st = styles[y];
+		String[] cl = clusters[y];
+		BitSet ch = changed[y];
+		boolean all = invalid || (sources[y] == null);
+		boolean wide = false;
+		
+		for(int x=0; x<cols; x++)
+		{
+			int cp = line.getCodePoint(x);
+			char s = (char)line.getStyle(x);
+			String c = line.getCluster(x);
+			if(all || (tx[x] != cp) || (st[x] != s) || (cl[x] != c))
+			{
+				tx[x] = cp;
+				st[x] = s;
+				cl[x] = c;
+				ch.set(x);
+			}
+			
+			if(cp == ScreenLine.WIDE_TAIL)
+			{
+				wide = true;
+			}
+		}
+		
+		if(wide)
+		{
+			// both halves of a double width glyph are painted together
+			for(int x=ch.nextSetBit(0); x>=0; x=ch.nextSetBit(x + 1))
+			{
+				if((x > 0) && (tx[x] == ScreenLine.WIDE_TAIL))
+				{
+					ch.set(x - 1);
+				}
+				else if((x + 1 < cols) && (tx[x + 1] == ScreenLine.WIDE_TAIL))
+				{
+					ch.set(x + 1);
+				}
+			}
+		}
+		
+		sources[y] = line;
+		versions[y] = line.getVersion();
+		linkRows.set(y);
+		
+		if(!ch.isEmpty())
+		{
+			dirtyRows.set(y);
+		}
+	}
+	
+	
+	private void mark(int x, int y)
+	{
+		if((y >= 0) && (y < rows) && (x >= 0) && (x < cols))
+		{
+			changed[y].set(x);
+			dirtyRows.set(y);
+			
+			if(isWideHead(x, y))
+			{
+				changed[y].set(x + 1);
+			}
+		}
+	}
+	
+	
+	/** requests the cells [from, to) of the specified row to be painted on the next frame */
+	public void markChanged(int y, int from, int to)
+	{
+		for(int x=from; x<to; x++)
+		{
+			mark(x, y);
+		}
+	}
+	
+	
+	/**
+	 * detects the links in the rows copied since the last call, or removes all the links when
+	 * the detector is null.  Called by the renderer without holding the lock.
+	 */
+	public void updateLinks(LinkDetector d)
+	{
+		if(links == null)
+		{
+			return;
+		}
+		
+		if(d == null)
+		{
+			Arrays.fill(links, null);
+			Arrays.fill(linkIndex, null);
+			linkRows.clear();
+			return;
+		}
+		
+		for(int y=linkRows.nextSetBit(0); y>=0; y=linkRows.nextSetBit(y + 1))
+		{
+			TermLink[] ks = d.detect(sources[y], versions[y], text[y], clusters[y], cols);
+			if(ks.length == 0)
+			{
+				links[y] = null;
+				linkIndex[y] = null;
+			}
+			else
+			{
+				short[] ix = linkIndex[y];
+				if(ix == null)
+				{
+					ix = new short[cols];
+					linkIndex[y] = ix;
+				}
+				else
+				{
+					Arrays.fill(ix, (short)0);
+				}
+				
+				int n = Math.min(ks.length, Short.MAX_VALUE);
+				for(int i=0; i<n; i++)
+				{
+					TermLink k = ks[i];
+					Arrays.fill(ix, k.start, Math.min(k.end, cols), (short)(i + 1));
+				}
+				links[y] = ks;
+			}
+		}
+		linkRows.clear();
+	}
+	
+	
+	/** returns the link at the specified position, or null */
+	public TermLink getLink(int x, int y)
+	{
+		if((linkIndex == null) || (y < 0) || (y >= rows) || (x < 0) || (x >= cols))
+		{
+			return null;
+		}
+		
+		short[] ix = linkIndex[y];
+		if(ix == null)
+		{
+			return null;
+		}
+		
+		int i = ix[x];
+		return (i == 0) ? null : links[y][i - 1];
+	}
+	
+	
+	/** called by the renderer after the frame has been painted */
+	public void clearChanges()
+	{
+		for(int y=dirtyRows.nextSetBit(0); y>=0; y=dirtyRows.nextSetBit(y + 1))
+		{
+			changed[y].clear();
+		}
+		dirtyRows.clear();
+		scroll = 0;
+	}
+	
+	
+	public int getColumnCount()
+	{
+		return cols;
+	}
+	
+	
+	public int getRowCount()
+	{
+		return rows;
+	}
+	
+	
+	/** returns the index of the first row at or after the specified one with cells to be painted, or -1 */
+	public int nextDirtyRow(int from)
+	{
+		return dirtyRows.nextSetBit(from);
+	}
+	
+	
+	/** returns the index of the first cell at or after the specified position to be painted, or -1 */
+	public int nextChangedCell(int x, int y)
+	{
+		return changed[y].nextSetBit(x);
+	}
+	
+	
+	public boolean isChanged(int x, int y)
+	{
+		return changed[y].get(x);
+	}
+	
+	
+	/** returns the code point at the specified position, or 0 if the cell is empty */
+	public int getCodePoint(int x, int y)
+	{
+		return text[y][x];
+	}
+	
+	
+	/** returns the text of the cell with the combining marks, or null if the cell has none */
+	public String getCluster(int x, int y)
+	{
+		return clusters[y][x];
+	}
+	
+	
+	/** returns true if the cell holds the first half of a double width glyph */
+	public boolean isWideHead(int x, int y)
+	{
+		return (x + 1 < cols) && (text[y][x + 1] == ScreenLine.WIDE_TAIL) && (text[y][x] != ScreenLine.WIDE_TAIL);
+	}
+	
+	
+	/** returns the StyleTable index of the cell at the specified position */
+	public int getStyle(int x, int y)
+	{
+		return styles[y][x];
+	}
+	
+	
+	/** returns the style with the specified StyleTable index */
+	public CellStyle getCellStyle(int style)
+	{
+		return styleCache[style];
+	}
+	
+	
+	/** returns the number of lines to shift the pixels by before painting the frame, positive when scrolled up */
+	public int getScroll()
+	{
+		return scroll;
+	}
+	
+	
+	public int getScrollTop()
+	{
+		return scrollTop;
+	}
+	
+	
+	public int getScrollBottom()
+	{
+		return scrollBottom;
+	}
+	
+	
+	public boolean isCursorVisible()
+	{
+		return cursorVisible;
+	}
+	
+	
+	public int getCursorX()
+	{
+		return cursorX;
+	}
+	
+	
+	public int getCursorY()
+	{
+		return cursorY;
+	}
+	
+	
+	public int getHistorySize()
+	{
+		return historySize;
+	}
+}
@@ -0,0 +1,67 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+
+
+/**
+ * Terminal Link: a URL, a file reference, or a stack trace frame detected in a line.
+ */
+public class TermLink
+{
+	public enum Type
+	{
+		/** a URL such as https://example.com/path */
+		URL,
+		/** a file reference such as src/Main.java:12:5 */
+		FILE,
+		/** a java stack trace frame such as at pkg.Main.run(Main.java:12), the target is the source path */
+		STACK_FRAME
+	}
+	
+	//
+	
+	public final Type type;
+	/** the first cell */
+	public final int start;
+	/** the cell after the last one */
+	public final int end;
+	/** the URL or the file path */
+	public final String target;
+	/** the line number, or 0 */
+	public final int line;
+	/** the column number, or 0 */
+	public final int column;
+	
+	
+	public TermLink(Type type, int start, int end, String target, int line, int column)
+	{
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.target = target;
+		this.line = line;
+		this.column = column;
+	}
+	
+	
+	public boolean contains(int x)
+	{
+		return (x >= start) && (x < end);
+	}
+	
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(type).append(' ').append(target);
+		if(line > 0)
+		{
+			sb.append(':').append(line);
+			if(column > 0)
+			{
+				sb.append(':').append(column);
+			}
+		}
+		return sb.toString();
+	}
+}
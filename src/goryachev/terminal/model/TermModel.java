@@ -0,0 +1,973 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.log.Log;
+import goryachev.terminal.FlowControl;
+import goryachev.terminal.ITermView;
+import goryachev.terminal.UnicodeWidth;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Terminal Model: the screen buffer with the scrollback history, the cursor, and the current attributes.
+ *
+ * The emulator updates the model through the ITermView interface, the renderers observe it through
+ * the Listener.  The full screen applications switch to the alternate screen buffer, which has no
+ * history: switching swaps the buffer references, nothing is copied.  The model does not depend on
+ * any UI toolkit, so a terminal can run headless at full parse speed.
+ *
+ * All access to the screen buffer must be synchronized on getLock().
+ */
+public class TermModel
+	implements ITermView
+{
+	/** Model Listener.  The methods are invoked on the thread which modified the model and must not block */
+	public interface Listener
+	{
+		public void onModelChanged(TermModel m);
+		
+		public void onBell(TermModel m);
+	}
+	
+	//
+	
+	protected static final Log log = Log.get("TermModel");
+	/** the number of history lines reflowed at a time, while holding the lock */
+	private static final int REFLOW_CHUNK = 4096;
+	/** the number of styles replaced by the default one before trying to release the unused styles again */
+	private static final int RECLAIM_INTERVAL = 4096;
+	protected final Object lock = new Object();
+	protected final StyleTable styles = new StyleTable();
+	/** the primary screen with the scrollback history */
+	protected final TermScreenBuffer primary;
+	/** the alternate screen without history, created when first used */
+	protected TermScreenBuffer alternate;
+	/** the current screen, primary or alternate */
+	protected TermScreenBuffer buffer;
+	protected final FlowControl flowControl = new FlowControl();
+	/** copy-on-write, iterated without allocation on every change */
+	private volatile Listener[] listeners = new Listener[0];
+	private int rowCount;
+	private int colCount;
+	private int curx = -1;
+	private int cury = -1;
+	private boolean cursorEnabled = true;
+	private boolean blink;
+	private boolean bold;
+	private boolean concealed;
+	private boolean italic;
+	private boolean reversed;
+	private boolean underscore;
+	private int foreground = ColorCode.DEFAULT;
+	private int background = ColorCode.DEFAULT;
+	/** current StyleTable index, or -1 when the attributes have changed */
+	private int style = -1;
+	/** System.nanoTime() when the synchronized update has started, or 0 */
+	private volatile long synchronizedOutputStart;
+	/** the cursor position on the primary screen while the alternate screen is shown */
+	private int primaryX;
+	private int primaryY;
+	/** the scrolling region set by the emulator, kept for encodeScreen() */
+	private int scrollTop;
+	private int scrollBottom;
+	/** the background reflow of history is running, guarded by the lock */
+	private boolean reflowRunning;
+	/** the styles saved by getAttributes() on the primary and the alternate screens, kept when releasing the unused styles */
+	private int primarySavedStyle = -1;
+	private int alternateSavedStyle = -1;
+	/** the number of styles to be replaced by the default one before the next attempt to release the unused styles */
+	private int reclaimDelay;
+	
+	
+	/** creates a model with the scrollback history of the specified capacity, or no history if 0 */
+	public TermModel(int historyCapacity)
+	{
+		primary = new TermScreenBuffer(styles, historyCapacity);
+		buffer = primary;
+	}
+	
+	
+	public TermModel(int cols, int rows, int historyCapacity)
+	{
+		this(historyCapacity);
+		setSize(cols, rows);
+	}
+	
+	
+	public Object getLock()
+	{
+		return lock;
+	}
+	
+	
+	/** returns the current screen buffer, primary or alternate */
+	public TermScreenBuffer getBuffer()
+	{
+		return buffer;
+	}
+	
+	
+	/** returns the primary screen buffer, which holds the scrollback history */
+	public TermScreenBuffer getPrimaryBuffer()
+	{
+		return primary;
+	}
+	
+	
+	/** returns true if the alternate screen is shown */
+	public boolean isAlternateScreen()
+	{
+		return (buffer != primary);
+	}
+	
+	
+	public StyleTable getStyleTable()
+	{
+		return styles;
+	}
+	
+	
+	/** returns the flow control between the connection feeding this model and the renderer */
+	public FlowControl getFlowControl()
+	{
+		return flowControl;
+	}
+	
+	
+	public synchronized void addListener(Listener li)
+	{
+		Listener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+		ls[ls.length - 1] = li;
+		listeners = ls;
+	}
+	
+	
+	public synchronized void removeListener(Listener li)
+	{
+		Listener[] ls = listeners;
+		for(int i=0; i<ls.length; i++)
+		{
+			if(ls[i] == li)
+			{
+				Listener[] rv = new Listener[ls.length - 1];
+				System.arraycopy(ls, 0, rv, 0, i);
+				System.arraycopy(ls, i + 1, rv, i, rv.length - i);
+				listeners = rv;
+				return;
+			}
+		}
+	}
+	
+	
+	protected void fireChanged()
+	{
+		for(Listener li: listeners)
+		{
+			li.onModelChanged(this);
+		}
+	}
+	
+	
+	/** 
+	 * resizes the screen, moving the lines which no longer fit into the history.
+	 * When the column count changes, the soft-wrapped lines are reflowed: the screen at once,
+	 * the older history lines in the background.
+	 */
+	public void setSize(int cols, int rows)
+	{
+		boolean reflow = false;
+		synchronized(lock)
+		{
+			boolean alt = isAlternateScreen();
+			int[] cursor = new int[]
+			{
+				Math.max(0, curx),
+				Math.max(0, Math.min(cury, rowCount - 1))
+			};
+			int[] primaryCursor = alt ? new int[] { primaryX, Math.min(primaryY, rowCount - 1) } : cursor;
+			
+			colCount = cols;
+			rowCount = rows;
+			// the emulator resets the scrolling region when resized
+			scrollTop = 0;
+			scrollBottom = rows;
+			
+			primary.resize(cols, rows, primaryCursor);
+			if(alt)
+			{
+				primaryX = primaryCursor[0];
+				primaryY = primaryCursor[1];
+				alternate.resize(cols, rows, cursor);
+			}
+			else if(alternate != null)
+			{
+				alternate.resize(cols, rows);
+			}
+			
+			if(cury >= 0)
+			{
+				curx = cursor[0];
+				cury = cursor[1];
+			}
+			
+			if(primary.isReflowPending() && !reflowRunning)
+			{
+				reflowRunning = true;
+				reflow = true;
+			}
+		}
+		
+		if(reflow)
+		{
+			Thread.ofVirtual().name("reflow").start(this::reflowHistory);
+		}
+		fireChanged();
+	}
+	
+	
+	/** reflows the history left by the resize, a chunk at a time to keep the lock available */
+	protected void reflowHistory()
+	{
+		for(;;)
+		{
+			synchronized(lock)
+			{
+				if(primary.reflowHistory(REFLOW_CHUNK))
+				{
+					reflowRunning = false;
+					break;
+				}
+			}
+			Thread.yield();
+		}
+		fireChanged();
+	}
+	
+	
+	/** returns the number of times the lines have been reflowed, under lock */
+	public int getReflowCount()
+	{
+		return primary.getReflowCount();
+	}
+	
+	
+	@Override
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+	
+	
+	@Override
+	public int getColumnCount()
+	{
+		return colCount;
+	}
+	
+	
+	/** 
+	 * returns the number of the line to be moved into the history next, allowing the observers
+	 * to keep their viewports anchored (see TermScreenBuffer).
+	 */
+	public long getHistoryCounter()
+	{
+		return primary.getHistoryCounter();
+	}
+	
+	
+	/** returns the change in the history size made by the background reflow, which does not move the viewport */
+	public long getReflowShift()
+	{
+		return primary.getReflowShift();
+	}
+	
+	
+	@Override
+	public int getCursorX()
+	{
+		return curx;
+	}
+	
+	
+	@Override
+	public int getCursorY()
+	{
+		return cury;
+	}
+	
+	
+	public boolean isCursorEnabled()
+	{
+		return cursorEnabled;
+	}
+	
+	
+	/**
+	 * encodes the screen, the cursor position, the scrolling region, and the current attributes as
+	 * a VT sequence which recreates them when processed by the emulator.  While the alternate screen
+	 * is shown, the primary screen and its cursor position are encoded first.  The history is not
+	 * included.  The glyph in the bottom right cell is omitted: printing it would scroll the screen.
+	 */
+	public String encodeScreen()
+	{
+		synchronized(lock)
+		{
+			boolean alt = isAlternateScreen();
+			StringBuilder sb = new StringBuilder(colCount * rowCount * (alt ? 2 : 1) + 256);
+			// the default scrolling region while printing
+			sb.append("\u001b[?1047l\u001b[r\u001b[0m\u001b[2J");
+			encodeLines(sb, primary);
+			
+			if(alt)
+			{
+				// restored by the model when switching back to the primary screen
+				sb.append("\u001b[").append(Math.max(0, primaryY) + 1).append(';').append(Math.max(0, primaryX) + 1).append('H');
+				sb.append("\u001b[?1047h\u001b[0m\u001b[2J");
+				encodeLines(sb, alternate);
+			}
+			
+			if((scrollTop > 0) || (scrollBottom < rowCount))
+			{
+				// homes the cursor
+				sb.append("\u001b[").append(scrollTop + 1).append(';').append(Math.min(scrollBottom, rowCount)).append('r');
+			}
+			
+			sb.append("\u001b[").append(Math.max(0, cury) + 1).append(';').append(Math.max(0, curx) + 1).append('H');
+			appendAttributes(sb, styles.get(currentStyle()));
+			return sb.toString();
+		}
+	}
+	
+	
+	/** appends the glyphs of the screen lines with their attributes, following the reset of the attributes */
+	private void encodeLines(StringBuilder sb, TermScreenBuffer b)
+	{
+		int st = StyleTable.DEFAULT;
+		for(int y=0; y<rowCount; y++)
+		{
+			ScreenLine line = b.getScreenLine(y);
+			int w = Math.min(colCount, line.getWidth());
+			
+			// the position where the next cell would be printed, or -1
+			int pos = -1;
+			for(int x=0; x<w; x++)
+			{
+				int cp = line.getCodePoint(x);
+				if((cp == 0) || (cp == ScreenLine.WIDE_TAIL))
+				{
+					continue;
+				}
+				
+				int end = ((x + 1 < w) && (line.getCodePoint(x + 1) == ScreenLine.WIDE_TAIL)) ? x + 2 : x + 1;
+				if((end >= colCount) && (y == rowCount - 1))
+				{
+					break;
+				}
+				
+				if(pos != x)
+				{
+					sb.append("\u001b[").append(y + 1).append(';').append(x + 1).append('H');
+				}
+				
+				int s = line.getStyle(x);
+				if(s != st)
+				{
+					appendAttributes(sb, styles.get(s));
+					st = s;
+				}
+				
+				String c = line.getCluster(x);
+				if(c == null)
+				{
+					sb.appendCodePoint(cp);
+				}
+				else
+				{
+					sb.append(c);
+				}
+				pos = end;
+			}
+		}
+	}
+	
+	
+	/** appends the SGR sequence which sets the attributes of the style */
+	private static void appendAttributes(StringBuilder sb, CellStyle cs)
+	{
+		sb.append("\u001b[0");
+		if(Flag.BOLD.is(cs.flags))
+		{
+			sb.append(";1");
+		}
+		if(Flag.UNDERSCORE.is(cs.flags))
+		{
+			sb.append(";4");
+		}
+		if(Flag.BLINK.is(cs.flags))
+		{
+			sb.append(";5");
+		}
+		if(Flag.REVERSE.is(cs.flags))
+		{
+			sb.append(";7");
+		}
+		appendColor(sb, cs.fg, 30, 90, 38);
+		appendColor(sb, cs.bg, 40, 100, 48);
+		sb.append('m');
+	}
+	
+	
+	private static void appendColor(StringBuilder sb, int color, int base, int bright, int extended)
+	{
+		if(ColorCode.isIndexed(color))
+		{
+			int ix = ColorCode.getIndex(color);
+			if(ix < 8)
+			{
+				sb.append(';').append(base + ix);
+			}
+			else if(ix < 16)
+			{
+				sb.append(';').append(bright + ix - 8);
+			}
+			else
+			{
+				sb.append(';').append(extended).append(";5;").append(ix);
+			}
+		}
+		else if(ColorCode.isRGB(color))
+		{
+			int rgb = ColorCode.getRGB(color);
+			sb.append(';').append(extended).append(";2;");
+			sb.append(rgb >> 16).append(';').append((rgb >> 8) & 0xff).append(';').append(rgb & 0xff);
+		}
+	}
+	
+	
+	@Override
+	public void bell()
+	{
+		for(Listener li: listeners)
+		{
+			li.onBell(this);
+		}
+	}
+	
+	
+	@Override
+	public int draw(int x, int y, int codePoint)
+	{
+		int w;
+		synchronized(lock)
+		{
+			if(UnicodeWidth.width(codePoint) == 0)
+			{
+				buffer.combine(x - 1, y, codePoint);
+				w = 0;
+			}
+			else
+			{
+				if((x >= colCount) || ((x + 1 >= colCount) && UnicodeWidth.isWide(codePoint)))
+				{
+					return -1;
+				}
+				
+				w = buffer.setCell(x, y, codePoint, currentStyle());
+			}
+		}
+		
+		fireChanged();
+		return w;
+	}
+	
+	
+	@Override
+	public void draw(int x, int y, int[] text, int start, int end)
+	{
+		synchronized(lock)
+		{
+			// the screen line drops the glyphs past its width, which is the column count
+			buffer.setCells(x, y, text, start, end, currentStyle());
+		}
+		
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void combine(int x, int y, int codePoint)
+	{
+		synchronized(lock)
+		{
+			buffer.combine(x, y, codePoint);
+		}
+		
+		fireChanged();
+	}
+	
+	
+	/** returns the StyleTable index corresponding to the current attributes */
+	protected int currentStyle()
+	{
+		if(style < 0)
+		{
+			if(styles.isFull())
+			{
+				if(reclaimDelay > 0)
+				{
+					reclaimDelay--;
+				}
+				else
+				{
+					reclaimStyles();
+				}
+			}
+			style = styles.intern(foreground, background, currentFlags());
+		}
+		return style;
+	}
+	
+	
+	/** releases the styles no longer used by any line, under lock */
+	protected void reclaimStyles()
+	{
+		BitSet used = new BitSet(styles.size());
+		primary.markStyles(used);
+		if(alternate != null)
+		{
+			alternate.markStyles(used);
+		}
+		
+		if(primarySavedStyle >= 0)
+		{
+			used.set(primarySavedStyle);
+		}
+		if(alternateSavedStyle >= 0)
+		{
+			used.set(alternateSavedStyle);
+		}
+		
+		int n = styles.reclaim(used);
+		log.debug("released %d styles", n);
+		
+		if(n < RECLAIM_INTERVAL)
+		{
+			// most styles are still in use
+			reclaimDelay = RECLAIM_INTERVAL;
+		}
+	}
+	
+	
+	/** returns the flags corresponding to the current attributes */
+	protected int currentFlags()
+	{
+		int flags = 0;
+		if(blink)
+		{
+			flags |= Flag.BLINK.bit(); // TODO blink must be handled in software!  cursor animation, opposite phase
+		}
+		if(bold)
+		{
+			flags |= Flag.BOLD.bit();
+		}
+		if(reversed)
+		{
+			flags |= Flag.REVERSE.bit();
+		}
+		if(italic)
+		{
+			flags |= Flag.ITALIC.bit();
+		}
+		if(underscore)
+		{
+			flags |= Flag.UNDERSCORE.bit();
+		}
+		return flags;
+	}
+	
+	
+	@Override
+	public void scroll(int top, int bottom, boolean up)
+	{
+		synchronized(lock)
+		{
+			buffer.scroll(top, bottom, up);
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void scroll(int top, int bottom, int count, boolean up)
+	{
+		synchronized(lock)
+		{
+			buffer.scroll(top, bottom, count, up);
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void insertLines(int y, int bottom, int count)
+	{
+		synchronized(lock)
+		{
+			buffer.insertLines(y, bottom, count);
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void deleteLines(int y, int bottom, int count)
+	{
+		synchronized(lock)
+		{
+			buffer.deleteLines(y, bottom, count);
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void setAlternateScreen(boolean on)
+	{
+		synchronized(lock)
+		{
+			if(on == isAlternateScreen())
+			{
+				return;
+			}
+			
+			if(on)
+			{
+				if(alternate == null)
+				{
+					alternate = new TermScreenBuffer(styles, 0);
+					alternate.resize(colCount, rowCount);
+				}
+				
+				primaryX = curx;
+				primaryY = cury;
+				buffer = alternate;
+			}
+			else
+			{
+				buffer = primary;
+				curx = primaryX;
+				cury = primaryY;
+			}
+			
+			// the renderers repaint the swapped lines
+			buffer.resetScroll();
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void setScrollRegion(int top, int bottom)
+	{
+		synchronized(lock)
+		{
+			scrollTop = top;
+			scrollBottom = bottom;
+		}
+	}
+	
+	
+	@Override
+	public void setWrapped(int y)
+	{
+		synchronized(lock)
+		{
+			buffer.getScreenLine(y).setWrapped(true);
+		}
+	}
+	
+	
+	@Override
+	public boolean isWrapped(int y)
+	{
+		synchronized(lock)
+		{
+			return buffer.getScreenLine(y).isWrapped();
+		}
+	}
+	
+	
+	@Override
+	public void clearLine(int x, int y)
+	{
+		synchronized(lock)
+		{
+			buffer.clearLineFrom(x, y);
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void hideCursor()
+	{
+		synchronized(lock)
+		{
+			cursorEnabled = false;
+		}
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void showCursor(int x, int y)
+	{
+		synchronized(lock)
+		{
+			if((curx != x) || (cury != y) || (!cursorEnabled))
+			{
+				curx = x;
+				cury = y;
+				cursorEnabled = true;
+			}
+			else
+			{
+				return;
+			}
+		}
+		
+		fireChanged();
+	}
+	
+	
+	@Override
+	public void setSynchronizedOutput(boolean on)
+	{
+		if(on)
+		{
+			synchronizedOutputStart = Math.max(1, System.nanoTime());
+		}
+		else
+		{
+			synchronizedOutputStart = 0;
+			fireChanged();
+		}
+	}
+	
+	
+	/** returns System.nanoTime() when the synchronized update has started, or 0 if none is in progress */
+	public long getSynchronizedOutputStart()
+	{
+		return synchronizedOutputStart;
+	}
+	
+	
+	@Override
+	public void setForeground(int color)
+	{
+		synchronized(lock)
+		{
+			foreground = color;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void setBackground(int color)
+	{
+		synchronized(lock)
+		{
+			background = color;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void clearAttributes()
+	{
+		synchronized(lock)
+		{
+			blink = false;
+			bold = false;
+			concealed = false;
+			italic = false;
+			reversed = false;
+			underscore = false;
+			foreground = ColorCode.DEFAULT;
+			background = ColorCode.DEFAULT;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public int getAttributes()
+	{
+		synchronized(lock)
+		{
+			// the saved style is kept until the next save on the same screen
+			int s = currentStyle();
+			if(isAlternateScreen())
+			{
+				alternateSavedStyle = s;
+			}
+			else
+			{
+				primarySavedStyle = s;
+			}
+			return s;
+		}
+	}
+	
+	
+	@Override
+	public void setAttributes(int attributes)
+	{
+		synchronized(lock)
+		{
+			CellStyle cs = styles.get(attributes);
+			blink = Flag.BLINK.is(cs.flags);
+			bold = Flag.BOLD.is(cs.flags);
+			italic = Flag.ITALIC.is(cs.flags);
+			reversed = Flag.REVERSE.is(cs.flags);
+			underscore = Flag.UNDERSCORE.is(cs.flags);
+			foreground = cs.fg;
+			background = cs.bg;
+			style = attributes;
+		}
+	}
+	
+	
+	@Override
+	public void setBlink()
+	{
+		synchronized(lock)
+		{
+			blink = true;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void setBold()
+	{
+		synchronized(lock)
+		{
+			bold = true;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void setConcealed()
+	{
+		synchronized(lock)
+		{
+			concealed = true;
+			style = -1;
+		}
+	}
+	
+	
+	public boolean isConcealed()
+	{
+		return concealed;
+	}
+	
+	
+	@Override
+	public void setItalic()
+	{
+		synchronized(lock)
+		{
+			italic = true;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void setReversed()
+	{
+		synchronized(lock)
+		{
+			reversed = true;
+			style = -1;
+		}
+	}
+	
+	
+	@Override
+	public void setUnderscore()
+	{
+		synchronized(lock)
+		{
+			underscore = true;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearBold()
+	{
+		synchronized(lock)
+		{
+			bold = false;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearBlink()
+	{
+		synchronized(lock)
+		{
+			blink = false;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearConcealed()
+	{
+		synchronized(lock)
+		{
+			concealed = false;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearItalic()
+	{
+		synchronized(lock)
+		{
+			italic = false;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearReversed()
+	{
+		synchronized(lock)
+		{
+			reversed = false;
+			style = -1;
+		}
+	}	
+	
+	@Override
+	public void clearUnderscore()
+	{
+		synchronized(lock)
+		{
+			underscore = false;
+			style = -1;
+		}
+	}
+}
@@ -0,0 +1,827 @@
+// Copyright © 2020-2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.log.Log;
+import goryachev.common.util.CList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Terminal Screen Buffer.
+ * 
+ * Lines scrolled off the top of the screen are moved into the scrollback history.
+ * The renderers detect the modified lines by their versions (see TermFrame).
+ * Scrolling does not modify the moved lines: instead, the buffer counts the scroll operations and
+ * accumulates the current run of the scrolls of the same region in the same direction, so each renderer
+ * can tell how far the screen has scrolled since its last frame (see getScrollRun()), shift
+ * the already rendered pixels, and paint the newly exposed rows only.
+ * 
+ * The screen rows are kept in a ring: scrolling the whole screen rotates the index of the top row.
+ * Scrolling a region moves the line references with System.arraycopy().  The lines scrolled out
+ * of a region are cleared and reused for the exposed rows, the lines moved into the history
+ * are replaced by the lines evicted from it.  The lines evicted from history and the rows dropped
+ * on resize are kept in a pool, up to the screen height, so the steady-state scrolling and
+ * the resizing do not allocate.
+ * 
+ * When the column count changes, the soft-wrapped lines are reflowed to the new width (see LineReflow).
+ * The screen and the most recent SYNC_HISTORY lines of history are reflowed immediately, so the view
+ * is updated at once even while the window edge is being dragged.  The older history keeps its
+ * lines until reflowHistory() catches up, a limited number of lines at a time, and swaps the result
+ * in at once.
+ * 
+ * The history lines are numbered in the order they were added: the newest one is
+ * (getHistoryCounter() - 1).  The lines taken back from the history by the reflow are subtracted
+ * from the counter, and the lines added or removed at the head by reflowHistory() change it by
+ * the difference, so the oldest line is always numbered (getHistoryCounter() - getHistorySize()).
+ * 
+ * Access to screen buffer must be externally synchronized.
+ */
+public class TermScreenBuffer
+{
+	protected static final Log log = Log.get("TermScreenBuffer");
+	/** the number of the most recent history lines reflowed along with the screen */
+	public static final int SYNC_HISTORY = 1000;
+	protected final StyleTable styles;
+	protected final CircularLineBuffer history;
+	protected final HistoryIndex historyIndex;
+	protected int columnCount;
+	protected ScreenLine[] lines;
+	/** the index of the top row in lines */
+	private int first;
+	/** the scratch array for the lines scrolled out of a region */
+	private ScreenLine[] scrolled;
+	/** the previous lines array, reused when the ring is normalized */
+	private ScreenLine[] spare;
+	/** the lines for reuse, cleared when taken */
+	private ScreenLine[] pool = new ScreenLine[0];
+	private int poolSize;
+	/** the maximum number of lines in the pool */
+	private int poolLimit;
+	/** the number of the scroll operations and resets so far */
+	private long scrollSequence;
+	/** the sequence number of the first scroll of the current run */
+	private long scrollRunStart = 1;
+	/** the line count scrolled by the current run: positive when scrolled up, negative when scrolled down */
+	private long scrollRun;
+	private int scrollRunTop;
+	private int scrollRunBottom;
+	/** the reflow of the lines at the head of history, or null */
+	private LineReflow reflow;
+	/** the number of history lines at the head to be reflowed */
+	private int staleCount;
+	/** the number of those lines evicted from history in the meantime */
+	private int staleEvicted;
+	/** the number of those lines added to the reflow */
+	private int staleNext;
+	private int reflowCount;
+	/** the number of lines moved into the history, less the lines taken back by the reflow */
+	private long historyCounter;
+	/** the total change in the history size made by reflowHistory() */
+	private long reflowShift;
+	
+	
+	/** creates a screen buffer with the scrollback history of the specified capacity, or no history if 0 */
+	public TermScreenBuffer(StyleTable styles, int historyCapacity)
+	{
+		this.styles = styles;
+		this.history = (historyCapacity > 0) ? new CircularLineBuffer(styles, historyCapacity) : null;
+		this.historyIndex = (historyCapacity > 0) ? new HistoryIndex(historyCapacity) : null;
+	}
+	
+	
+	public StyleTable getStyleTable()
+	{
+		return styles;
+	}
+	
+	
+	/** resizes the screen, returns the change in the history size */
+	public int resize(int colCount, int rowCount)
+	{
+		return resize(colCount, rowCount, null);
+	}
+	
+	
+	/** 
+	 * resizes the screen, reflowing the soft-wrapped lines when the column count changes.
+	 * Returns the change in the history size.
+	 * @param cursor the cursor position {x, y}, updated to the new position, or null
+	 */
+	public int resize(int colCount, int rowCount, int[] cursor)
+	{
+		log.debug("cols=%d, rows=%d", colCount, rowCount);
+		
+		if((lines != null) && (colCount != columnCount) && (cursor != null))
+		{
+			return reflow(colCount, rowCount, cursor);
+		}
+		
+		int ct = nonEmptyRowCount();
+		if(cursor != null)
+		{
+			ct = Math.max(ct, cursor[1] + 1);
+		}
+		
+		int start;
+		if(ct > rowCount)
+		{
+			start = ct - rowCount;
+		}
+		else
+		{
+			start = 0;
+		}
+		
+		int lineCount = lines == null ? 0 : lines.length;
+		int hs = getHistorySize();
+		
+		setPoolLimit(rowCount);
+		
+		// rows removed from the top go to history
+		int moved = 0;
+		while(moved < start)
+		{
+			if(!moveToHistory(line(moved)))
+			{
+				break;
+			}
+			moved++;
+		}
+		
+		// the rows dropped are reused
+		for(int i=moved; i<start; i++)
+		{
+			recycle(line(i));
+		}
+		for(int i=start+rowCount; i<lineCount; i++)
+		{
+			recycle(line(i));
+		}
+		
+		if(history != null)
+		{
+			history.updateSize(colCount, rowCount);
+		}
+		
+		ScreenLine[] ls = rowArray(rowCount);
+		for(int i=0; i<rowCount; i++)
+		{
+			int ix = i + start;
+			ScreenLine s;
+			if(ix < lineCount)
+			{
+				s = line(ix);
+				s.setWidth(colCount);
+			}
+			else
+			{
+				s = newLine(colCount);
+			}
+			ls[i] = s;
+		}
+		
+		setLines(ls);
+		this.columnCount = colCount;
+		resetScroll();
+		
+		if(cursor != null)
+		{
+			cursor[1] -= start;
+		}
+		return getHistorySize() - hs;
+	}
+	
+	
+	/** reflows the screen and the tail of history, leaving the rest of history to reflowHistory() */
+	protected int reflow(int colCount, int rowCount, int[] cursor)
+	{
+		int hs = getHistorySize();
+		int from = Math.max(0, hs - SYNC_HISTORY);
+		// starting with a logical line, unless it is too long
+		int min = Math.max(0, from - SYNC_HISTORY);
+		while((from > min) && history.get(from - 1).isWrapped())
+		{
+			from--;
+		}
+		
+		int last = Math.max(nonEmptyRowCount(), cursor[1] + 1);
+		
+		LineReflow r = new LineReflow(styles, colCount);
+		for(int i=from; i<hs; i++)
+		{
+			r.add(history.get(i), i, -1);
+		}
+		for(int y=0; y<last; y++)
+		{
+			r.add(line(y), hs + y, (y == cursor[1]) ? cursor[0] : -1);
+		}
+		
+		CList<ScreenLine> out = r.getLines();
+		int sz = out.size();
+		int cy = Math.max(0, r.getCursorRow());
+		
+		// the last rows go to the screen, keeping the cursor visible
+		int start = Math.min(Math.max(0, sz - rowCount), cy);
+		
+		for(int i=from; i<hs; i++)
+		{
+			history.removeLast();
+		}
+		historyCounter -= (hs - from);
+		
+		// the older lines are reflowed later
+		reflow = (from > 0) ? new LineReflow(styles, colCount) : null;
+		staleCount = from;
+		staleEvicted = 0;
+		staleNext = 0;
+		
+		setPoolLimit(rowCount);
+		
+		// the rows above the screen go to history, or are reused when there is no history
+		for(int i=0; i<start; i++)
+		{
+			ScreenLine s = out.get(i);
+			if(!moveToHistory(s))
+			{
+				recycle(s);
+			}
+		}
+		for(int i=start+rowCount; i<sz; i++)
+		{
+			recycle(out.get(i));
+		}
+		
+		if(history != null)
+		{
+			history.updateSize(colCount, rowCount);
+		}
+		
+		ScreenLine[] ls = rowArray(rowCount);
+		for(int i=0; i<rowCount; i++)
+		{
+			int ix = i + start;
+			ScreenLine s;
+			if(ix < sz)
+			{
+				s = out.get(ix);
+				if(s.getWidth() != colCount)
+				{
+					s.setWidth(colCount);
+				}
+			}
+			else
+			{
+				s = newLine(colCount);
+			}
+			ls[i] = s;
+		}
+		
+		setLines(ls);
+		this.columnCount = colCount;
+		resetScroll();
+		reflowed();
+		
+		cursor[0] = Math.min(r.getCursorX(), colCount - 1);
+		cursor[1] = cy - start;
+		return getHistorySize() - hs;
+	}
+	
+	
+	/** returns an array for the screen rows, reusing the spare one if it has the right length */
+	private ScreenLine[] rowArray(int n)
+	{
+		ScreenLine[] ls = spare;
+		if((ls != null) && (ls.length == n))
+		{
+			spare = null;
+			return ls;
+		}
+		return new ScreenLine[n];
+	}
+	
+	
+	private void setLines(ScreenLine[] ls)
+	{
+		spare = lines;
+		lines = ls;
+		first = 0;
+	}
+	
+	
+	/** returns true if the history lines are waiting to be reflowed by reflowHistory() */
+	public boolean isReflowPending()
+	{
+		return (reflow != null);
+	}
+	
+	
+	/** 
+	 * reflows up to the specified number of the history lines left by the last resize,
+	 * returns true when done.
+	 */
+	public boolean reflowHistory(int maxLines)
+	{
+		if(reflow == null)
+		{
+			return true;
+		}
+		
+		if(staleNext < staleEvicted)
+		{
+			staleNext = staleEvicted;
+		}
+		
+		int end = Math.min(staleCount, staleNext + maxLines);
+		for( ; staleNext<end; staleNext++)
+		{
+			reflow.add(history.get(staleNext - staleEvicted), staleNext, -1);
+		}
+		
+		if(staleNext < staleCount)
+		{
+			return false;
+		}
+		
+		// replaces the old lines at once
+		CList<ScreenLine> out = reflow.getLines();
+		int hs = history.size();
+		for(int i=staleCount-staleEvicted; i>0; i--)
+		{
+			history.removeFirst();
+		}
+		
+		for(int i=out.size()-1; i>=0; i--)
+		{
+			if((reflow.getSource(i) < staleEvicted) || (history.size() >= history.getCapacity()))
+			{
+				break;
+			}
+			history.insertFirst(out.get(i));
+		}
+		
+		// the lines at the head are renumbered, keeping the newest ones as they are
+		int d = history.size() - hs;
+		historyCounter += d;
+		reflowShift += d;
+		
+		reflow = null;
+		reflowed();
+		return true;
+	}
+	
+	
+	private void reflowed()
+	{
+		reflowCount++;
+		if(historyIndex != null)
+		{
+			historyIndex.reset(historyCounter);
+		}
+	}
+	
+	
+	/** returns the number of times the lines have been reflowed, so the observers can tell their line numbers are stale */
+	public int getReflowCount()
+	{
+		return reflowCount;
+	}
+	
+	
+	/** returns the number of the line to be added to the history next */
+	public long getHistoryCounter()
+	{
+		return historyCounter;
+	}
+	
+	
+	/** 
+	 * returns the total change in the history size made by the background reflow, which changes
+	 * the line numbers without adding any output below the viewport.
+	 */
+	public long getReflowShift()
+	{
+		return reflowShift;
+	}
+	
+	
+	/** sets the StyleTable indexes used by the screen, the history, and the lines being reflowed */
+	public void markStyles(BitSet used)
+	{
+		if(lines != null)
+		{
+			for(ScreenLine s: lines)
+			{
+				s.markStyles(used);
+			}
+		}
+		
+		if(history != null)
+		{
+			for(int i=history.size()-1; i>=0; i--)
+			{
+				history.get(i).markStyles(used);
+			}
+		}
+		
+		if(reflow != null)
+		{
+			reflow.markStyles(used);
+		}
+	}
+	
+	
+	protected int nonEmptyRowCount()
+	{
+		if(lines != null)
+		{
+			for(int i=lines.length-1; i>=0; i--)
+			{
+				if(!line(i).isEmpty())
+				{
+					return (i+1); 
+				}
+			}
+		}
+		return 0;
+	}
+	
+	
+	/** returns the line at the specified screen row */
+	protected final ScreenLine line(int y)
+	{
+		return lines[index(y)];
+	}
+	
+	
+	/** returns the index in lines of the specified screen row */
+	private int index(int y)
+	{
+		int ix = first + y;
+		int n = lines.length;
+		return (ix >= n) ? ix - n : ix;
+	}
+	
+	
+	public void getCell(CellInfo inf, int x, int y)
+	{
+		ScreenLine t = line(y);
+		t.getCell(inf, x);
+	}
+	
+	
+	/** sets the cell, returns the number of cells taken by the glyph, or 0 if it does not fit */
+	public int setCell(int x, int y, int codePoint, int style)
+	{
+		return line(y).setCell(x, codePoint, style);
+	}
+	
+	
+	/** 
+	 * sets a run of cells starting at (x, y) to the code points from start (inclusive) to end (exclusive),
+	 * returns the number of cells taken by the glyphs which fit on the line
+	 */
+	public int setCells(int x, int y, int[] text, int start, int end, int style)
+	{
+		return line(y).setCells(x, text, start, end, style);
+	}
+	
+	
+	/** attaches a combining mark to the cell */
+	public void combine(int x, int y, int mark)
+	{
+		line(y).combine(x, mark);
+	}
+	
+	
+	public void clearLineFrom(int x, int y)
+	{
+		if(y < lines.length)
+		{
+			ScreenLine t = line(y);
+			t.clearFrom(x);
+		}
+		else
+		{
+			log.error("line=%d, total=%d", y, lines.length);
+		}
+	}
+	
+
+	/** 
+	 * scrolls the specified area up or down by one line.
+	 * @return true if a line has been moved into the scrollback history
+	 */
+	public boolean scroll(int top, int bottom, boolean up)
+	{
+		return scroll(top, bottom, 1, up) > 0;
+	}
+	
+	
+	/** 
+	 * scrolls the rows from top (inclusive) to bottom (exclusive) up or down by the specified number
+	 * of lines.  The lines scrolled off the top of the screen are moved into the history.
+	 * @return the number of lines moved into the history
+	 */
+	public int scroll(int top, int bottom, int count, boolean up)
+	{
+		return shift(top, bottom, count, up, (top == 0));
+	}
+	
+	
+	/** inserts the blank lines at row y, shifting the rows down to the bottom (exclusive) */
+	public void insertLines(int y, int bottom, int count)
+	{
+		shift(y, bottom, count, false, false);
+	}
+	
+	
+	/** deletes the lines at row y, shifting the rows up from the bottom (exclusive) */
+	public void deleteLines(int y, int bottom, int count)
+	{
+		shift(y, bottom, count, true, false);
+	}
+	
+	
+	protected int shift(int top, int bottom, int count, boolean up, boolean save)
+	{
+		int rows = lines.length;
+		top = Math.max(0, top);
+		bottom = Math.min(bottom, rows);
+		int h = bottom - top;
+		if((h <= 0) || (count <= 0))
+		{
+			return 0;
+		}
+		
+		count = Math.min(count, h);
+		addScroll(top, bottom, up ? count : -count);
+		save = save && up && (history != null);
+		
+		if(h == rows)
+		{
+			// the whole screen: the replaced lines stay in place, the ring rotates
+			int start = up ? 0 : rows - count;
+			for(int i=0; i<count; i++)
+			{
+				int ix = index(start + i);
+				lines[ix] = replace(lines[ix], save);
+			}
+			first = up ? index(count) : index(rows - count);
+			return save ? count : 0;
+		}
+		
+		normalize();
+		
+		if((scrolled == null) || (scrolled.length < rows))
+		{
+			scrolled = new ScreenLine[rows];
+		}
+		ScreenLine[] tmp = scrolled;
+		
+		if(up)
+		{
+			System.arraycopy(lines, top, tmp, 0, count);
+			System.arraycopy(lines, top + count, lines, top, h - count);
+			for(int i=0; i<count; i++)
+			{
+				lines[bottom - count + i] = replace(tmp[i], save);
+			}
+		}
+		else
+		{
+			System.arraycopy(lines, bottom - count, tmp, 0, count);
+			System.arraycopy(lines, top, lines, top + count, h - count);
+			for(int i=0; i<count; i++)
+			{
+				lines[top + i] = replace(tmp[i], false);
+			}
+		}
+		Arrays.fill(tmp, 0, count, null);
+		return save ? count : 0;
+	}
+	
+	
+	/** returns the blank line replacing the line scrolled out, which is either moved into history or cleared */
+	private ScreenLine replace(ScreenLine s, boolean save)
+	{
+		if(save && moveToHistory(s))
+		{
+			return newLine();
+		}
+		
+		s.reset(columnCount);
+		return s;
+	}
+	
+	
+	/** makes the top row the first element of lines */
+	private void normalize()
+	{
+		if(first != 0)
+		{
+			int n = lines.length;
+			ScreenLine[] ls = spare;
+			if((ls == null) || (ls.length != n))
+			{
+				ls = new ScreenLine[n];
+			}
+			System.arraycopy(lines, first, ls, 0, n - first);
+			System.arraycopy(lines, 0, ls, n - first, first);
+			spare = lines;
+			lines = ls;
+			first = 0;
+		}
+	}
+	
+	
+	protected void addScroll(int top, int bottom, int delta)
+	{
+		scrollSequence++;
+		if((scrollRun != 0) && (top == scrollRunTop) && (bottom == scrollRunBottom) && ((scrollRun > 0) == (delta > 0)))
+		{
+			scrollRun += delta;
+		}
+		else
+		{
+			// starts a new run
+			scrollRunStart = scrollSequence;
+			scrollRun = delta;
+			scrollRunTop = top;
+			scrollRunBottom = bottom;
+		}
+	}
+	
+	
+	/** ends the current run, so the observers which have not seen all of it do not shift their rows */
+	public void resetScroll()
+	{
+		scrollSequence++;
+		scrollRunStart = scrollSequence + 1;
+		scrollRun = 0;
+	}
+	
+	
+	/** 
+	 * returns the sequence number of the last scroll operation or reset.  An observer remembers it along with
+	 * the run start and the run line count to compute the scroll since its last update.
+	 */
+	public long getScrollSequence()
+	{
+		return scrollSequence;
+	}
+	
+	
+	/** returns the sequence number of the first scroll of the current run */
+	public long getScrollRunStart()
+	{
+		return scrollRunStart;
+	}
+	
+	
+	/** returns the number of lines scrolled by the current run, positive when scrolled up */
+	public long getScrollRun()
+	{
+		return scrollRun;
+	}
+	
+	
+	public int getScrollRunTop()
+	{
+		return scrollRunTop;
+	}
+	
+	
+	public int getScrollRunBottom()
+	{
+		return scrollRunBottom;
+	}
+	
+	
+	/** 
+	 * moves the line into history, if the history is enabled.
+	 * the line evicted from the full history is kept for reuse.
+	 */
+	protected boolean moveToHistory(ScreenLine s)
+	{
+		if(history == null)
+		{
+			return false;
+		}
+		
+		historyCounter++;
+		historyIndex.appended();
+		ScreenLine evicted = history.push(s);
+		if(evicted != null)
+		{
+			if(reflow == null)
+			{
+				recycle(evicted);
+			}
+			else if(staleEvicted < staleCount)
+			{
+				// might be still referenced by the reflow, and is not reused
+				staleEvicted++;
+			}
+		}
+		return true;
+	}
+	
+	
+	/** returns an empty line of the current width, reusing a pooled line if available */
+	protected ScreenLine newLine()
+	{
+		return newLine(columnCount);
+	}
+	
+	
+	/** returns an empty line of the specified width, reusing a pooled line if available */
+	protected ScreenLine newLine(int width)
+	{
+		if(poolSize == 0)
+		{
+			return new ScreenLine(styles, width);
+		}
+		
+		ScreenLine s = pool[--poolSize];
+		pool[poolSize] = null;
+		s.reset(width);
+		return s;
+	}
+	
+	
+	/** keeps the line no longer in use for reuse, unless the pool is full */
+	protected void recycle(ScreenLine s)
+	{
+		if(poolSize < poolLimit)
+		{
+			pool[poolSize++] = s;
+		}
+	}
+	
+	
+	private void setPoolLimit(int n)
+	{
+		if(n > pool.length)
+		{
+			pool = Arrays.copyOf(pool, n);
+		}
+		
+		while(poolSize > n)
+		{
+			pool[--poolSize] = null;
+		}
+		poolLimit = n;
+	}
+	
+	
+	/** returns the maximum number of lines in the scrollback history, 0 if the history is disabled */
+	public int getHistoryCapacity()
+	{
+		return (history == null) ? 0 : history.getCapacity();
+	}
+	
+	
+	/** returns the trigram index of the scrollback history, or null if the history is disabled */
+	public HistoryIndex getHistoryIndex()
+	{
+		return historyIndex;
+	}
+	
+	
+	/** 
+	 * indexes up to the specified number of the history lines appended since the last update,
+	 * returns true if the history index is up to date.
+	 */
+	public boolean updateHistoryIndex(int maxLines)
+	{
+		return (historyIndex == null) || historyIndex.update(history, maxLines);
+	}
+	
+	
+	/** returns the number of lines in the scrollback history */
+	public int getHistorySize()
+	{
+		return (history == null) ? 0 : history.size();
+	}
+	
+	
+	/** 
+	 * returns the line to be displayed at the specified row of the viewport,
+	 * which is scrolled back into history by the specified number of lines.
+	 */
+	public ScreenLine getViewLine(int y, int offset)
+	{
+		int ix = y - offset;
+		if(ix < 0)
+		{
+			return history.get(history.size() + ix);
+		}
+		return line(ix);
+	}
+
+
+	public ScreenLine getScreenLine(int y)
+	{
+		return line(y);
+	}
+}
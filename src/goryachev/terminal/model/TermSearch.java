@@ -0,0 +1,684 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.log.Log;
+import goryachev.common.util.ElasticLongArray;
+import goryachev.common.util.text.FindOperation;
+import goryachev.common.util.text.FindOperationResult;
+import java.util.Arrays;
+
+
+/**
+ * Terminal Search: finds the matches of a FindOperation in the screen and the scrollback history
+ * of a TermModel, in a background thread.
+ *
+ * The lines are identified by their absolute numbers, which do not change as the lines move into
+ * the history: the screen row y is the line (historyCounter + y).  The history is scanned from the
+ * newest line back to the oldest, a small chunk at a time, so the model lock is never held for long
+ * and the matches near the bottom are found first.  The lines entering the history afterwards are
+ * scanned once as the output arrives, and the screen is rescanned after each change, so the search
+ * never starts from scratch.
+ *
+ * The history blocks which cannot contain the pattern according to the HistoryIndex are skipped
+ * without copying their lines.  While the alternate screen is shown, its rows take the place of the
+ * screen rows, and the history of the primary screen is searched.  The search starts over when the
+ * lines are reflowed after a resize, since their numbers change.
+ *
+ * The matches are kept sorted, packed in a long (see getLine(), getColumn(), getCellCount()).
+ */
+public class TermSearch
+{
+	/** Search Listener, invoked in the search thread */
+	public interface Listener
+	{
+		public void onSearchUpdated(TermSearch s);
+	}
+	
+	//
+	
+	protected static final Log log = Log.get("TermSearch");
+	/** the number of lines copied at once under the model lock, one history block */
+	protected static final int CHUNK = HistoryIndex.BLOCK_SIZE;
+	/** the maximum number of history lines indexed at once under the model lock */
+	protected static final int INDEX_CHUNK = 4096;
+	/** the minimum interval between the scans of the new output, in milliseconds */
+	protected static final long UPDATE_INTERVAL = 100;
+	private static final int COLUMN_BITS = 12;
+	private static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+	private final TermModel model;
+	private final FindOperation op;
+	private final Listener listener;
+	/** the trigrams of the pattern, or null when the index cannot be used */
+	private final int[] keys;
+	private final TermModel.Listener modelListener;
+	private final Object signal = new Object();
+	private volatile boolean cancelled;
+	private volatile boolean dirty = true;
+	// the results, guarded by this
+	/** the matches found by scanning back, in descending order */
+	private final ElasticLongArray older = new ElasticLongArray(256);
+	/** the matches in the lines which entered the history later, in ascending order */
+	private final ElasticLongArray newer = new ElasticLongArray(256);
+	/** the index of the first match in newer which is still in the history */
+	private int newerStart;
+	/** the matches on the screen, in ascending order */
+	private long[] screen = new long[0];
+	private boolean complete;
+	// the search thread state
+	private final String[] texts = new String[CHUNK];
+	private final int[][] maps = new int[CHUNK][];
+	private final StringBuilder sb = new StringBuilder();
+	private int[] map = new int[256];
+	private final ElasticLongArray found = new ElasticLongArray(256);
+	/** the oldest line in the history */
+	private long firstLine;
+	/** the history lines below this one are yet to be scanned backwards */
+	private long backward;
+	/** the history lines starting with this one are yet to be scanned forward */
+	private long forward;
+	private long lastUpdate;
+	/** the model reflow count the line numbers are valid for */
+	private int reflowCount;
+	private final long startTime = System.nanoTime();
+	private volatile int blockCount;
+	private volatile int skippedBlockCount;
+	
+	
+	public TermSearch(TermModel model, FindOperation op, Listener li)
+	{
+		this.model = model;
+		this.op = op;
+		this.listener = li;
+		this.keys = HistoryIndex.getQueryKeys(op.getPattern());
+		
+		modelListener = new TermModel.Listener()
+		{
+			@Override
+			public void onModelChanged(TermModel m)
+			{
+				if(!dirty)
+				{
+					synchronized(signal)
+					{
+						dirty = true;
+						signal.notifyAll();
+					}
+				}
+			}
+			
+			
+			@Override
+			public void onBell(TermModel m)
+			{
+			}
+		};
+	}
+	
+	
+	/** starts the search in a new thread */
+	public void start()
+	{
+		synchronized(model.getLock())
+		{
+			reflowCount = model.getReflowCount();
+			forward = model.getHistoryCounter();
+			backward = forward;
+			firstLine = forward - model.getPrimaryBuffer().getHistorySize();
+		}
+		
+		model.addListener(modelListener);
+		Thread.ofVirtual().name("TermSearch").start(this::run);
+	}
+	
+	
+	/** stops the search thread */
+	public void cancel()
+	{
+		model.removeListener(modelListener);
+		synchronized(signal)
+		{
+			cancelled = true;
+			signal.notifyAll();
+		}
+	}
+	
+	
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	
+	protected void run()
+	{
+		try
+		{
+			while(!cancelled)
+			{
+				boolean changed = false;
+				long now = System.currentTimeMillis();
+				boolean pending = (backward > firstLine);
+				updateIndex();
+				
+				if(dirty && (!pending || (now - lastUpdate >= UPDATE_INTERVAL)))
+				{
+					dirty = false;
+					lastUpdate = now;
+					scanUpdates();
+					changed = true;
+				}
+				
+				if(backward > firstLine)
+				{
+					scanBackward();
+					changed = true;
+				}
+				else if(!isComplete())
+				{
+					synchronized(this)
+					{
+						complete = true;
+					}
+					changed = true;
+					
+					log.debug("%d matches in %d ms, skipped %d of %d blocks", getMatchCount(), (System.nanoTime() - startTime) / 1_000_000L, skippedBlockCount, blockCount);
+				}
+				
+				if(changed)
+				{
+					listener.onSearchUpdated(this);
+				}
+				else
+				{
+					waitForChanges();
+				}
+			}
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+		}
+	}
+	
+	
+	private void waitForChanges() throws InterruptedException
+	{
+		synchronized(signal)
+		{
+			if(cancelled)
+			{
+				return;
+			}
+			
+			if(dirty)
+			{
+				// throttle the rescans of a busy screen
+				long t = UPDATE_INTERVAL - (System.currentTimeMillis() - lastUpdate);
+				if(t > 0)
+				{
+					signal.wait(t);
+				}
+			}
+			else
+			{
+				signal.wait();
+			}
+		}
+	}
+	
+	
+	/** brings the history index up to date, a limited number of lines at a time */
+	private void updateIndex()
+	{
+		if(keys == null)
+		{
+			return;
+		}
+		
+		while(!cancelled)
+		{
+			synchronized(model.getLock())
+			{
+				if(model.getPrimaryBuffer().updateHistoryIndex(INDEX_CHUNK))
+				{
+					return;
+				}
+			}
+		}
+	}
+	
+	
+	/** scans the lines which entered the history since the last scan, and the screen */
+	protected void scanUpdates()
+	{
+		for(;;)
+		{
+			long start;
+			int count;
+			int rows;
+			long hc;
+			
+			synchronized(model.getLock())
+			{
+				checkReflow();
+				TermScreenBuffer b = model.getPrimaryBuffer();
+				hc = model.getHistoryCounter();
+				firstLine = hc - b.getHistorySize();
+				if(forward < firstLine)
+				{
+					forward = firstLine;
+				}
+				
+				// skip the blocks which cannot contain the pattern
+				HistoryIndex hx = b.getHistoryIndex();
+				long end = hc;
+				while(forward < hc)
+				{
+					if(cancelled)
+					{
+						return;
+					}
+					
+					long block = HistoryIndex.getBlock(forward);
+					end = Math.min(hc, (block + 1) * HistoryIndex.BLOCK_SIZE);
+					if(end <= forward)
+					{
+						// the line numbers are inconsistent, the lines are scanned without skipping
+						log.warn("forward=%d, end=%d, history=%d", forward, end, hc);
+						end = Math.min(hc, forward + CHUNK);
+						break;
+					}
+					
+					blockCount++;
+					if(hx.mayContain(block, keys))
+					{
+						break;
+					}
+					skippedBlockCount++;
+					forward = end;
+				}
+				
+				start = forward;
+				count = (int)(end - forward);
+				if(count > 0)
+				{
+					int ix = (int)(start - firstLine);
+					for(int i=0; i<count; i++)
+					{
+						copy(i, b.getViewLine(0, b.getHistorySize() - ix - i));
+					}
+					rows = 0;
+				}
+				else
+				{
+					// the screen
+					rows = Math.min(model.getRowCount(), CHUNK);
+					for(int i=0; i<rows; i++)
+					{
+						copy(i, model.getBuffer().getScreenLine(i));
+					}
+					start = hc;
+				}
+			}
+			
+			if(count > 0)
+			{
+				found.clear();
+				for(int i=0; i<count; i++)
+				{
+					find(i, start + i, false);
+				}
+				
+				synchronized(this)
+				{
+					for(int i=0; i<found.size(); i++)
+					{
+						newer.add(found.get(i));
+					}
+					trim();
+				}
+				
+				forward = start + count;
+			}
+			else
+			{
+				found.clear();
+				for(int i=0; i<rows; i++)
+				{
+					find(i, start + i, false);
+				}
+				
+				synchronized(this)
+				{
+					screen = found.toArray();
+					trim();
+				}
+				return;
+			}
+		}
+	}
+	
+	
+	/** scans a chunk of the history lines back from the oldest one scanned so far */
+	protected void scanBackward()
+	{
+		long start;
+		int count;
+		
+		synchronized(model.getLock())
+		{
+			checkReflow();
+			TermScreenBuffer b = model.getPrimaryBuffer();
+			long hc = model.getHistoryCounter();
+			firstLine = hc - b.getHistorySize();
+			if(backward <= firstLine)
+			{
+				return;
+			}
+			
+			// skip the blocks which cannot contain the pattern
+			HistoryIndex hx = b.getHistoryIndex();
+			for(;;)
+			{
+				if(cancelled)
+				{
+					return;
+				}
+				
+				long block = HistoryIndex.getBlock(backward - 1);
+				start = Math.max(firstLine, block * HistoryIndex.BLOCK_SIZE);
+				if(start >= backward)
+				{
+					// the line numbers are inconsistent, the older lines are not searched
+					log.warn("backward=%d, start=%d, first=%d", backward, start, firstLine);
+					backward = firstLine;
+					return;
+				}
+				
+				blockCount++;
+				if(hx.mayContain(block, keys))
+				{
+					break;
+				}
+				
+				skippedBlockCount++;
+				backward = start;
+				if(backward <= firstLine)
+				{
+					return;
+				}
+			}
+			
+			count = (int)(backward - start);
+			int ix = (int)(start - firstLine);
+			for(int i=0; i<count; i++)
+			{
+				copy(i, b.getViewLine(0, b.getHistorySize() - ix - i));
+			}
+		}
+		
+		found.clear();
+		for(int i=count-1; i>=0; i--)
+		{
+			find(i, start + i, true);
+		}
+		
+		synchronized(this)
+		{
+			for(int i=0; i<found.size(); i++)
+			{
+				older.add(found.get(i));
+			}
+			trim();
+		}
+		
+		backward = start;
+	}
+	
+	
+	/** starts over when the lines have been reflowed, under the model lock */
+	private void checkReflow()
+	{
+		int n = model.getReflowCount();
+		if(n == reflowCount)
+		{
+			return;
+		}
+		
+		reflowCount = n;
+		forward = model.getHistoryCounter();
+		backward = forward;
+		firstLine = forward - model.getPrimaryBuffer().getHistorySize();
+		
+		synchronized(this)
+		{
+			older.clear();
+			newer.clear();
+			newerStart = 0;
+			screen = new long[0];
+			complete = false;
+		}
+	}
+	
+	
+	/** removes the matches in the lines evicted from the history, under this lock */
+	private void trim()
+	{
+		int sz = older.size();
+		while((sz > 0) && (getLine(older.get(sz - 1)) < firstLine))
+		{
+			sz--;
+		}
+		older.trim(sz);
+		
+		if(sz == 0)
+		{
+			while((newerStart < newer.size()) && (getLine(newer.get(newerStart)) < firstLine))
+			{
+				newerStart++;
+			}
+		}
+	}
+	
+	
+	/** copies the text of the line, under the model lock */
+	private void copy(int ix, ScreenLine line)
+	{
+		StringBuilder sb = this.sb;
+		sb.setLength(0);
+		
+		int w = line.getWidth();
+		while((w > 0) && (line.getCodePoint(w - 1) <= ' ') && (line.getCluster(w - 1) == null))
+		{
+			w--;
+		}
+		
+		if(map.length < (w * 2 + 1))
+		{
+			map = new int[w * 2 + 1];
+		}
+		
+		boolean simple = true;
+		for(int x=0; x<w; x++)
+		{
+			int start = sb.length();
+			String cl = line.getCluster(x);
+			int c = line.getCodePoint(x);
+			if(cl != null)
+			{
+				sb.append(cl);
+				simple = false;
+			}
+			else if(c == ScreenLine.WIDE_TAIL)
+			{
+				simple = false;
+				continue;
+			}
+			else if(c == 0)
+			{
+				sb.append(' ');
+			}
+			else
+			{
+				sb.appendCodePoint(c);
+				if(c >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+				{
+					simple = false;
+				}
+			}
+			
+			int end = sb.length();
+			if(end > map.length - 1)
+			{
+				map = Arrays.copyOf(map, end * 2 + 1);
+			}
+			for(int i=start; i<end; i++)
+			{
+				map[i] = x;
+			}
+		}
+		map[sb.length()] = w;
+		
+		texts[ix] = sb.toString();
+		maps[ix] = simple ? null : Arrays.copyOf(map, sb.length() + 1);
+	}
+	
+	
+	/** finds the matches in the copied line, adding them to found in ascending or descending order */
+	private void find(int ix, long line, boolean descending)
+	{
+		String text = texts[ix];
+		texts[ix] = null;
+		
+		FindOperationResult r = op.find(text);
+		if(r == null)
+		{
+			return;
+		}
+		
+		int[] m = maps[ix];
+		int len = r.getPattern().length();
+		int[] ixs = r.getIndexes();
+		for(int j=0; j<ixs.length; j++)
+		{
+			int k = descending ? ixs[ixs.length - 1 - j] : ixs[j];
+			int x;
+			int end;
+			if(m == null)
+			{
+				x = k;
+				end = k + len;
+			}
+			else
+			{
+				// the case conversion may change the length of the text in some locales
+				int last = m.length - 1;
+				x = m[Math.min(k, last)];
+				end = m[Math.min(k + len - 1, last)] + 1;
+			}
+			found.add(pack(line, x, end - x));
+		}
+	}
+	
+	
+	private static long pack(long line, int column, int cells)
+	{
+		return (line << (2 * COLUMN_BITS)) | (Math.min(column, MAX_COLUMN) << COLUMN_BITS) | Math.min(Math.max(1, cells), MAX_COLUMN);
+	}
+	
+	
+	/** returns the absolute line number of the match */
+	public static long getLine(long match)
+	{
+		return match >>> (2 * COLUMN_BITS);
+	}
+	
+	
+	/** returns the column of the first cell of the match */
+	public static int getColumn(long match)
+	{
+		return (int)(match >>> COLUMN_BITS) & MAX_COLUMN;
+	}
+	
+	
+	/** returns the number of cells the match spans */
+	public static int getCellCount(long match)
+	{
+		return (int)match & MAX_COLUMN;
+	}
+	
+	
+	/** returns the number of history blocks looked up in the index */
+	public int getBlockCount()
+	{
+		return blockCount;
+	}
+	
+	
+	/** returns the number of history blocks skipped because they cannot contain the pattern */
+	public int getSkippedBlockCount()
+	{
+		return skippedBlockCount;
+	}
+	
+	
+	/** returns the fraction of the history blocks skipped, 0.0 ... 1.0 */
+	public double getSkipRate()
+	{
+		int n = blockCount;
+		return (n == 0) ? 0.0 : (skippedBlockCount / (double)n);
+	}
+	
+	
+	/** returns true when the whole history has been scanned */
+	public synchronized boolean isComplete()
+	{
+		return complete;
+	}
+	
+	
+	public synchronized int getMatchCount()
+	{
+		return older.size() + (newer.size() - newerStart) + screen.length;
+	}
+	
+	
+	/** returns the match at the specified index, the matches are sorted by the line and the column */
+	public synchronized long getMatch(int ix)
+	{
+		int sz = older.size();
+		if(ix < sz)
+		{
+			return older.get(sz - 1 - ix);
+		}
+		ix -= sz;
+		
+		sz = newer.size() - newerStart;
+		if(ix < sz)
+		{
+			return newer.get(newerStart + ix);
+		}
+		return screen[ix - sz];
+	}
+	
+	
+	/** returns the index of the first match at or after the specified position, or the match count if none */
+	public synchronized int indexOf(long line, int column)
+	{
+		long key = pack(line, column, 0) & ~MAX_COLUMN;
+		int lo = 0;
+		int hi = getMatchCount();
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(getMatch(mid) < key)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
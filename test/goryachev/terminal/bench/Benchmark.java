@@ -0,0 +1,128 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.bench;
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * A minimal benchmark harness: runs the operation repeatedly for a warmup period, then for
+ * a measurement period, and reports the throughput and the bytes allocated per operation.
+ */
+public abstract class Benchmark
+{
+	/** performs one operation and returns the number of input bytes it processed, or 0 */
+	protected abstract long run() throws Exception;
+	
+	//
+	
+	/** consumes the results so the JIT cannot eliminate the work */
+	public static volatile long sink;
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	private final String name;
+	
+	
+	public Benchmark(String name)
+	{
+		this.name = name;
+	}
+	
+	
+	/** prepares the state before the measurement, not measured */
+	protected void setUp() throws Exception
+	{
+	}
+	
+	
+	/** returns true if the operation must not allocate, the run fails when it does */
+	public boolean isAllocationFree()
+	{
+		return false;
+	}
+	
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	
+	public Result measure(long warmupMillis, long measureMillis) throws Exception
+	{
+		setUp();
+		loop(warmupMillis);
+		
+		// the allocation counter is per thread, the benchmark runs on the current one
+		long alloc = threads.getCurrentThreadAllocatedBytes();
+		Result r = loop(measureMillis);
+		r.allocated = threads.getCurrentThreadAllocatedBytes() - alloc;
+		return r;
+	}
+	
+	
+	private Result loop(long millis) throws Exception
+	{
+		Result r = new Result(name);
+		long start = System.nanoTime();
+		long deadline = start + millis * 1_000_000L;
+		long t;
+		do
+		{
+			r.bytes += run();
+			r.ops++;
+			t = System.nanoTime();
+		} while(t < deadline);
+		
+		r.nanos = t - start;
+		return r;
+	}
+	
+	
+	//
+	
+	
+	public static class Result
+	{
+		public final String name;
+		public long ops;
+		public long bytes;
+		public long nanos;
+		public long allocated;
+		
+		
+		public Result(String name)
+		{
+			this.name = name;
+		}
+		
+		
+		public double opsPerSecond()
+		{
+			return ops * 1e9 / nanos;
+		}
+		
+		
+		public double megabytesPerSecond()
+		{
+			return bytes * 1e9 / nanos / 1_000_000.0;
+		}
+		
+		
+		public long allocatedPerOp()
+		{
+			return allocated / Math.max(1, ops);
+		}
+		
+		
+		@Override
+		public String toString()
+		{
+			if(bytes > 0)
+			{
+				return String.format("%-24s %12.1f ops/s %10.1f MB/s %12d B/op", name, opsPerSecond(), megabytesPerSecond(), allocatedPerOp());
+			}
+			else
+			{
+				return String.format("%-24s %12.1f ops/s %15s %12d B/op", name, opsPerSecond(), "", allocatedPerOp());
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.bench;
+import goryachev.terminal.ITermView;
+import java.util.Arrays;
+
+
+/**
+ * In-memory ITermView: keeps the code points in a plain grid and ignores the attributes,
+ * so the benchmarks measure the emulator rather than the view.
+ */
+public class MemoryTermView
+	implements ITermView
+{
+	private final int cols;
+	private final int rows;
+	private final int[][] grid;
+	private int bells;
+	private int curx;
+	private int cury;
+	
+	
+	public MemoryTermView(int cols, int rows)
+	{
+		this.cols = cols;
+		this.rows = rows;
+		this.grid = new int[rows][cols];
+	}
+	
+	
+	@Override
+	public int getRowCount()
+	{
+		return rows;
+	}
+	
+	
+	@Override
+	public int getColumnCount()
+	{
+		return cols;
+	}
+	
+	
+	@Override
+	public void bell()
+	{
+		bells++;
+	}
+	
+	
+	@Override
+	public int draw(int x, int y, int codePoint)
+	{
+		if(x >= cols)
+		{
+			return -1;
+		}
+		grid[y][x] = codePoint;
+		return 1;
+	}
+	
+	
+	@Override
+	public void draw(int x, int y, int[] text, int start, int end)
+	{
+		System.arraycopy(text, start, grid[y], x, end - start);
+	}
+	
+	
+	@Override
+	public void combine(int x, int y, int codePoint)
+	{
+	}
+	
+	
+	@Override
+	public void scroll(int top, int bottom, boolean up)
+	{
+		if(up)
+		{
+			int[] t = grid[top];
+			System.arraycopy(grid, top + 1, grid, top, bottom - top - 1);
+			Arrays.fill(t, 0);
+			grid[bottom - 1] = t;
+		}
+		else
+		{
+			int[] t = grid[bottom - 1];
+			System.arraycopy(grid, top, grid, top + 1, bottom - top - 1);
+			Arrays.fill(t, 0);
+			grid[top] = t;
+		}
+	}
+	
+	
+	@Override
+	public void scroll(int top, int bottom, int count, boolean up)
+	{
+		count = Math.min(count, bottom - top);
+		for(int i=0; i<count; i++)
+		{
+			scroll(top, bottom, up);
+		}
+	}
+	
+	
+	@Override
+	public void insertLines(int y, int bottom, int count)
+	{
+		scroll(y, bottom, count, false);
+	}
+	
+	
+	@Override
+	public void deleteLines(int y, int bottom, int count)
+	{
+		scroll(y, bottom, count, true);
+	}
+	
+	
+	@Override
+	public void setSynchronizedOutput(boolean on)
+	{
+	}
+	
+	
+	@Override
+	public void setAlternateScreen(boolean on)
+	{
+	}
+	
+	
+	@Override
+	public void setScrollRegion(int top, int bottom)
+	{
+	}
+	
+	
+	@Override
+	public void setWrapped(int y)
+	{
+	}
+	
+	
+	@Override
+	public boolean isWrapped(int y)
+	{
+		return false;
+	}
+	
+	
+	@Override
+	public void clearLine(int x, int y)
+	{
+		if(x < cols)
+		{
+			Arrays.fill(grid[y], x, cols, 0);
+		}
+	}
+	
+	
+	@Override
+	public void hideCursor()
+	{
+	}
+	
+	
+	@Override
+	public void showCursor(int x, int y)
+	{
+		curx = x;
+		cury = y;
+	}
+	
+	
+	@Override
+	public int getCursorX()
+	{
+		return curx;
+	}
+	
+	
+	@Override
+	public int getCursorY()
+	{
+		return cury;
+	}
+	
+	
+	@Override
+	public void clearAttributes()
+	{
+	}
+	
+	
+	@Override
+	public int getAttributes()
+	{
+		return 0;
+	}
+	
+	
+	@Override
+	public void setAttributes(int attributes)
+	{
+	}
+	
+	
+	@Override
+	public void setBlink()
+	{
+	}
+	
+	
+	@Override
+	public void setBold()
+	{
+	}
+	
+	
+	@Override
+	public void setConcealed()
+	{
+	}
+	
+	
+	@Override
+	public void setItalic()
+	{
+	}
+	
+	
+	@Override
+	public void setReversed()
+	{
+	}
+	
+	
+	@Override
+	public void setUnderscore()
+	{
+	}
+	
+	
+	@Override
+	public void clearBold()
+	{
+	}
+	
+	
+	@Override
+	public void clearBlink()
+	{
+	}
+	
+	
+	@Override
+	public void clearConcealed()
+	{
+	}
+	
+	
+	@Override
+	public void clearItalic()
+	{
+	}
+	
+	
+	@Override
+	public void clearReversed()
+	{
+	}
+	
+	
+	@Override
+	public void clearUnderscore()
+	{
+	}
+	
+	
+	@Override
+	public void setBackground(int color)
+	{
+	}
+	
+	
+	@Override
+	public void setForeground(int color)
+	{
+	}
+	
+	
+	/** returns a value depending on the screen content, to keep the work from being optimized away */
+	public int checksum()
+	{
+		int h = bells;
+		for(int[] line: grid)
+		{
+			h = 31 * h + Arrays.hashCode(line);
+		}
+		return h;
+	}
+}
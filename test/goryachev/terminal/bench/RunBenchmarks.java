@@ -0,0 +1,502 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.bench;
+import goryachev.common.util.CList;
+import goryachev.common.util.text.FindOperation;
+import goryachev.terminal.ATermConnection;
+import goryachev.terminal.GTermVT100;
+import goryachev.terminal.ReplayConnection;
+import goryachev.terminal.SessionRecorder;
+import goryachev.terminal.Utf8Decoder;
+import goryachev.terminal.model.ColorCode;
+import goryachev.terminal.model.LinkDetector;
+import goryachev.terminal.model.ScreenLine;
+import goryachev.terminal.model.StyleTable;
+import goryachev.terminal.model.TermFrame;
+import goryachev.terminal.model.TermModel;
+import goryachev.terminal.model.TermScreenBuffer;
+import goryachev.terminal.model.TermSearch;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Throughput benchmarks for the emulator core: decodes UTF-8 into code points the way the connection
+ * does, feeds representative VT streams into GTermVT100 bound to an in-memory view or to the headless
+ * TermModel, and exercises ScreenLine mutation and TermScreenBuffer scrolling.
+ * The log tail benchmark doubles as the allocation test: scrolling with a full history, the lines
+ * are recycled, and the run fails unless the result is 0 B/op.
+ * The search benchmarks find a rare pattern in a large history, with and without the HistoryIndex
+ * (a pattern of two characters cannot use the trigram index).
+ * The resize benchmark measures the synchronous part of the reflow with a full history.
+ * The page scroll benchmarks copy the pages of colored compiler output into a TermFrame, with
+ * and without the link detection.  The replay benchmark plays back a recorded session into
+ * a headless model as fast as possible.
+ *
+ * Usage: RunBenchmarks [warmup seconds] [measure seconds] [filter]
+ * or ant bench
+ */
+public class RunBenchmarks
+{
+	private static final int COLS = 120;
+	private static final int ROWS = 40;
+	private static final int SIZE = 4 * 1024 * 1024;
+	/** the size of a read by the connection */
+	private static final int CHUNK = 65536;
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		long warmup = (args.length > 0) ? Long.parseLong(args[0]) * 1000 : 3000;
+		long measure = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 5000;
+		String filter = (args.length > 2) ? args[2] : null;
+		
+		CList<Benchmark> bs = new CList<>();
+		bs.add(decoder("utf8.ascii-flood", VTStreams.asciiFlood(SIZE)));
+		bs.add(decoder("utf8.cjk", VTStreams.utf8Cjk(SIZE)));
+		bs.add(emulator("vt.ascii-flood", VTStreams.asciiFlood(SIZE)));
+		bs.add(emulator("vt.sgr-colored", VTStreams.sgrColored(SIZE)));
+		bs.add(emulator("vt.sgr-truecolor", VTStreams.sgrTruecolor(SIZE)));
+		bs.add(emulator("vt.tui-redraw", VTStreams.tuiRedraw(SIZE, COLS, ROWS)));
+		bs.add(emulator("vt.utf8-cjk", VTStreams.utf8Cjk(SIZE)));
+		bs.add(model("model.ascii-flood", VTStreams.asciiFlood(SIZE)));
+		bs.add(model("model.sgr-colored", VTStreams.sgrColored(SIZE)));
+		bs.add(model("model.sgr-truecolor", VTStreams.sgrTruecolor(SIZE)));
+		bs.add(model("model.tui-redraw", VTStreams.tuiRedraw(SIZE, COLS, ROWS)));
+		bs.add(model("model.region-scroll", VTStreams.regionScroll(SIZE, COLS, ROWS)));
+		bs.add(screenLineMutation());
+		bs.add(screenBufferScroll());
+		bs.add(screenBufferLogTail());
+		bs.add(search("search.scan", "xq"));
+		bs.add(search("search.indexed", "xqz"));
+		bs.add(resizeReflow());
+		bs.add(pageScroll("frame.page-scroll", false));
+		bs.add(pageScroll("frame.page-scroll-links", true));
+		bs.add(replay("replay.sgr-colored", VTStreams.sgrColored(SIZE)));
+		
+		boolean failed = false;
+		for(Benchmark b: bs)
+		{
+			if((filter == null) || b.getName().contains(filter))
+			{
+				Benchmark.Result r = b.measure(warmup, measure);
+				System.out.println(r);
+				
+				if(b.isAllocationFree() && (r.allocatedPerOp() > 0))
+				{
+					System.out.println("FAILED: " + b.getName() + " allocates " + r.allocatedPerOp() + " B/op");
+					failed = true;
+				}
+			}
+		}
+		
+		if(failed)
+		{
+			System.exit(1);
+		}
+	}
+	
+	
+	private static Benchmark decoder(String name, byte[] data)
+	{
+		return new Benchmark(name)
+		{
+			private Utf8Decoder decoder;
+			private ByteBuffer in;
+			private int[] codePoints;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				decoder = new Utf8Decoder();
+				in = ByteBuffer.wrap(data);
+				codePoints = new int[CHUNK + 1];
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				in.clear();
+				while(in.hasRemaining())
+				{
+					int n = decoder.decode(in, codePoints, 0, codePoints.length);
+					sink += codePoints[n - 1];
+				}
+				return data.length;
+			}
+		};
+	}
+	
+	
+	private static Benchmark emulator(String name, byte[] data)
+	{
+		return new Benchmark(name)
+		{
+			private GTermVT100 em;
+			private MemoryTermView view;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				view = new MemoryTermView(COLS, ROWS);
+				em = new GTermVT100();
+				em.setView(view);
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				for(int off=0; off<data.length; off+=CHUNK)
+				{
+					em.process(data, off, Math.min(CHUNK, data.length - off));
+				}
+				sink += view.checksum();
+				return data.length;
+			}
+		};
+	}
+	
+	
+	private static Benchmark model(String name, byte[] data)
+	{
+		return new Benchmark(name)
+		{
+			private GTermVT100 em;
+			private TermModel model;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				model = new TermModel(COLS, ROWS, 10_000);
+				em = new GTermVT100();
+				em.setView(model);
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				for(int off=0; off<data.length; off+=CHUNK)
+				{
+					em.process(data, off, Math.min(CHUNK, data.length - off));
+				}
+				
+				synchronized(model.getLock())
+				{
+					sink += model.getHistoryCounter();
+				}
+				return data.length;
+			}
+		};
+	}
+	
+	
+	private static Benchmark screenLineMutation()
+	{
+		return new Benchmark("screen-line.mutation")
+		{
+			private ScreenLine line;
+			private int[] text;
+			private int s1;
+			private int s2;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				StyleTable styles = new StyleTable();
+				s1 = styles.intern(ColorCode.indexed(7), ColorCode.indexed(0), 0);
+				s2 = styles.intern(ColorCode.indexed(1), ColorCode.DEFAULT, 0);
+				line = new ScreenLine(styles, COLS);
+				text = new int[COLS];
+				for(int i=0; i<COLS; i++)
+				{
+					text[i] = 'a' + (i % 26);
+				}
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				for(int x=0; x<COLS; x++)
+				{
+					line.setCell(x, text[x], (x & 1) == 0 ? s1 : s2);
+				}
+				line.setCells(0, text, 0, COLS, s1);
+				line.clearFrom(COLS / 2);
+				sink += line.getVersion();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark screenBufferScroll()
+	{
+		return new Benchmark("screen-buffer.scroll")
+		{
+			private TermScreenBuffer buffer;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				buffer = new TermScreenBuffer(new StyleTable(), 10_000);
+				buffer.resize(COLS, ROWS);
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				// a full screen scroll into the history, followed by a partial region scroll
+				buffer.setCell(0, ROWS - 1, 'x', StyleTable.DEFAULT);
+				buffer.scroll(0, ROWS, true);
+				buffer.scroll(1, ROWS - 1, false);
+				sink += buffer.getHistorySize();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark screenBufferLogTail()
+	{
+		return new Benchmark("screen-buffer.log-tail")
+		{
+			private TermScreenBuffer buffer;
+			private int[] text;
+			
+			
+			@Override
+			public boolean isAllocationFree()
+			{
+				return true;
+			}
+			
+			
+			@Override
+			protected void setUp()
+			{
+				buffer = new TermScreenBuffer(new StyleTable(), 10_000);
+				buffer.resize(COLS, ROWS);
+				text = new int[COLS];
+				for(int i=0; i<COLS; i++)
+				{
+					text[i] = 'a' + (i % 26);
+				}
+				
+				// fills the history
+				for(int i=0; i<10_000 + ROWS; i++)
+				{
+					buffer.scroll(0, ROWS, true);
+				}
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				// a screenful of lines appended at the bottom
+				for(int i=0; i<ROWS; i++)
+				{
+					buffer.setCells(0, ROWS - 1, text, 0, 40 + i, StyleTable.DEFAULT);
+					buffer.scroll(0, ROWS, true);
+				}
+				sink += buffer.getHistorySize();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark search(String name, String pattern)
+	{
+		return new Benchmark(name)
+		{
+			private TermModel model;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				model = new TermModel(COLS, ROWS, 100_000);
+				GTermVT100 em = new GTermVT100();
+				em.setView(model);
+				byte[] data = VTStreams.asciiFlood(SIZE * 2);
+				for(int off=0; off<data.length; off+=CHUNK)
+				{
+					em.process(data, off, Math.min(CHUNK, data.length - off));
+				}
+			}
+			
+			
+			@Override
+			protected long run() throws Exception
+			{
+				CountDownLatch done = new CountDownLatch(1);
+				FindOperation op = new FindOperation(Locale.ENGLISH, pattern, false, false, false);
+				TermSearch s = new TermSearch(model, op, (x) ->
+				{
+					if(x.isComplete())
+					{
+						done.countDown();
+					}
+				});
+				s.start();
+				done.await();
+				s.cancel();
+				sink += s.getMatchCount() + s.getSkippedBlockCount();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark resizeReflow()
+	{
+		return new Benchmark("model.resize-reflow")
+		{
+			private TermModel model;
+			private int count;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				model = new TermModel(COLS, ROWS, 100_000);
+				GTermVT100 em = new GTermVT100();
+				em.setView(model);
+				byte[] data = VTStreams.asciiFlood(SIZE * 4);
+				for(int off=0; off<data.length; off+=CHUNK)
+				{
+					em.process(data, off, Math.min(CHUNK, data.length - off));
+				}
+			}
+			
+			
+			@Override
+			protected long run() throws Exception
+			{
+				// dragging the window edge back and forth
+				int cols = COLS - 40 + (count++ % 40);
+				model.setSize(cols, ROWS);
+				sink += model.getBuffer().getHistorySize();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark pageScroll(String name, boolean links)
+	{
+		return new Benchmark(name)
+		{
+			private TermModel model;
+			private TermFrame frame;
+			private LinkDetector detector;
+			private int offset;
+			
+			
+			@Override
+			protected void setUp()
+			{
+				model = new TermModel(COLS, ROWS, 10_000);
+				GTermVT100 em = new GTermVT100();
+				em.setView(model);
+				byte[] data = VTStreams.sgrColored(SIZE);
+				for(int off=0; off<data.length; off+=CHUNK)
+				{
+					em.process(data, off, Math.min(CHUNK, data.length - off));
+				}
+				
+				frame = new TermFrame();
+				detector = links ? new LinkDetector() : null;
+			}
+			
+			
+			@Override
+			protected long run()
+			{
+				// one page back at a time, from the bottom to the top of the history
+				synchronized(model.getLock())
+				{
+					int max = model.getBuffer().getHistorySize();
+					offset = (offset + ROWS > max) ? 0 : offset + ROWS;
+					frame.update(model, offset, false);
+				}
+				
+				frame.updateLinks(detector);
+				frame.clearChanges();
+				sink += frame.getHistorySize();
+				return 0;
+			}
+		};
+	}
+	
+	
+	private static Benchmark replay(String name, byte[] data)
+	{
+		return new Benchmark(name)
+		{
+			private File file;
+			
+			
+			@Override
+			protected void setUp() throws Exception
+			{
+				file = File.createTempFile("session", ".rec");
+				file.deleteOnExit();
+				
+				TermModel model = new TermModel(COLS, ROWS, 10_000);
+				GTermVT100 em = new GTermVT100();
+				em.setView(model);
+				try(SessionRecorder r = new SessionRecorder(file, model))
+				{
+					for(int off=0; off<data.length; off+=CHUNK)
+					{
+						int len = Math.min(CHUNK, data.length - off);
+						r.received(data, off, len);
+						em.process(data, off, len);
+						r.processed(em.isIdle());
+					}
+				}
+			}
+			
+			
+			@Override
+			protected long run() throws Exception
+			{
+				TermModel model = new TermModel(COLS, ROWS, 10_000);
+				CountDownLatch done = new CountDownLatch(1);
+				ReplayConnection c = new ReplayConnection(file);
+				c.setSpeed(ReplayConnection.MAX_SPEED);
+				c.setListener(new ATermConnection.Listener()
+				{
+					@Override
+					public void onConnected(ATermConnection c)
+					{
+					}
+					
+					
+					@Override
+					public void onDisconnected(ATermConnection c, Throwable err)
+					{
+						done.countDown();
+					}
+				});
+				c.connect(model);
+				done.await();
+				sink += model.getHistoryCounter();
+				return c.getBytesReceived();
+			}
+		};
+	}
+}
@@ -0,0 +1,212 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.bench;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+
+/**
+ * Generates representative terminal output streams for the benchmarks.
+ * The streams are deterministic so the results can be compared between runs.
+ */
+public class VTStreams
+{
+	private static final String ESC = "\u001b";
+	private static final String[] LEVELS = { "INFO ", "DEBUG", "WARN ", "ERROR" };
+	private static final String[] WORDS =
+	{
+		"request", "session", "connection", "buffer", "handler", "worker", "timeout", "retry",
+		"cache", "index", "commit", "flush", "socket", "stream", "parser", "frame"
+	};
+	private static final String[] COLORS = { "01;34", "01;32", "01;36", "00", "01;35", "40;33;01", "01;31" };
+	private static final String CJK = "终端模拟器的性能测试日本語の文字列を表示する한국어텍스트渲染缓冲区字形";
+	
+	
+	/** plain ASCII log lines, as produced by tail -f or a build */
+	public static byte[] asciiFlood(int size)
+	{
+		Random r = new Random(1);
+		StringBuilder sb = new StringBuilder(size + 256);
+		int n = 0;
+		while(sb.length() < size)
+		{
+			sb.append(String.format("2024-05-01 12:%02d:%02d.%03d %s [worker-%d] ", n / 60 % 60, n % 60, r.nextInt(1000), LEVELS[r.nextInt(LEVELS.length)], r.nextInt(16)));
+			int words = 4 + r.nextInt(10);
+			for(int i=0; i<words; i++)
+			{
+				sb.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+			}
+			sb.append("id=").append(r.nextInt(1_000_000)).append(" took ").append(r.nextInt(500)).append(" ms\r\n");
+			n++;
+		}
+		return bytes(sb);
+	}
+	
+	
+	/** SGR-heavy output: colored ls listings and compiler diagnostics */
+	public static byte[] sgrColored(int size)
+	{
+		Random r = new Random(2);
+		StringBuilder sb = new StringBuilder(size + 256);
+		while(sb.length() < size)
+		{
+			if(r.nextBoolean())
+			{
+				// ls --color
+				for(int i=0; i<6; i++)
+				{
+					sb.append(ESC).append("[0m").append(ESC).append('[').append(COLORS[r.nextInt(COLORS.length)]).append('m');
+					sb.append(WORDS[r.nextInt(WORDS.length)]).append(r.nextInt(100));
+					sb.append(ESC).append("[0m  ");
+				}
+				sb.append("\r\n");
+			}
+			else
+			{
+				// compiler diagnostic
+				sb.append(ESC).append("[1m").append("src/goryachev/").append(WORDS[r.nextInt(WORDS.length)]).append(".java:").append(r.nextInt(2000)).append(": ");
+				sb.append(ESC).append("[1;31m").append("error: ").append(ESC).append("[0m");
+				sb.append("cannot find symbol ").append(ESC).append("[1;32m").append(WORDS[r.nextInt(WORDS.length)]).append(ESC).append("[0m\r\n");
+			}
+		}
+		return bytes(sb);
+	}
+	
+	
+	/** 256-color and truecolor output, as produced by syntax highlighters and modern prompts */
+	public static byte[] sgrTruecolor(int size)
+	{
+		Random r = new Random(5);
+		StringBuilder sb = new StringBuilder(size + 256);
+		while(sb.length() < size)
+		{
+			int words = 4 + r.nextInt(8);
+			for(int i=0; i<words; i++)
+			{
+				if(r.nextInt(4) == 0)
+				{
+					sb.append(ESC).append("[38;5;").append(r.nextInt(256)).append('m');
+				}
+				else
+				{
+					// gradients reuse a limited number of colors
+					int c = r.nextInt(64) * 4;
+					sb.append(ESC).append("[38;2;").append(c).append(';').append(255 - c).append(';').append(128).append('m');
+				}
+				
+				if(r.nextInt(8) == 0)
+				{
+					sb.append(ESC).append("[48;2;").append(r.nextInt(32)).append(";0;").append(r.nextInt(32)).append('m');
+				}
+				sb.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+			}
+			sb.append(ESC).append("[0m\r\n");
+		}
+		return bytes(sb);
+	}
+	
+	
+	/** cursor-addressed full screen updates, as produced by top, htop, or an editor */
+	public static byte[] tuiRedraw(int size, int cols, int rows)
+	{
+		Random r = new Random(3);
+		StringBuilder sb = new StringBuilder(size + 4096);
+		while(sb.length() < size)
+		{
+			sb.append(ESC).append("[H");
+			for(int y=1; y<=rows; y++)
+			{
+				sb.append(ESC).append('[').append(y).append(";1H");
+				if(y == 1)
+				{
+					sb.append(ESC).append("[7m");
+				}
+				else
+				{
+					sb.append(ESC).append("[3").append(1 + r.nextInt(7)).append('m');
+				}
+				
+				int len = r.nextInt(cols);
+				for(int x=0; x<len; x++)
+				{
+					sb.append((char)(' ' + r.nextInt(95)));
+				}
+				sb.append(ESC).append("[0m").append(ESC).append("[K");
+			}
+			sb.append(ESC).append('[').append(rows).append(";1H");
+		}
+		return bytes(sb);
+	}
+	
+	
+	/** 
+	 * an editor scrolling a split window: lines appended at the bottom of a scrolling region,
+	 * scrolled back and forth with SU, SD, RI, and edited with IL and DL
+	 */
+	public static byte[] regionScroll(int size, int cols, int rows)
+	{
+		Random r = new Random(5);
+		StringBuilder sb = new StringBuilder(size + 4096);
+		int top = 2;
+		int bottom = rows / 2;
+		sb.append(ESC).append('[').append(top).append(';').append(bottom).append('r');
+		while(sb.length() < size)
+		{
+			switch(r.nextInt(8))
+			{
+			case 0:
+				sb.append(ESC).append('[').append(1 + r.nextInt(3)).append('S');
+				break;
+			case 1:
+				sb.append(ESC).append('[').append(1 + r.nextInt(3)).append('T');
+				break;
+			case 2:
+				sb.append(ESC).append('[').append(top).append(";1H").append(ESC).append('M');
+				break;
+			case 3:
+				sb.append(ESC).append('[').append(top + r.nextInt(bottom - top)).append(";1H");
+				sb.append(ESC).append('[').append(1 + r.nextInt(2)).append(r.nextBoolean() ? 'L' : 'M');
+				break;
+			default:
+				sb.append(ESC).append('[').append(bottom).append(";1H\r\n");
+				break;
+			}
+			
+			int len = r.nextInt(cols);
+			for(int x=0; x<len; x++)
+			{
+				sb.append((char)('a' + r.nextInt(26)));
+			}
+		}
+		sb.append(ESC).append("[r");
+		return bytes(sb);
+	}
+	
+	
+	/** UTF-8 encoded CJK text mixed with ASCII */
+	public static byte[] utf8Cjk(int size)
+	{
+		Random r = new Random(4);
+		StringBuilder sb = new StringBuilder(size + 256);
+		while(sb.length() * 2 < size)
+		{
+			int len = 10 + r.nextInt(30);
+			for(int i=0; i<len; i++)
+			{
+				sb.append(CJK.charAt(r.nextInt(CJK.length())));
+				if(r.nextInt(8) == 0)
+				{
+					sb.append(' ').append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+				}
+			}
+			sb.append("\r\n");
+		}
+		return bytes(sb);
+	}
+	
+	
+	private static byte[] bytes(StringBuilder sb)
+	{
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
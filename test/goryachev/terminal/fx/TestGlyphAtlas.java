@@ -0,0 +1,103 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.fx;
+import goryachev.common.util.D;
+import goryachev.terminal.model.ColorCode;
+import java.util.Random;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Stage;
+
+
+/**
+ * Measures the time to render a full screen of colored text, with and without the glyph atlas.
+ * Each frame forces a repaint of every cell and takes a snapshot so the canvas commands are
+ * actually rendered.
+ */
+public class TestGlyphAtlas
+	extends Application
+{
+	private static final int WARMUP = 20;
+	private static final int FRAMES = 200;
+	private FxTermView view;
+	private WritableImage image;
+	
+	
+	public static void main(String[] args)
+	{
+		Application.launch(TestGlyphAtlas.class, args);
+	}
+	
+	
+	@Override
+	public void start(Stage stage) throws Exception
+	{
+		view = new FxTermView();
+		stage.setScene(new Scene(view, 1200, 800));
+		stage.show();
+		
+		Platform.runLater(() ->
+		{
+			fill();
+			
+			double off = measure(false);
+			double on = measure(true);
+			
+			D.print("screen", view.getColumnCount() + "x" + view.getRowCount());
+			D.print("fillText ms/frame", String.format("%.2f", off));
+			D.print("atlas ms/frame", String.format("%.2f", on));
+			D.print("speedup", String.format("%.1fx", off / on));
+			D.print("atlas glyphs", view.atlas.size(), "capacity", view.atlas.getCapacity(), "misses", view.atlas.getMisses(), "snapshots", view.atlas.getSnapshots());
+			
+			Platform.exit();
+		});
+	}
+	
+	
+	private void fill()
+	{
+		Random r = new Random(1);
+		int cols = view.getColumnCount();
+		int rows = view.getRowCount();
+		
+		for(int y=0; y<rows; y++)
+		{
+			for(int x=0; x<cols; x++)
+			{
+				if(r.nextInt(8) == 0)
+				{
+					view.model.setForeground(ColorCode.indexed(r.nextInt(8)));
+				}
+				view.model.draw(x, y, 0x21 + r.nextInt(0x5e));
+			}
+		}
+	}
+	
+	
+	private double measure(boolean atlas)
+	{
+		view.setGlyphAtlasEnabled(atlas);
+		
+		for(int i=0; i<WARMUP; i++)
+		{
+			frame();
+		}
+		
+		long start = System.nanoTime();
+		for(int i=0; i<FRAMES; i++)
+		{
+			frame();
+		}
+		return (System.nanoTime() - start) / 1_000_000.0 / FRAMES;
+	}
+	
+	
+	private void frame()
+	{
+		view.frame.invalidate();
+		view.repaintRequested.set(true);
+		view.redraw();
+		image = view.snapshot(null, image);
+	}
+}
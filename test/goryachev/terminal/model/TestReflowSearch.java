@@ -0,0 +1,124 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.D;
+import goryachev.common.util.text.FindOperation;
+import goryachev.terminal.GTermVT100;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Checks the history line numbers after a narrowing resize, once the background reflow has
+ * replaced the older lines, and that a search started afterwards completes and finds the lines
+ * where they are.
+ */
+public class TestReflowSearch
+{
+	private static final int LINES = 3000;
+	private static final int WIDTH = 158;
+	private static final int HISTORY = 10_000;
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		TermModel model = new TermModel(200, 24, HISTORY);
+		GTermVT100 em = new GTermVT100();
+		em.setView(model);
+		
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<LINES; i++)
+		{
+			sb.append(String.format("L%05d", i));
+			while(sb.length() % (WIDTH + 2) < WIDTH)
+			{
+				sb.append('x');
+			}
+			sb.append("\r\n");
+		}
+		char[] cs = sb.toString().toCharArray();
+		em.process(cs, 0, cs.length);
+		
+		model.setSize(40, 24);
+		waitForReflow(model);
+		
+		synchronized(model.getLock())
+		{
+			TermScreenBuffer b = model.getPrimaryBuffer();
+			long hc = model.getHistoryCounter();
+			int hs = b.getHistorySize();
+			long lc = b.getHistoryIndex().getLineCount();
+			D.print("history", hs, "counter", hc, "index", lc);
+			check(hc >= hs, "history counter below the history size");
+			check(lc == hc, "history index numbering differs");
+		}
+		
+		search(model, "L02990", 1);
+		search(model, "L00100", 0);
+		
+		D.print("OK");
+	}
+	
+	
+	private static void waitForReflow(TermModel model) throws Exception
+	{
+		for(int i=0; i<1000; i++)
+		{
+			synchronized(model.getLock())
+			{
+				if(!model.getPrimaryBuffer().isReflowPending())
+				{
+					return;
+				}
+			}
+			Thread.sleep(10);
+		}
+		throw new Error("reflow did not complete");
+	}
+	
+	
+	/** searches for the pattern at the start of a logical line, checking the line numbers of the matches */
+	private static void search(TermModel model, String pattern, int expected) throws Exception
+	{
+		CountDownLatch done = new CountDownLatch(1);
+		FindOperation op = new FindOperation(Locale.ENGLISH, pattern, false, false, false);
+		TermSearch s = new TermSearch(model, op, (x) ->
+		{
+			if(x.isComplete())
+			{
+				done.countDown();
+			}
+		});
+		s.start();
+		boolean complete = done.await(5, TimeUnit.SECONDS);
+		s.cancel();
+		
+		check(complete, "search did not complete: " + pattern);
+		check(s.getMatchCount() == expected, "matches of " + pattern + ": " + s.getMatchCount());
+		
+		synchronized(model.getLock())
+		{
+			TermScreenBuffer b = model.getPrimaryBuffer();
+			long first = model.getHistoryCounter() - b.getHistorySize();
+			for(int i=0; i<s.getMatchCount(); i++)
+			{
+				long m = s.getMatch(i);
+				long line = TermSearch.getLine(m);
+				check(line >= first, "match above the history: " + line);
+				
+				ScreenLine t = b.getViewLine(0, (int)(model.getHistoryCounter() - line));
+				check(t.getCodePoint(0) == 'L', "match at the line " + line + " is elsewhere");
+				check(TermSearch.getColumn(m) == 0, "match column " + TermSearch.getColumn(m));
+			}
+		}
+	}
+	
+	
+	private static void check(boolean ok, String message)
+	{
+		if(!ok)
+		{
+			throw new Error(message);
+		}
+	}
+}
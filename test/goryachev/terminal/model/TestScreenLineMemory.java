@@ -0,0 +1,127 @@
+// Copyright © 2024 Andy Goryachev <andy@goryachev.com>
+package goryachev.terminal.model;
+import goryachev.common.util.D;
+import java.util.BitSet;
+import java.util.function.Supplier;
+import javafx.scene.paint.Color;
+
+
+/**
+ * Measures the retained heap per ScreenLine, compared to the previous representation
+ * (a String, two Colors and flags per cell).
+ */
+public class TestScreenLineMemory
+{
+	private static final int WIDTH = 200;
+	private static final int LINES = 20_000;
+	private static final Color[] COLORS =
+	{
+		Color.BLACK,
+		Color.RED,
+		Color.GREEN,
+		Color.BLUE
+	};
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		long legacy = measure(() -> createLegacy());
+		long packed = measure(() -> createPacked());
+		
+		D.print("legacy bytes/line", legacy / LINES);
+		D.print("packed bytes/line", packed / LINES);
+		D.print("reduction", String.format("%.1fx", legacy / (double)packed));
+	}
+	
+	
+	private static long measure(Supplier<Object> generator) throws Exception
+	{
+		long before = usedMemory();
+		Object retained = generator.get();
+		long after = usedMemory();
+		
+		if(retained == null)
+		{
+			throw new Error();
+		}
+		return after - before;
+	}
+	
+	
+	private static long usedMemory() throws Exception
+	{
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0; i<5; i++)
+		{
+			System.gc();
+			Thread.sleep(50);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	
+	private static Object createPacked()
+	{
+		StyleTable styles = new StyleTable();
+		ScreenLine[] lines = new ScreenLine[LINES];
+		for(int i=0; i<LINES; i++)
+		{
+			ScreenLine t = new ScreenLine(styles, WIDTH);
+			for(int x=0; x<WIDTH; x++)
+			{
+				int st = styles.intern(ColorCode.indexed((x / 10) % COLORS.length), ColorCode.indexed(7), 0);
+				t.setCell(x, 'a' + (x % 26), st);
+			}
+			lines[i] = t;
+		}
+		return lines;
+	}
+	
+	
+	private static Object createLegacy()
+	{
+		LegacyLine[] lines = new LegacyLine[LINES];
+		for(int i=0; i<LINES; i++)
+		{
+			LegacyLine t = new LegacyLine(WIDTH);
+			for(int x=0; x<WIDTH; x++)
+			{
+				String s = new String(Character.toChars('a' + (x % 26)));
+				t.setCell(x, s, Color.WHITE, COLORS[(x / 10) % COLORS.length], 0);
+			}
+			lines[i] = t;
+		}
+		return lines;
+	}
+	
+	
+	/** the previous ScreenLine representation */
+	private static class LegacyLine
+	{
+		private final BitSet updated;
+		private final String[] cells;
+		private final Color[] foregrounds;
+		private final Color[] backgrounds;
+		private final short[] flags;
+		
+		
+		public LegacyLine(int width)
+		{
+			updated = new BitSet(width);
+			cells = new String[width];
+			foregrounds = new Color[width];
+			backgrounds = new Color[width];
+			flags = new short[width];
+		}
+		
+		
+		public void setCell(int x, String text, Color bg, Color fg, int flag)
+		{
+			cells[x] = text;
+			backgrounds[x] = bg;
+			foregrounds[x] = fg;
+			flags[x] = (short)flag;
+			updated.set(x);
+		}
+	}
+}